@@ -0,0 +1,303 @@
+package tpc;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded cache of account balances and closed flags, keyed by primitive account numbers. The cache is split
+ * into segments with their own lock, open addressing table and LRU list, so concurrent readers of different
+ * accounts rarely contend and no objects are allocated per entry. Entries older than the staleness bound are
+ * reloaded, which bounds how long writes made outside this bank instance go unnoticed. Writes made through the
+ * bank invalidate the entries of the accounts they touch, and an account loaded while a write was under way is
+ * not cached, so readers of this bank instance see their own writes.
+ */
+public class AccountCache {
+
+    /**
+     * The balance returned for an account that is not cached
+     */
+    final static long MISS = Long.MIN_VALUE;
+
+    private final static int SEGMENTS = 16;
+
+    private final Segment[] segments;
+
+    private final long maxStalenessNanos;
+
+    private final LongAdder hits = new LongAdder(), misses = new LongAdder(), evictions = new LongAdder();
+
+    /**
+     * Create a new AccountCache
+     * @param capacity The maximum number of cached accounts
+     * @param maxStalenessMs The maximum age of a cached account in ms
+     */
+    AccountCache(int capacity, long maxStalenessMs) {
+        if (capacity < 1 || maxStalenessMs < 1) throw new IllegalArgumentException("Invalid cache settings");
+        int segmentCount = Math.min(SEGMENTS, Integer.highestOneBit(capacity));
+        int segmentCapacity = capacity / segmentCount;
+        segments = new Segment[segmentCount];
+        for (int i = 0; i < segmentCount; i++) segments[i] = new Segment(segmentCapacity);
+        maxStalenessNanos = maxStalenessMs * 1000000L;
+    }
+
+    /**
+     * Get the cached balance of an account
+     * @param acctNr The account number
+     * @return The balance in cents, or MISS if the account is not cached or its entry is stale
+     */
+    long getBalance(int acctNr) {
+        int hash = Hashing.hash(acctNr);
+        return segment(hash).getBalance(acctNr, hash, System.nanoTime());
+    }
+
+    /**
+     * Get whether an account is closed
+     * @param acctNr The account number
+     * @return Whether the account is closed, or null if the account is not cached or its entry is stale
+     */
+    Boolean isClosed(int acctNr) {
+        int hash = Hashing.hash(acctNr);
+        return segment(hash).isClosed(acctNr, hash, System.nanoTime());
+    }
+
+    /**
+     * Get a stamp to pass to putLoaded, taken before loading an account from the database
+     * @param acctNr The account number
+     * @return The stamp
+     */
+    long stamp(int acctNr) {
+        return segment(Hashing.hash(acctNr)).stamp();
+    }
+
+    /**
+     * Cache an account loaded from the database, unless the bank wrote to accounts of the same segment since the
+     * stamp was taken, because then the loaded state may already be outdated
+     * @param acctNr The account number
+     * @param balance The balance in cents
+     * @param closed Whether the account is closed
+     * @param stamp The stamp taken before loading
+     */
+    void putLoaded(int acctNr, long balance, boolean closed, long stamp) {
+        int hash = Hashing.hash(acctNr);
+        segment(hash).put(acctNr, hash, balance, closed, System.nanoTime(), stamp);
+    }
+
+    /**
+     * Remove an account after writing to it
+     * @param acctNr The account number
+     */
+    void invalidate(int acctNr) {
+        int hash = Hashing.hash(acctNr);
+        segment(hash).remove(acctNr, hash);
+    }
+
+    /**
+     * Remove all accounts
+     */
+    void clear() {
+        for (Segment segment : segments) segment.clear();
+    }
+
+    /**
+     * @return The number of cached accounts
+     */
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) size += segment.size();
+        return size;
+    }
+
+    /**
+     * @return The number of lookups that were answered from the cache
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return The number of lookups that had to go to the database
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return The fraction of lookups that were answered from the cache
+     */
+    public double getHitRate() {
+        long hits = getHits(), lookups = hits + getMisses();
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    /**
+     * @return The number of accounts that were evicted to make room for others
+     */
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    private Segment segment(int hash) {
+        return segments[hash >>> 28 & segments.length - 1];
+    }
+
+    /**
+     * A part of the cache with its own lock. Entries live in slots that are linked into an LRU list, with the
+     * most recently used slot at the head. The table maps account numbers to slots with linear probing.
+     */
+    private final class Segment {
+
+        private final int[] table; // slot + 1, or 0 if empty
+
+        private final int[] keys, prev, next;
+
+        private final long[] balances, loadedAt;
+
+        private final boolean[] closed;
+
+        private int head = -1, tail = -1, free, size;
+
+        private long version;
+
+        Segment(int capacity) {
+            table = new int[Integer.highestOneBit(capacity * 2 - 1) << 1];
+            keys = new int[capacity];
+            prev = new int[capacity];
+            next = new int[capacity];
+            balances = new long[capacity];
+            loadedAt = new long[capacity];
+            closed = new boolean[capacity];
+            clear();
+        }
+
+        synchronized long getBalance(int key, int hash, long now) {
+            int slot = lookup(key, hash, now);
+            return slot < 0 ? MISS : balances[slot];
+        }
+
+        synchronized Boolean isClosed(int key, int hash, long now) {
+            int slot = lookup(key, hash, now);
+            return slot < 0 ? null : closed[slot];
+        }
+
+        synchronized long stamp() {
+            return version;
+        }
+
+        synchronized void put(int key, int hash, long balance, boolean isClosed, long now, long stamp) {
+            if (stamp != version) return;
+            int pos = find(key, hash);
+            int slot;
+            if (pos >= 0) {
+                slot = table[pos] - 1;
+                unlink(slot);
+            } else {
+                if (free < 0) {
+                    removeSlot(tail, Hashing.hash(keys[tail]));
+                    evictions.increment();
+                }
+                slot = free;
+                free = next[slot];
+                size++;
+                keys[slot] = key;
+                int i = hash & table.length - 1;
+                while (table[i] != 0) i = i + 1 & table.length - 1;
+                table[i] = slot + 1;
+            }
+            balances[slot] = balance;
+            closed[slot] = isClosed;
+            loadedAt[slot] = now;
+            linkFirst(slot);
+        }
+
+        synchronized void remove(int key, int hash) {
+            version++;
+            int pos = find(key, hash);
+            if (pos >= 0) removeSlot(table[pos] - 1, hash);
+        }
+
+        synchronized void clear() {
+            version++;
+            Arrays.fill(table, 0);
+            for (int i = 0; i < keys.length; i++) next[i] = i + 1 < keys.length ? i + 1 : -1;
+            free = 0;
+            head = tail = -1;
+            size = 0;
+        }
+
+        synchronized int size() {
+            return size;
+        }
+
+        /**
+         * Find a fresh entry and mark it most recently used
+         * @return The slot of the entry, or -1
+         */
+        private int lookup(int key, int hash, long now) {
+            int pos = find(key, hash);
+            if (pos < 0) {
+                misses.increment();
+                return -1;
+            }
+            int slot = table[pos] - 1;
+            if (now - loadedAt[slot] > maxStalenessNanos) {
+                removeSlot(slot, hash);
+                misses.increment();
+                return -1;
+            }
+            hits.increment();
+            if (slot != head) {
+                unlink(slot);
+                linkFirst(slot);
+            }
+            return slot;
+        }
+
+        /**
+         * @return The table position of a key, or -1
+         */
+        private int find(int key, int hash) {
+            int mask = table.length - 1;
+            for (int i = hash & mask; table[i] != 0; i = i + 1 & mask) {
+                if (keys[table[i] - 1] == key) return i;
+            }
+            return -1;
+        }
+
+        /**
+         * Remove an entry from the table and the LRU list, and free its slot
+         */
+        private void removeSlot(int slot, int hash) {
+            int mask = table.length - 1;
+            int i = hash & mask;
+            while (table[i] != slot + 1) i = i + 1 & mask;
+            // Shift back later entries of the probe sequence, so lookups never stop at the hole
+            for (int j = i + 1 & mask; table[j] != 0; j = j + 1 & mask) {
+                int home = Hashing.hash(keys[table[j] - 1]) & mask;
+                if ((j - home & mask) >= (j - i & mask)) {
+                    table[i] = table[j];
+                    i = j;
+                }
+            }
+            table[i] = 0;
+            unlink(slot);
+            next[slot] = free;
+            free = slot;
+            size--;
+        }
+
+        private void unlink(int slot) {
+            if (prev[slot] >= 0) next[prev[slot]] = next[slot];
+            else head = next[slot];
+            if (next[slot] >= 0) prev[next[slot]] = prev[slot];
+            else tail = prev[slot];
+        }
+
+        private void linkFirst(int slot) {
+            prev[slot] = -1;
+            next[slot] = head;
+            if (head >= 0) prev[head] = slot;
+            head = slot;
+            if (tail < 0) tail = slot;
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package tpc;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Serializes work on the same accounts within this JVM with a fixed number of striped locks, so memory is
+ * bounded no matter how many accounts exist. The locks of all accounts involved are always acquired in stripe
+ * order, so transfers in opposite directions cannot deadlock. Work on accounts in different stripes runs in
+ * parallel.
+ */
+public class AccountLockManager {
+
+    /**
+     * Releases the locks it holds when closed
+     */
+    public final class Locked implements AutoCloseable {
+
+        private final int[] stripes;
+
+        private Locked(int[] stripes) {
+            this.stripes = stripes;
+        }
+
+        @Override
+        public void close() {
+            for (int i = stripes.length - 1; i >= 0; i--) locks[stripes[i]].unlock();
+        }
+    }
+
+    private final ReentrantLock[] locks;
+
+    private final int mask;
+
+    /**
+     * Create a new AccountLockManager
+     * @param stripes The number of locks, rounded up to a power of two
+     * @param fair Whether the locks are granted in arrival order
+     */
+    AccountLockManager(int stripes, boolean fair) {
+        if (stripes < 1 || stripes > 1 << 30) throw new IllegalArgumentException("Invalid number of stripes");
+        int size = Integer.highestOneBit(stripes - 1 << 1 | 1);
+        locks = new ReentrantLock[size];
+        for (int i = 0; i < size; i++) locks[i] = new ReentrantLock(fair);
+        mask = size - 1;
+    }
+
+    /**
+     * Lock two accounts, e.g. the source and destination of a transfer
+     * @return The held locks, to be closed when done
+     */
+    public Locked lock(int acctNr1, int acctNr2) {
+        int stripe1 = stripe(acctNr1), stripe2 = stripe(acctNr2);
+        int[] stripes;
+        if (stripe1 == stripe2) stripes = new int[]{stripe1};
+        else if (stripe1 < stripe2) stripes = new int[]{stripe1, stripe2};
+        else stripes = new int[]{stripe2, stripe1};
+        return lockStripes(stripes);
+    }
+
+    /**
+     * Lock any number of accounts, e.g. all accounts of a batch of transfers
+     * @return The held locks, to be closed when done
+     */
+    public Locked lockAll(Collection<Integer> acctNrs) {
+        int[] stripes = new int[acctNrs.size()];
+        int n = 0;
+        for (int acctNr : acctNrs) stripes[n++] = stripe(acctNr);
+        Arrays.sort(stripes);
+        int distinct = 0;
+        for (int i = 0; i < n; i++) {
+            if (distinct == 0 || stripes[distinct - 1] != stripes[i]) stripes[distinct++] = stripes[i];
+        }
+        return lockStripes(Arrays.copyOf(stripes, distinct));
+    }
+
+    /**
+     * @return The number of locks
+     */
+    public int getStripes() {
+        return locks.length;
+    }
+
+    /**
+     * Get the stripe of an account
+     * @param acctNr The account number
+     * @return The index of the lock of the account
+     */
+    int stripe(int acctNr) {
+        // Spread consecutive account numbers over the stripes
+        return Hashing.hash(acctNr) & mask;
+    }
+
+    /**
+     * Acquire the locks of the stripes in ascending order
+     */
+    private Locked lockStripes(int[] stripes) {
+        for (int stripe : stripes) locks[stripe].lock();
+        return new Locked(stripes);
+    }
+}
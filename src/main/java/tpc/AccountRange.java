@@ -0,0 +1,56 @@
+package tpc;
+
+/**
+ * A range of consecutive account numbers
+ */
+public final class AccountRange {
+
+    private final int first, last;
+
+    /**
+     * Create a new AccountRange
+     * @param first The first account number
+     * @param last The last account number
+     */
+    public AccountRange(int first, int last) {
+        if (last < first) throw new IllegalArgumentException("Empty account range");
+        this.first = first;
+        this.last = last;
+    }
+
+    public int getFirst() {
+        return first;
+    }
+
+    public int getLast() {
+        return last;
+    }
+
+    /**
+     * @return The number of accounts in the range
+     */
+    public int size() {
+        return last - first + 1;
+    }
+
+    public boolean contains(int acctNr) {
+        return acctNr >= first && acctNr <= last;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof AccountRange)) return false;
+        AccountRange other = (AccountRange) o;
+        return first == other.first && last == other.last;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * first + last;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("accounts %s to %s", first, last);
+    }
+}
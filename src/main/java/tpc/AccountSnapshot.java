@@ -0,0 +1,349 @@
+package tpc;
+
+import com.mongodb.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * A dump of the balances of all accounts, e.g. for end-of-day reporting and reconciliation. The account number
+ * space is split into ranges that are exported in parallel, every range with a projected cursor in account
+ * number order into its own file of fixed-width records: the account number (int), the balance in cents (long)
+ * and a flags byte. A manifest lists the files with their account ranges, record counts, balances and CRC32
+ * checksums, and is written last, so a directory without a manifest holds no complete snapshot.
+ * <p>
+ * Every account is dumped as it is at the moment it is read. Money of a transfer that is in flight may be
+ * counted in none or both of its accounts, so those accounts are flagged as having pending transactions.
+ * <p>
+ * Every stripe of a striped account is a record of its own with only the balance of that stripe, and the records
+ * carry no link to the striped account. The total balance is still right, but the balance of a striped account is
+ * the sum of the records of its stripes, which MongoBank.getBalances reports.
+ */
+public class AccountSnapshot {
+
+    private final static Logger LOG = Logger.getLogger(AccountSnapshot.class.getName());
+
+    /**
+     * Receives the records of a snapshot
+     */
+    public interface RecordConsumer {
+
+        /**
+         * @param acctNr The account number
+         * @param balanceInCents The balance in cents
+         * @param closed Whether the account is closed
+         * @param pending Whether the account had pending transactions
+         */
+        void accept(int acctNr, long balanceInCents, boolean closed, boolean pending);
+    }
+
+    /**
+     * The name of the manifest file
+     */
+    public final static String MANIFEST = "manifest.properties";
+
+    /**
+     * The size of a record in bytes
+     */
+    final static int RECORD_SIZE = 4 + 8 + 1;
+
+    private final static int CLOSED_FLAG = 1, PENDING_FLAG = 2;
+
+    /**
+     * The number of ranges per parallel worker, so workers that finish early can take another range
+     */
+    private final static int RANGES_PER_WORKER = 4;
+
+    private final static int RECORDS_PER_BUFFER = 8192, CURSOR_BATCH_SIZE = 10000;
+
+    /**
+     * A file of the snapshot
+     */
+    private static class Range {
+
+        private final String file;
+        private final int first, last;
+        private long count, balance, crc;
+
+        private Range(String file, int first, int last) {
+            this.file = file;
+            this.first = first;
+            this.last = last;
+        }
+    }
+
+    private final Path dir;
+
+    private final List<Range> ranges;
+
+    private final long accounts, balance;
+
+    private AccountSnapshot(Path dir, List<Range> ranges) {
+        this.dir = dir;
+        this.ranges = ranges;
+        long accounts = 0, balance = 0;
+        for (Range range : ranges) {
+            accounts += range.count;
+            balance += range.balance;
+        }
+        this.accounts = accounts;
+        this.balance = balance;
+    }
+
+    /**
+     * @return The number of accounts in the snapshot
+     */
+    public long getAccounts() {
+        return accounts;
+    }
+
+    /**
+     * @return The sum of the balances of all accounts in cents
+     */
+    public long getTotalBalanceInCents() {
+        return balance;
+    }
+
+    /**
+     * @return The directory of the snapshot
+     */
+    public Path getDir() {
+        return dir;
+    }
+
+    /**
+     * Export the balances of all accounts
+     * @param accounts The accounts collection
+     * @param dir The directory to write to, which must not contain a snapshot yet
+     * @param parallelism The number of ranges exported at once
+     * @return The snapshot
+     * @throws IOException When a file cannot be written
+     * @throws BankingException When a database error occurs
+     */
+    static AccountSnapshot export(final DBCollection accounts, Path dir, int parallelism)
+            throws IOException, BankingException {
+        if (parallelism < 1) throw new IllegalArgumentException("Parallelism must be positive");
+        Files.createDirectories(dir);
+        if (Files.exists(dir.resolve(MANIFEST))) throw new FileAlreadyExistsException(dir.resolve(MANIFEST).toString());
+        long start = System.nanoTime();
+        List<Range> ranges = new ArrayList<>();
+        try {
+            DBCursor lowest = accounts.find(new BasicDBObject(), new BasicDBObject(MongoBank.ID, 1))
+                    .sort(new BasicDBObject(MongoBank.ID, 1)).limit(1);
+            DBCursor highest = accounts.find(new BasicDBObject(), new BasicDBObject(MongoBank.ID, 1))
+                    .sort(new BasicDBObject(MongoBank.ID, -1)).limit(1);
+            if (lowest.hasNext() && highest.hasNext()) {
+                long min = MongoBank.acctNrOf(lowest.next()), max = MongoBank.acctNrOf(highest.next());
+                long span = max - min + 1;
+                int n = (int) Math.min(span, (long) parallelism * RANGES_PER_WORKER);
+                for (int i = 0; i < n; i++) {
+                    ranges.add(new Range(String.format("accounts-%05d.bin", i), (int) (min + span * i / n),
+                            (int) (min + span * (i + 1) / n - 1)));
+                }
+            }
+        } catch (MongoException e) {
+            LOG.severe(String.format("Failed to find the range of accounts to export: %s", e.getMessage()));
+            throw new BankingException(BankingError.DB_ERROR);
+        }
+        final Path target = dir;
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+        try {
+            List<Callable<Void>> tasks = new ArrayList<>(ranges.size());
+            for (final Range range : ranges) {
+                tasks.add(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        export(accounts, target, range);
+                        return null;
+                    }
+                });
+            }
+            for (Future<Void> future : executor.invokeAll(tasks)) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+                    LOG.severe(String.format("Failed to export accounts: %s", e.getCause().getMessage()));
+                    throw new BankingException(BankingError.DB_ERROR);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while exporting accounts");
+        } finally {
+            executor.shutdownNow();
+        }
+        AccountSnapshot snapshot = new AccountSnapshot(dir, ranges);
+        snapshot.writeManifest();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        LOG.info(String.format("Exported %s accounts with a total balance of %s to %s in %.3f s, %.1f/s",
+                snapshot.accounts, Money.format(snapshot.balance), dir, seconds, snapshot.accounts / seconds));
+        return snapshot;
+    }
+
+    /**
+     * Export the accounts of a range into the file of the range
+     */
+    private static void export(DBCollection accounts, Path dir, Range range) throws IOException {
+        DBCursor cursor = accounts.find(new BasicDBObject(MongoBank.ID, new BasicDBObject("$gte", range.first)
+                        .append("$lte", range.last)),
+                new BasicDBObject(MongoBank.BALANCE, 1).append(MongoBank.CLOSED, 1)
+                        .append(MongoBank.PENDING_TXNS, new BasicDBObject("$slice", 1)))
+                .sort(new BasicDBObject(MongoBank.ID, 1))
+                .batchSize(CURSOR_BATCH_SIZE);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(RECORDS_PER_BUFFER * RECORD_SIZE);
+        CRC32 crc = new CRC32();
+        try (FileChannel channel = FileChannel.open(dir.resolve(range.file), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            while (cursor.hasNext()) {
+                DBObject account = cursor.next();
+                long balance = MongoBank.balanceOf(account);
+                List<?> pending = (List<?>) account.get(MongoBank.PENDING_TXNS);
+                int flags = (MongoBank.closedOf(account) ? CLOSED_FLAG : 0)
+                        | (pending != null && !pending.isEmpty() ? PENDING_FLAG : 0);
+                buffer.putInt(MongoBank.acctNrOf(account)).putLong(balance).put((byte) flags);
+                range.count++;
+                range.balance += balance;
+                if (!buffer.hasRemaining()) write(channel, buffer, crc);
+            }
+            write(channel, buffer, crc);
+            channel.force(true);
+        } finally {
+            cursor.close();
+        }
+        range.crc = crc.getValue();
+        LOG.fine(String.format("Exported %s accounts from %s to %s into %s", range.count, range.first, range.last,
+                range.file));
+    }
+
+    private static void write(FileChannel channel, ByteBuffer buffer, CRC32 crc) throws IOException {
+        buffer.flip();
+        crc.update(buffer.duplicate());
+        while (buffer.hasRemaining()) channel.write(buffer);
+        buffer.clear();
+    }
+
+    /**
+     * Write the manifest through a temporary file, so it appears complete or not at all
+     */
+    private void writeManifest() throws IOException {
+        Properties manifest = new Properties();
+        manifest.setProperty("recordSize", Integer.toString(RECORD_SIZE));
+        manifest.setProperty("accounts", Long.toString(accounts));
+        manifest.setProperty("balance", Long.toString(balance));
+        manifest.setProperty("ranges", Integer.toString(ranges.size()));
+        for (int i = 0; i < ranges.size(); i++) {
+            Range range = ranges.get(i);
+            String prefix = "range." + i + ".";
+            manifest.setProperty(prefix + "file", range.file);
+            manifest.setProperty(prefix + "first", Integer.toString(range.first));
+            manifest.setProperty(prefix + "last", Integer.toString(range.last));
+            manifest.setProperty(prefix + "count", Long.toString(range.count));
+            manifest.setProperty(prefix + "balance", Long.toString(range.balance));
+            manifest.setProperty(prefix + "crc32", Long.toString(range.crc));
+        }
+        Path temp = dir.resolve(MANIFEST + ".tmp");
+        try (OutputStream out = Files.newOutputStream(temp)) {
+            manifest.store(out, "Account snapshot");
+        }
+        Files.move(temp, dir.resolve(MANIFEST), StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Open a snapshot written by export
+     * @param dir The directory of the snapshot
+     * @return The snapshot
+     * @throws IOException When the manifest cannot be read or is invalid
+     */
+    public static AccountSnapshot load(Path dir) throws IOException {
+        Properties manifest = new Properties();
+        try (InputStream in = Files.newInputStream(dir.resolve(MANIFEST))) {
+            manifest.load(in);
+        }
+        try {
+            if (Integer.parseInt(manifest.getProperty("recordSize")) != RECORD_SIZE) {
+                throw new IOException("Unsupported record size in " + dir.resolve(MANIFEST));
+            }
+            int n = Integer.parseInt(manifest.getProperty("ranges"));
+            List<Range> ranges = new ArrayList<>(n);
+            for (int i = 0; i < n; i++) {
+                String prefix = "range." + i + ".";
+                Range range = new Range(manifest.getProperty(prefix + "file"),
+                        Integer.parseInt(manifest.getProperty(prefix + "first")),
+                        Integer.parseInt(manifest.getProperty(prefix + "last")));
+                range.count = Long.parseLong(manifest.getProperty(prefix + "count"));
+                range.balance = Long.parseLong(manifest.getProperty(prefix + "balance"));
+                range.crc = Long.parseLong(manifest.getProperty(prefix + "crc32"));
+                ranges.add(range);
+            }
+            AccountSnapshot snapshot = new AccountSnapshot(dir, ranges);
+            if (snapshot.accounts != Long.parseLong(manifest.getProperty("accounts"))
+                    || snapshot.balance != Long.parseLong(manifest.getProperty("balance"))) {
+                throw new IOException("Inconsistent totals in " + dir.resolve(MANIFEST));
+            }
+            return snapshot;
+        } catch (NumberFormatException | NullPointerException e) {
+            throw new IOException("Invalid manifest " + dir.resolve(MANIFEST), e);
+        }
+    }
+
+    /**
+     * Check the size, checksum, record count and balance of every file against the manifest
+     * @throws IOException When a file cannot be read or does not match the manifest
+     */
+    public void verify() throws IOException {
+        forEach(null);
+    }
+
+    /**
+     * Read all records, in account number order. Every file is checked against the manifest once it is read,
+     * so only records of files that were checked before can be trusted if this throws.
+     * @param consumer Receives every record, or null to only check the files
+     * @throws IOException When a file cannot be read or does not match the manifest
+     */
+    public void forEach(RecordConsumer consumer) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(RECORDS_PER_BUFFER * RECORD_SIZE);
+        for (Range range : ranges) {
+            Path file = dir.resolve(range.file);
+            CRC32 crc = new CRC32();
+            long count = 0, balance = 0;
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                if (channel.size() != range.count * RECORD_SIZE) throw new IOException("Wrong size of " + file);
+                int read;
+                while ((read = channel.read(buffer)) != -1) {
+                    ByteBuffer bytesRead = buffer.duplicate();
+                    bytesRead.flip();
+                    bytesRead.position(bytesRead.limit() - read);
+                    crc.update(bytesRead);
+                    buffer.flip();
+                    while (buffer.remaining() >= RECORD_SIZE) {
+                        int acctNr = buffer.getInt();
+                        long balanceInCents = buffer.getLong();
+                        int flags = buffer.get();
+                        count++;
+                        balance += balanceInCents;
+                        if (consumer != null) {
+                            consumer.accept(acctNr, balanceInCents, (flags & CLOSED_FLAG) != 0,
+                                    (flags & PENDING_FLAG) != 0);
+                        }
+                    }
+                    buffer.compact(); // Keep a record that continues in the next read
+                }
+                if (buffer.position() > 0) throw new IOException("Truncated record in " + file);
+            }
+            buffer.clear();
+            if (crc.getValue() != range.crc || count != range.count || balance != range.balance) {
+                throw new IOException("Checksum mismatch in " + file);
+            }
+        }
+    }
+}
@@ -0,0 +1,252 @@
+package tpc;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+/**
+ * Limits the number of writes the bank has in flight, so bursts of callers queue up in front of the bank instead
+ * of piling into mongod's journaled write path. The limit adapts to the observed latency with additive increase
+ * and multiplicative decrease: every write that finishes within the target latency raises the limit by 1/limit,
+ * about one per round of writes, and a write that is slower or fails lowers it by a constant factor, at most
+ * once per target latency. Callers over the limit wait in a bounded FIFO queue until their deadline, and are
+ * rejected with OVERLOADED when the queue is full or the deadline passes, so they fail fast instead of adding to
+ * the tail latency of everybody else.
+ */
+public class AdmissionController {
+
+    private final static Logger LOG = Logger.getLogger(AdmissionController.class.getName());
+
+    /**
+     * The factor the limit is multiplied with when writes get slow
+     */
+    private final static double BACKOFF = 0.9;
+
+    /**
+     * The weight of a new latency in the smoothed latency
+     */
+    private final static double SMOOTHING = 0.05;
+
+    /**
+     * A caller waiting for a slot
+     */
+    private static final class Waiter {
+        private final Condition admitted;
+        private final long deadline;
+        private boolean granted;
+
+        Waiter(Condition admitted, long deadline) {
+            this.admitted = admitted;
+            this.deadline = deadline;
+        }
+    }
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final ArrayDeque<Waiter> queue = new ArrayDeque<>();
+
+    private final int maxLimit, maxQueueLength;
+
+    private final long targetLatencyNanos, maxWaitNanos;
+
+    private double limit, smoothedLatencyNanos;
+
+    private int inFlight;
+
+    private long lastDecrease, admitted, rejected, completed, totalLatencyNanos;
+
+    /**
+     * Create a new AdmissionController
+     * @param initialLimit The number of writes allowed in flight at first
+     * @param maxLimit The maximum number of writes in flight
+     * @param targetLatencyMs The write latency in ms above which the limit is lowered
+     * @param maxQueueLength The maximum number of callers waiting for a slot
+     * @param maxWaitMs The maximum time in ms a caller waits for a slot
+     */
+    AdmissionController(int initialLimit, int maxLimit, long targetLatencyMs, int maxQueueLength, long maxWaitMs) {
+        if (initialLimit < 1 || maxLimit < initialLimit || targetLatencyMs < 1 || maxQueueLength < 0
+                || maxWaitMs < 0) {
+            throw new IllegalArgumentException("Invalid admission control settings");
+        }
+        this.limit = initialLimit;
+        this.maxLimit = maxLimit;
+        this.targetLatencyNanos = TimeUnit.MILLISECONDS.toNanos(targetLatencyMs);
+        this.maxQueueLength = maxQueueLength;
+        this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMs);
+        this.lastDecrease = System.nanoTime() - targetLatencyNanos;
+    }
+
+    /**
+     * Wait for a slot to do a write
+     * @return The time the write was admitted, to pass to release
+     * @throws BankingException OVERLOADED when the queue is full or no slot came free before the deadline
+     */
+    long acquire() throws BankingException {
+        lock.lock();
+        try {
+            if (inFlight < (int) limit && queue.isEmpty()) return admit();
+            if (queue.size() >= maxQueueLength) throw reject("the queue is full");
+            long now = System.nanoTime();
+            Waiter waiter = new Waiter(lock.newCondition(), now + maxWaitNanos);
+            queue.addLast(waiter);
+            try {
+                for (long remaining = waiter.deadline - now; !waiter.granted && remaining > 0; ) {
+                    remaining = waiter.admitted.awaitNanos(remaining);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (waiter.granted) return System.nanoTime();
+            queue.remove(waiter);
+            throw reject("no slot came free in time");
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Give back the slot of a finished write, and adapt the limit to its latency
+     * @param admittedAt The time the write was admitted, as returned by acquire
+     * @param failed Whether the write failed with a database error
+     */
+    void release(long admittedAt, boolean failed) {
+        long now = System.nanoTime();
+        long latency = now - admittedAt;
+        lock.lock();
+        try {
+            inFlight--;
+            completed++;
+            totalLatencyNanos += latency;
+            smoothedLatencyNanos = completed == 1 ? latency
+                    : smoothedLatencyNanos + SMOOTHING * (latency - smoothedLatencyNanos);
+            if (failed || latency > targetLatencyNanos) {
+                if (now - lastDecrease >= targetLatencyNanos) {
+                    limit = Math.max(1, limit * BACKOFF);
+                    lastDecrease = now;
+                    LOG.fine(String.format("Lowered the write limit to %.1f after a write of %s us",
+                            limit, TimeUnit.NANOSECONDS.toMicros(latency)));
+                }
+            } else if (inFlight + 1 >= (int) limit) {
+                // Only raise the limit when it was reached, otherwise it would grow without bound when idle
+                limit = Math.min(maxLimit, limit + 1 / limit);
+            }
+            grant(now);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Hand free slots to the longest waiting callers whose deadline has not passed
+     */
+    private void grant(long now) {
+        for (Iterator<Waiter> it = queue.iterator(); it.hasNext() && inFlight < (int) limit; ) {
+            Waiter waiter = it.next();
+            if (waiter.deadline - now <= 0) continue;
+            it.remove();
+            admit();
+            waiter.granted = true;
+            waiter.admitted.signal();
+        }
+    }
+
+    private long admit() {
+        inFlight++;
+        admitted++;
+        return System.nanoTime();
+    }
+
+    private BankingException reject(String reason) {
+        rejected++;
+        LOG.warning(String.format("Rejected a write because %s, with %s writes in flight and %s queued",
+                reason, inFlight, queue.size()));
+        return new BankingException(BankingError.OVERLOADED);
+    }
+
+    /**
+     * @return The current number of writes allowed in flight
+     */
+    public double getLimit() {
+        lock.lock();
+        try {
+            return limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return The number of writes in flight
+     */
+    public int getInFlight() {
+        lock.lock();
+        try {
+            return inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return The number of callers waiting for a slot
+     */
+    public int getQueueDepth() {
+        lock.lock();
+        try {
+            return queue.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return The number of writes that were admitted
+     */
+    public long getAdmitted() {
+        lock.lock();
+        try {
+            return admitted;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return The number of writes that were rejected
+     */
+    public long getRejected() {
+        lock.lock();
+        try {
+            return rejected;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return The average latency of all finished writes in us, without the time spent queueing
+     */
+    public long getAverageLatencyMicros() {
+        lock.lock();
+        try {
+            return completed == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(totalLatencyNanos / completed);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return The exponentially smoothed latency of recent writes in us, which the limit follows
+     */
+    public long getRecentLatencyMicros() {
+        lock.lock();
+        try {
+            return TimeUnit.NANOSECONDS.toMicros((long) smoothedLatencyNanos);
+        } finally {
+            lock.unlock();
+        }
+    }
+}
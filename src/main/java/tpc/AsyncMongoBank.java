@@ -0,0 +1,141 @@
+package tpc;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Logger;
+
+/**
+ * An asynchronous facade of a MongoBank. Every operation runs on the given executor and returns a
+ * CompletableFuture, so the calling thread is not blocked for the round trips to the database. A failed
+ * operation completes its future exceptionally with the BankingException.
+ */
+public class AsyncMongoBank {
+
+    private final static Logger LOG = Logger.getLogger(AsyncMongoBank.class.getName());
+
+    /**
+     * A bank operation that returns a value
+     */
+    private interface BankCall<T> {
+        T call() throws BankingException;
+    }
+
+    private final MongoBank mongoBank;
+
+    private final Executor executor;
+
+    /**
+     * Create a new AsyncMongoBank
+     * @param mongoBank The bank to do the operations on
+     * @param executor The executor to run the operations on
+     */
+    public AsyncMongoBank(MongoBank mongoBank, Executor executor) {
+        this.mongoBank = mongoBank;
+        this.executor = executor;
+    }
+
+    /**
+     * Create an executor that starts a virtual thread for every operation, so that thousands of operations
+     * can be in flight without thousands of platform threads. On a JVM without virtual threads it falls back
+     * to a cached thread pool.
+     * @return A new executor
+     */
+    public static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            LOG.warning("Virtual threads are not supported by this JVM, using a cached thread pool instead");
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    /**
+     * Get the balance of an account
+     * @param acctNr The account number for which to get the balance
+     * @return A future of the balance
+     */
+    public CompletableFuture<Float> getBalanceAsync(final int acctNr) {
+        return supply(new BankCall<Float>() {
+            @Override
+            public Float call() throws BankingException {
+                return mongoBank.getBalance(acctNr);
+            }
+        });
+    }
+
+    /**
+     * Deposit money into an account
+     * @param acctNr The account number to deposit into
+     * @param amount The amount to deposit
+     * @return A future of the balance after the deposit has taken place
+     */
+    public CompletableFuture<Float> depositAsync(final int acctNr, final float amount) {
+        return supply(new BankCall<Float>() {
+            @Override
+            public Float call() throws BankingException {
+                return mongoBank.deposit(acctNr, amount);
+            }
+        });
+    }
+
+    /**
+     * Withdraw money from an account
+     * @param acctNr The account number to withdraw from
+     * @param amount The amount to withdraw
+     * @return A future of the balance after the withdraw has taken place
+     */
+    public CompletableFuture<Float> withdrawAsync(final int acctNr, final float amount) {
+        return supply(new BankCall<Float>() {
+            @Override
+            public Float call() throws BankingException {
+                return mongoBank.withdraw(acctNr, amount);
+            }
+        });
+    }
+
+    /**
+     * Transfer money from one account to another
+     * @param srcAcctNr The source of the transfer
+     * @param destAcctNr The destination of the transfer
+     * @param amount The amount to transfer from source to destination
+     * @return A future that completes when the transfer is done
+     */
+    public CompletableFuture<Void> transferAsync(final int srcAcctNr, final int destAcctNr, final float amount) {
+        return supply(new BankCall<Void>() {
+            @Override
+            public Void call() throws BankingException {
+                mongoBank.transfer(srcAcctNr, destAcctNr, amount);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Run a bank operation on the executor
+     * @param call The operation
+     * @return A future of the result of the operation
+     */
+    private <T> CompletableFuture<T> supply(final BankCall<T> call) {
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        future.complete(call.call());
+                    } catch (BankingException | RuntimeException e) {
+                        future.completeExceptionally(e);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+}
@@ -0,0 +1,13 @@
+package tpc;
+
+/**
+ * Receives account balances one by one, without boxing the account number or the balance
+ */
+public interface BalanceConsumer {
+
+    /**
+     * @param acctNr The account number
+     * @param balanceInCents The balance of the account in cents
+     */
+    void accept(int acctNr, long balanceInCents);
+}
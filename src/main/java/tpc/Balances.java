@@ -0,0 +1,128 @@
+package tpc;
+
+import java.util.Arrays;
+
+/**
+ * The balances of a number of accounts by account number, in an open addressing map of primitives, together
+ * with the requested accounts that do not exist
+ */
+public class Balances {
+
+    private int[] keys;
+
+    private long[] values;
+
+    private boolean[] used;
+
+    private int size;
+
+    private int[] missing = new int[0];
+
+    /**
+     * Create a new Balances
+     * @param expectedSize The expected number of accounts
+     */
+    Balances(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(2, expectedSize * 2 - 1)) << 1;
+        keys = new int[capacity];
+        values = new long[capacity];
+        used = new boolean[capacity];
+    }
+
+    /**
+     * Add or replace the balance of an account
+     * @param acctNr The account number
+     * @param balanceInCents The balance in cents
+     */
+    void put(int acctNr, long balanceInCents) {
+        if (size * 2 >= keys.length) grow();
+        int i = index(acctNr);
+        if (!used[i]) {
+            used[i] = true;
+            keys[i] = acctNr;
+            size++;
+        }
+        values[i] = balanceInCents;
+    }
+
+    /**
+     * Record the requested accounts that were not found
+     * @param requested The requested account numbers
+     */
+    void setMissing(int[] requested) {
+        int[] sorted = requested.clone();
+        Arrays.sort(sorted);
+        int[] missing = new int[sorted.length];
+        int n = 0;
+        for (int i = 0; i < sorted.length; i++) {
+            if ((i == 0 || sorted[i] != sorted[i - 1]) && !contains(sorted[i])) missing[n++] = sorted[i];
+        }
+        this.missing = Arrays.copyOf(missing, n);
+    }
+
+    /**
+     * @param acctNr The account number
+     * @return Whether the balance of the account is known
+     */
+    public boolean contains(int acctNr) {
+        return used[index(acctNr)];
+    }
+
+    /**
+     * @param acctNr The account number
+     * @param defaultCents The value to return if the account was not found
+     * @return The balance of the account in cents, or the default
+     */
+    public long getOrDefault(int acctNr, long defaultCents) {
+        int i = index(acctNr);
+        return used[i] ? values[i] : defaultCents;
+    }
+
+    /**
+     * @return The number of accounts that were found
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return The requested account numbers that do not exist, in ascending order
+     */
+    public int[] getMissing() {
+        return missing.clone();
+    }
+
+    /**
+     * Pass every balance to a consumer, in no particular order
+     * @param consumer The consumer
+     */
+    public void forEach(BalanceConsumer consumer) {
+        for (int i = 0; i < keys.length; i++) {
+            if (used[i]) consumer.accept(keys[i], values[i]);
+        }
+    }
+
+    private int index(int acctNr) {
+        int mask = keys.length - 1;
+        int i = Hashing.hash(acctNr) & mask;
+        while (used[i] && keys[i] != acctNr) i = i + 1 & mask;
+        return i;
+    }
+
+    private void grow() {
+        int[] oldKeys = keys;
+        long[] oldValues = values;
+        boolean[] oldUsed = used;
+        keys = new int[oldKeys.length * 2];
+        values = new long[oldKeys.length * 2];
+        used = new boolean[oldKeys.length * 2];
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldUsed[i]) {
+                int j = index(oldKeys[i]);
+                used[j] = true;
+                keys[j] = oldKeys[i];
+                values[j] = oldValues[i];
+            }
+        }
+    }
+}
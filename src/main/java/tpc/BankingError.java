@@ -9,7 +9,9 @@ public enum BankingError {
     INSUFFICIENT_BALANCE(1, "Insufficient balance"),
     NON_EXISTING_ACCOUNT(2, "Account does not exist"),
     NON_EXISTING_TRANSACTION(3, "Transaction does not exist"),
-    CLOSED_ACCOUNT(4, "Closed account");
+    CLOSED_ACCOUNT(4, "Closed account"),
+    OVERLOADED(5, "The bank is overloaded, try again later"),
+    NODE_IDS_EXHAUSTED(6, "All node IDs were leased");
 
     private final int code;
     private final String message;
@@ -11,6 +11,10 @@ public class BankingException extends Exception {
         this.error = error;
     }
 
+    public BankingError getError() {
+        return error;
+    }
+
     public int getCode() {
         return error.getCode();
     }
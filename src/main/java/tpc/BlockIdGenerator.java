@@ -0,0 +1,138 @@
+package tpc;
+
+import com.mongodb.*;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Logger;
+
+/**
+ * Generates sequential IDs by leasing whole blocks of IDs (hi/lo style) from an atomic counter document.
+ * Every bank instance leases its own blocks, so IDs are unique across JVMs while only one round trip is
+ * needed per block. Within a block IDs are handed out lock-free.
+ */
+class BlockIdGenerator implements IdGenerator {
+
+    private final static Logger LOG = Logger.getLogger(BlockIdGenerator.class.getName());
+
+    /**
+     * BSON field names
+     */
+    private final static String ID = "_id", SEQ = "seq";
+
+    /**
+     * A range of leased IDs. The range is exhausted once next has passed last.
+     */
+    private static class Block {
+
+        private final static Block EMPTY = new Block(1, 0);
+
+        private final AtomicLong next;
+        private final long last;
+
+        private Block(long first, long last) {
+            this.next = new AtomicLong(first);
+            this.last = last;
+        }
+    }
+
+    /**
+     * The collection holding the counter documents
+     */
+    private final DBCollection counters;
+
+    /**
+     * The collection the IDs are used in. Its highest ID seeds the counter the first time.
+     */
+    private final DBCollection seedCollection;
+
+    /**
+     * Name of the counter document
+     */
+    private final String name;
+
+    /**
+     * The number of IDs to lease at once
+     */
+    private final int blockSize;
+
+    private final AtomicReference<Block> block = new AtomicReference<>(Block.EMPTY);
+
+    private volatile boolean seeded;
+
+    /**
+     * Create a new BlockIdGenerator
+     * @param counters The collection holding the counter documents
+     * @param name The name of the counter document
+     * @param seedCollection The collection that uses the IDs
+     * @param blockSize The number of IDs to lease at once
+     */
+    BlockIdGenerator(DBCollection counters, String name, DBCollection seedCollection, int blockSize) {
+        if (blockSize < 1) throw new IllegalArgumentException("Block size must be positive");
+        this.counters = counters;
+        this.name = name;
+        this.seedCollection = seedCollection;
+        this.blockSize = blockSize;
+    }
+
+    @Override
+    public long nextId() throws BankingException {
+        while (true) {
+            Block current = block.get();
+            long id = current.next.getAndIncrement();
+            if (id <= current.last) return id;
+            // The block is exhausted, only one thread leases the next one
+            synchronized (this) {
+                if (block.get() == current) {
+                    long last = lease(blockSize);
+                    block.set(new Block(last - blockSize + 1, last));
+                }
+            }
+        }
+    }
+
+    @Override
+    public synchronized void reset() {
+        block.set(Block.EMPTY);
+        seeded = false;
+    }
+
+    /**
+     * Atomically lease a number of consecutive IDs from the counter document
+     * @param count The number of IDs to lease
+     * @return The last ID of the leased range
+     * @throws BankingException When a database error occurs
+     */
+    long lease(int count) throws BankingException {
+        try {
+            seed();
+            // Journaled like all other writes, so a lease is never handed out again after a crash
+            DBObject counter = MongoBank.findAndModifyJournaled(counters, new BasicDBObject(ID, name), null,
+                    new BasicDBObject("$inc", new BasicDBObject(SEQ, (long) count)), true);
+            long last = ((Number) counter.get(SEQ)).longValue();
+            LOG.fine(String.format("Leased IDs %s to %s from counter '%s'", last - count + 1, last, name));
+            return last;
+        } catch (MongoException e) {
+            LOG.severe(String.format("Failed to lease %s IDs from counter '%s': %s", count, name, e.getMessage()));
+            throw new BankingException(BankingError.DB_ERROR);
+        }
+    }
+
+    /**
+     * Make sure the counter is not behind the highest ID in use, e.g. for documents created before counters
+     * were introduced. Raising the counter with $max is idempotent, so concurrent bank instances can all do it.
+     */
+    private void seed() {
+        if (seeded) return;
+        long max = 0;
+        DBCursor cursor = seedCollection.find(new BasicDBObject(), new BasicDBObject(ID, 1))
+                .sort(new BasicDBObject(ID, -1))
+                .limit(1);
+        if (cursor.hasNext()) {
+            max = ((Number) cursor.next().get(ID)).longValue();
+        }
+        counters.update(new BasicDBObject(ID, name), new BasicDBObject("$max", new BasicDBObject(SEQ, max)),
+                true, false);
+        seeded = true;
+    }
+}
@@ -0,0 +1,172 @@
+package tpc;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Combines concurrent deposits into the same account into a single $inc. The first deposit into an account
+ * opens a batch and waits for a short window, or until the batch holds the maximum number of deposits. Deposits
+ * into the same account in the meantime join the batch. Then the whole batch is written at once, and all
+ * depositors get the balance after the combined write.
+ */
+public class DepositCombiner {
+
+    private final static Logger LOG = Logger.getLogger(DepositCombiner.class.getName());
+
+    /**
+     * Writes a deposit to the database
+     */
+    interface Writer {
+        long deposit(int acctNr, long amount) throws BankingException;
+    }
+
+    /**
+     * The deposits into one account that will be written together
+     */
+    private static class Batch {
+        private long amount;
+        private int count;
+        private boolean closed;
+        private final CompletableFuture<Long> balance = new CompletableFuture<>();
+    }
+
+    private final Writer writer;
+
+    private final long windowNanos;
+
+    private final int maxCount;
+
+    /**
+     * The batches that still accept deposits, by account number
+     */
+    private final ConcurrentHashMap<Integer, Batch> open = new ConcurrentHashMap<>();
+
+    private final AtomicLong deposits = new AtomicLong(), writes = new AtomicLong();
+
+    /**
+     * Create a new DepositCombiner
+     * @param writer Writes the combined deposits
+     * @param windowMicros The time in microseconds to wait for more deposits into the same account
+     * @param maxCount The maximum number of deposits to combine in one write
+     */
+    DepositCombiner(Writer writer, long windowMicros, int maxCount) {
+        if (windowMicros < 0 || maxCount < 1) throw new IllegalArgumentException("Invalid combining window");
+        this.writer = writer;
+        this.windowNanos = TimeUnit.MICROSECONDS.toNanos(windowMicros);
+        this.maxCount = maxCount;
+    }
+
+    /**
+     * Deposit money into an account, combined with concurrent deposits into the same account
+     * @param acctNr The account number to deposit into
+     * @param amount The amount to deposit in cents
+     * @return The balance in cents after the combined deposit has taken place
+     * @throws BankingException When the account does not exist or is closed, or a database error occurs
+     */
+    long deposit(int acctNr, long amount) throws BankingException {
+        try {
+            return submit(acctNr, amount).get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof BankingException) throw (BankingException) e.getCause();
+            throw new IllegalStateException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BankingException(BankingError.DB_ERROR);
+        }
+    }
+
+    /**
+     * Add a deposit to the open batch of the account. The depositor that opened the batch writes it.
+     * @param acctNr The account number to deposit into
+     * @param amount The amount to deposit in cents
+     * @return A future of the balance in cents, that completes when the combined deposit is journaled
+     */
+    CompletableFuture<Long> submit(int acctNr, long amount) {
+        deposits.incrementAndGet();
+        while (true) {
+            boolean leader = false;
+            Batch batch = open.get(acctNr);
+            if (batch == null) {
+                Batch newBatch = new Batch();
+                batch = open.putIfAbsent(acctNr, newBatch);
+                if (batch == null) {
+                    batch = newBatch;
+                    leader = true;
+                }
+            }
+            synchronized (batch) {
+                if (batch.closed) continue; // Being written already, join the next batch
+                batch.amount += amount;
+                batch.count++;
+                if (batch.count >= maxCount) batch.notify();
+            }
+            if (leader) write(acctNr, batch);
+            return batch.balance;
+        }
+    }
+
+    /**
+     * Wait for the window to pass or the batch to fill up, then write the batch
+     */
+    private void write(int acctNr, Batch batch) {
+        long amount;
+        int count;
+        synchronized (batch) {
+            long deadline = System.nanoTime() + windowNanos;
+            long remaining = windowNanos;
+            while (batch.count < maxCount && remaining > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(batch, remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                remaining = deadline - System.nanoTime();
+            }
+            batch.closed = true;
+            open.remove(acctNr, batch);
+            amount = batch.amount;
+            count = batch.count;
+        }
+        writes.incrementAndGet();
+        try {
+            long balance = writer.deposit(acctNr, amount);
+            LOG.fine(String.format("Combined %s deposits of %s into account %s", count, Money.format(amount), acctNr));
+            batch.balance.complete(balance);
+        } catch (BankingException | RuntimeException e) {
+            batch.balance.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * @return The number of deposits
+     */
+    public long getDeposits() {
+        return deposits.get();
+    }
+
+    /**
+     * @return The number of writes the deposits were combined into
+     */
+    public long getWrites() {
+        return writes.get();
+    }
+
+    /**
+     * @return The average number of deposits per write
+     */
+    public double getCombiningRatio() {
+        long writes = this.writes.get();
+        return writes == 0 ? 0 : (double) deposits.get() / writes;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s deposits in %s writes, combining ratio %.2f", getDeposits(), getWrites(),
+                getCombiningRatio());
+    }
+}
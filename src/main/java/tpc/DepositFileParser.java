@@ -0,0 +1,110 @@
+package tpc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Parses a file of deposits with one `acctNr,amount` line per deposit, e.g. `1234,56.78`, straight from the
+ * bytes of a file channel, without creating a String or other object per line. Amounts are in dollars with at
+ * most two decimals, and are handed out in cents. Blank lines are skipped, whitespace is ignored, and any
+ * other line that does not fit the format, like a header, is reported as malformed.
+ */
+class DepositFileParser {
+
+    /**
+     * Receives the parsed lines
+     */
+    interface Handler {
+
+        /**
+         * @param acctNr The account number
+         * @param amountInCents The amount to deposit in cents
+         * @param endOffset The file offset just after the line
+         */
+        void deposit(int acctNr, long amountInCents, long endOffset) throws InterruptedException;
+
+        /**
+         * @param endOffset The file offset just after the line
+         */
+        void malformed(long endOffset) throws InterruptedException;
+    }
+
+    private final static int BUFFER_SIZE = 1 << 20;
+
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+    private long acctNr, dollars, cents;
+
+    private int field, fractionDigits;
+
+    private boolean digits, empty = true, malformed;
+
+    /**
+     * Parse a file from an offset to its end
+     * @param channel The file channel
+     * @param offset The offset to start at, which must be the start of a line
+     * @param handler Receives the parsed lines
+     * @throws IOException When the file cannot be read
+     * @throws InterruptedException When the handler is interrupted
+     */
+    void parse(FileChannel channel, long offset, Handler handler) throws IOException, InterruptedException {
+        channel.position(offset);
+        byte[] bytes = buffer.array();
+        int n;
+        while ((n = channel.read(buffer)) != -1) {
+            for (int i = 0; i < n; i++) {
+                offset++;
+                byte b = bytes[i];
+                if (b == '\n') endLine(offset, handler);
+                else parse(b);
+            }
+            buffer.clear();
+        }
+        endLine(offset, handler); // A last line without a newline
+    }
+
+    private void parse(byte b) {
+        if (b == '\r' || b == ' ' || b == '\t') return;
+        empty = false;
+        if (b >= '0' && b <= '9') {
+            int digit = b - '0';
+            switch (field) {
+                case 0:
+                    acctNr = acctNr * 10 + digit;
+                    if (acctNr > Integer.MAX_VALUE) malformed = true;
+                    break;
+                case 1:
+                    dollars = dollars * 10 + digit;
+                    if (dollars > Long.MAX_VALUE / 1000) malformed = true;
+                    break;
+                default:
+                    if (++fractionDigits > 2) malformed = true;
+                    cents = cents * 10 + digit;
+            }
+            digits = true;
+        } else if (b == ',' && field == 0 && digits) {
+            field = 1;
+            digits = false;
+        } else if (b == '.' && field == 1) {
+            field = 2;
+        } else {
+            malformed = true;
+        }
+    }
+
+    private void endLine(long endOffset, Handler handler) throws InterruptedException {
+        if (!empty) {
+            if (malformed || field == 0 || !digits && fractionDigits == 0) {
+                handler.malformed(endOffset);
+            } else {
+                handler.deposit((int) acctNr, dollars * 100 + (fractionDigits == 1 ? cents * 10 : cents),
+                        endOffset);
+            }
+        }
+        acctNr = dollars = cents = 0;
+        field = fractionDigits = 0;
+        digits = malformed = false;
+        empty = true;
+    }
+}
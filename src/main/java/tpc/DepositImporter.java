@@ -0,0 +1,353 @@
+package tpc;
+
+import com.mongodb.*;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Logger;
+
+/**
+ * Imports large files of deposits, e.g. daily settlement files or opening balances. A parser thread reads the
+ * file through a channel and groups its lines into batches, combining all deposits into the same account. A
+ * bounded queue keeps the parser at most a few batches ahead of the writers, which apply every batch with one
+ * $inc per account in unordered bulk writes, partitioned by account over a number of writer threads.
+ * <p>
+ * After every batch the file offset is checkpointed, and an interrupted import resumes from the checkpoint
+ * when it is run again with the same name. Every account remembers the last import batch applied to it, and
+ * a batch is only applied to accounts that have not seen it, so a batch that was partly applied before a crash
+ * is not applied twice. Batches are cut at the same lines when resuming, because the batch size is stored with
+ * the checkpoint. Imports must be run one at a time, and an unfinished import must be resumed before the next
+ * one is started, because every batch must come after all batches of earlier imports.
+ */
+public class DepositImporter {
+
+    private final static Logger LOG = Logger.getLogger(DepositImporter.class.getName());
+
+    /**
+     * BSON field names of the checkpoint documents
+     */
+    private final static String SEQ = "seq", BATCH_SIZE = "batchSize", OFFSET = "offset", LINES = "lines",
+            DEPOSITED = "deposited", REJECTED = "rejected", MALFORMED = "malformed", DONE = "done";
+
+    /**
+     * The number of batches the parser may be ahead of the writers
+     */
+    private final static int QUEUE_CAPACITY = 4;
+
+    /**
+     * Files are limited to 1 TiB, so the file offset fits in the lower bits of a batch key
+     */
+    private final static int OFFSET_BITS = 40;
+
+    /**
+     * A number of consecutive lines of the file, with the deposits combined per account
+     */
+    static class Batch {
+
+        final static Batch END = new Batch(-1, 0);
+
+        private final long start;
+        private long end;
+        private int lines, malformed;
+        private final Balances amounts, counts;
+
+        private Batch(long start, int batchSize) {
+            this.start = start;
+            this.end = start;
+            amounts = new Balances(batchSize);
+            counts = new Balances(batchSize);
+        }
+    }
+
+    private final MongoBank bank;
+
+    private final DBCollection accounts, imports, counters;
+
+    private final int batchSize, writers;
+
+    /**
+     * Create a new DepositImporter
+     * @param bank The bank, whose cached accounts are invalidated
+     * @param accounts The accounts collection
+     * @param imports The collection holding the import checkpoints
+     * @param counters The collection holding the counter of imports
+     * @param batchSize The number of lines per batch, for new imports
+     * @param writers The number of writer threads
+     */
+    DepositImporter(MongoBank bank, DBCollection accounts, DBCollection imports, DBCollection counters,
+                    int batchSize, int writers) {
+        if (batchSize < 1 || writers < 1) throw new IllegalArgumentException("Invalid importer settings");
+        this.bank = bank;
+        this.accounts = accounts;
+        this.imports = imports;
+        this.counters = counters;
+        this.batchSize = batchSize;
+        this.writers = writers;
+    }
+
+    /**
+     * Import a file of deposits, or resume importing it
+     * @param file The file with `acctNr,amount` lines
+     * @param name The unique name of the import, e.g. the name of the settlement file
+     * @return The outcome of the whole import, including earlier runs that were resumed
+     * @throws IOException When the file cannot be read. The import can be resumed.
+     * @throws RuntimeException When the parser failed unexpectedly. The import can be resumed.
+     * @throws BankingException When a database error occurs. The import can be resumed.
+     */
+    public ImportResult importFile(Path file, final String name) throws IOException, BankingException {
+        long start = System.nanoTime();
+        DBObject checkpoint = startOrResume(name);
+        if ((Boolean) checkpoint.get(DONE)) {
+            LOG.info(String.format("Import '%s' was already done", name));
+            return result(checkpoint, 0);
+        }
+        final long seq = ((Number) checkpoint.get(SEQ)).longValue();
+        final int batchSize = ((Number) checkpoint.get(BATCH_SIZE)).intValue();
+        final long offset = ((Number) checkpoint.get(OFFSET)).longValue();
+        final long resumedLines = ((Number) checkpoint.get(LINES)).longValue();
+        final BlockingQueue<Batch> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        final AtomicReference<Throwable> parseFailure = new AtomicReference<>();
+        ExecutorService executor = writers > 1 ? Executors.newFixedThreadPool(writers) : null;
+        try (final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() >= 1L << OFFSET_BITS) throw new IOException("File is too large to import: " + file);
+            LOG.info(String.format("%s import '%s' of %s at offset %s", offset == 0 ? "Start" : "Resume",
+                    name, file, offset));
+            Thread parser = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    parse(channel, offset, batchSize, queue, parseFailure);
+                }
+            }, "deposit-import-parser");
+            parser.start();
+            try {
+                Batch batch;
+                while ((batch = queue.take()) != Batch.END) {
+                    long[] totals = write(batch, seq << OFFSET_BITS | batch.end, executor);
+                    checkpoint = checkpoint(checkpoint, batch, totals);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while importing " + file);
+            } finally {
+                parser.interrupt();
+            }
+        } finally {
+            if (executor != null) executor.shutdownNow();
+        }
+        Throwable failure = parseFailure.get();
+        if (failure instanceof IOException) throw (IOException) failure;
+        if (failure instanceof RuntimeException) throw (RuntimeException) failure;
+        if (failure instanceof Error) throw (Error) failure;
+        try {
+            imports.update(new BasicDBObject(MongoBank.ID, name),
+                    new BasicDBObject("$set", new BasicDBObject(DONE, true)));
+        } catch (MongoException e) {
+            LOG.severe(String.format("Failed to finish import '%s': %s", name, e.getMessage()));
+            throw new BankingException(BankingError.DB_ERROR);
+        }
+        ImportResult result = result(checkpoint, (System.nanoTime() - start) / 1e9);
+        LOG.info(String.format("Finished %s, %.1f lines/s", result,
+                (result.getLines() - resumedLines) / result.getSeconds()));
+        return result;
+    }
+
+    /**
+     * Find the checkpoint of an import, or start a new import
+     */
+    private DBObject startOrResume(String name) throws BankingException {
+        try {
+            DBObject checkpoint = imports.findOne(new BasicDBObject(MongoBank.ID, name));
+            if (checkpoint != null) return checkpoint;
+            DBObject unfinished = imports.findOne(new BasicDBObject(DONE, false));
+            if (unfinished != null) {
+                throw new IllegalStateException(String.format("Import '%s' must be resumed before starting '%s'",
+                        unfinished.get(MongoBank.ID), name));
+            }
+            DBObject counter = counters.findAndModify(new BasicDBObject(MongoBank.ID, MongoBank.IMPORTS), null,
+                    null, false, new BasicDBObject("$inc", new BasicDBObject(SEQ, 1L)), true, true);
+            checkpoint = new BasicDBObject(MongoBank.ID, name)
+                    .append(SEQ, ((Number) counter.get(SEQ)).longValue())
+                    .append(BATCH_SIZE, batchSize)
+                    .append(OFFSET, 0L)
+                    .append(LINES, 0L)
+                    .append(DEPOSITED, 0L)
+                    .append(REJECTED, 0L)
+                    .append(MALFORMED, 0L)
+                    .append(MongoBank.AMOUNT, 0L)
+                    .append(DONE, false);
+            imports.insert(checkpoint);
+            return checkpoint;
+        } catch (MongoException e) {
+            LOG.severe(String.format("Failed to start import '%s': %s", name, e.getMessage()));
+            throw new BankingException(BankingError.DB_ERROR);
+        }
+    }
+
+    /**
+     * Parse the file into batches and hand them to the writers, ending with the END batch. The END batch is
+     * queued even when parsing fails, so the writers never wait for batches that will not come, and the failure
+     * is passed on to be rethrown by the import.
+     */
+    static void parse(FileChannel channel, long offset, final int batchSize, final BlockingQueue<Batch> queue,
+                      AtomicReference<Throwable> failure) {
+        final Batch[] batch = {new Batch(offset, batchSize)};
+        boolean interrupted = false;
+        try {
+            new DepositFileParser().parse(channel, offset, new DepositFileParser.Handler() {
+                @Override
+                public void deposit(int acctNr, long amountInCents, long endOffset) throws InterruptedException {
+                    Batch current = batch[0];
+                    current.amounts.put(acctNr, current.amounts.getOrDefault(acctNr, 0) + amountInCents);
+                    current.counts.put(acctNr, current.counts.getOrDefault(acctNr, 0) + 1);
+                    endLine(endOffset);
+                }
+
+                @Override
+                public void malformed(long endOffset) throws InterruptedException {
+                    batch[0].malformed++;
+                    LOG.warning(String.format("Malformed line before offset %s", endOffset));
+                    endLine(endOffset);
+                }
+
+                private void endLine(long endOffset) throws InterruptedException {
+                    Batch current = batch[0];
+                    current.end = endOffset;
+                    if (++current.lines == batchSize) {
+                        queue.put(current);
+                        batch[0] = new Batch(endOffset, batchSize);
+                    }
+                }
+            });
+            if (batch[0].lines > 0) queue.put(batch[0]);
+        } catch (IOException | RuntimeException | Error e) {
+            LOG.severe(String.format("Failed to read the import file at offset %s: %s",
+                    batch[0].start, e.getMessage()));
+            failure.set(e);
+        } catch (InterruptedException e) {
+            // The writers stopped
+            interrupted = true;
+        } finally {
+            if (!interrupted) {
+                try {
+                    queue.put(Batch.END);
+                } catch (InterruptedException e) {
+                    // The writers stopped
+                }
+            }
+        }
+    }
+
+    /**
+     * Apply the deposits of a batch to all accounts that have not seen the batch yet
+     * @param batch The batch
+     * @param key The key of the batch, higher than the keys of all earlier batches
+     * @param executor Runs the writers, or null to write on the calling thread
+     * @return The number of applied deposits, the number of rejected deposits and the applied amount in cents
+     */
+    private long[] write(final Batch batch, final long key, ExecutorService executor) throws BankingException,
+            InterruptedException {
+        final BulkWriteOperation[] bulks = new BulkWriteOperation[writers];
+        final List<Integer> acctNrs = new ArrayList<>(batch.amounts.size());
+        batch.amounts.forEach(new BalanceConsumer() {
+            @Override
+            public void accept(int acctNr, long amountInCents) {
+                int writer = Math.floorMod(acctNr, writers);
+                if (bulks[writer] == null) bulks[writer] = accounts.initializeUnorderedBulkOperation();
+                bulks[writer].find(new BasicDBObject(MongoBank.ID, acctNr).append(MongoBank.CLOSED, false)
+                        .append(MongoBank.LAST_IMPORT, new BasicDBObject("$not", new BasicDBObject("$gte", key))))
+                        .updateOne(new BasicDBObject("$inc", new BasicDBObject(MongoBank.BALANCE, amountInCents)
+                                .append(MongoBank.DEPOSITED, amountInCents))
+                                .append("$max", new BasicDBObject(MongoBank.LAST_IMPORT, key)));
+                acctNrs.add(acctNr);
+            }
+        });
+        long[] totals = new long[3];
+        try {
+            if (executor == null) {
+                for (BulkWriteOperation bulk : bulks) {
+                    if (bulk != null) bulk.execute();
+                }
+            } else {
+                List<Callable<BulkWriteResult>> tasks = new ArrayList<>(writers);
+                for (final BulkWriteOperation bulk : bulks) {
+                    if (bulk == null) continue;
+                    tasks.add(new Callable<BulkWriteResult>() {
+                        @Override
+                        public BulkWriteResult call() {
+                            return bulk.execute();
+                        }
+                    });
+                }
+                for (Future<BulkWriteResult> future : executor.invokeAll(tasks)) future.get();
+            }
+            // The accounts that do not have the batch by now do not exist or are closed
+            Set<Integer> applied = new HashSet<>(acctNrs.size());
+            DBCursor cursor = accounts.find(new BasicDBObject(MongoBank.ID, new BasicDBObject("$in", acctNrs))
+                    .append(MongoBank.LAST_IMPORT, new BasicDBObject("$gte", key)), new BasicDBObject(MongoBank.ID, 1));
+            while (cursor.hasNext()) applied.add(MongoBank.acctNrOf(cursor.next()));
+            for (int acctNr : acctNrs) {
+                bank.invalidateCachedAccount(acctNr);
+                long count = batch.counts.getOrDefault(acctNr, 0), amount = batch.amounts.getOrDefault(acctNr, 0);
+                if (applied.contains(acctNr)) {
+                    totals[0] += count;
+                    totals[2] += amount;
+                } else {
+                    totals[1] += count;
+                    LOG.warning(String.format("Rejected %s deposits of %s into account %s, which does not exist " +
+                            "or is closed", count, Money.format(amount), acctNr));
+                }
+            }
+        } catch (ExecutionException e) {
+            LOG.severe(String.format("Failed to import the batch at offset %s: %s", batch.start,
+                    e.getCause().getMessage()));
+            throw new BankingException(BankingError.DB_ERROR);
+        } catch (MongoException e) {
+            LOG.severe(String.format("Failed to import the batch at offset %s: %s", batch.start, e.getMessage()));
+            throw new BankingException(BankingError.DB_ERROR);
+        }
+        return totals;
+    }
+
+    /**
+     * Record that a batch is done, with the running totals of the import
+     * @param checkpoint The previous checkpoint
+     * @param batch The batch
+     * @param totals The number of applied deposits, the number of rejected deposits and the applied amount
+     * @return The new checkpoint
+     */
+    private DBObject checkpoint(DBObject checkpoint, Batch batch, long[] totals) throws BankingException {
+        BasicDBObject next = new BasicDBObject(checkpoint.toMap());
+        next.put(OFFSET, batch.end);
+        next.put(LINES, ((Number) checkpoint.get(LINES)).longValue() + batch.lines);
+        next.put(DEPOSITED, ((Number) checkpoint.get(DEPOSITED)).longValue() + totals[0]);
+        next.put(REJECTED, ((Number) checkpoint.get(REJECTED)).longValue() + totals[1]);
+        next.put(MALFORMED, ((Number) checkpoint.get(MALFORMED)).longValue() + batch.malformed);
+        next.put(MongoBank.AMOUNT, ((Number) checkpoint.get(MongoBank.AMOUNT)).longValue() + totals[2]);
+        try {
+            imports.update(new BasicDBObject(MongoBank.ID, checkpoint.get(MongoBank.ID)), next);
+        } catch (MongoException e) {
+            LOG.severe(String.format("Failed to checkpoint import '%s' at offset %s: %s",
+                    checkpoint.get(MongoBank.ID), batch.end, e.getMessage()));
+            throw new BankingException(BankingError.DB_ERROR);
+        }
+        LOG.fine(String.format("Imported %s lines of '%s' up to offset %s", next.get(LINES),
+                checkpoint.get(MongoBank.ID), batch.end));
+        return next;
+    }
+
+    private static ImportResult result(DBObject checkpoint, double seconds) {
+        return new ImportResult((String) checkpoint.get(MongoBank.ID),
+                ((Number) checkpoint.get(LINES)).longValue(),
+                ((Number) checkpoint.get(DEPOSITED)).longValue(),
+                ((Number) checkpoint.get(REJECTED)).longValue(),
+                ((Number) checkpoint.get(MALFORMED)).longValue(),
+                ((Number) checkpoint.get(MongoBank.AMOUNT)).longValue(),
+                seconds);
+    }
+}
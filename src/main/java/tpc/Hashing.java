@@ -0,0 +1,21 @@
+package tpc;
+
+/**
+ * The hash of account numbers shared by the hash tables and lock stripes of the bank
+ */
+final class Hashing {
+
+    private Hashing() {
+    }
+
+    /**
+     * Spread account numbers over the bits of an int, so consecutive account numbers do not fill consecutive
+     * slots, and the low bits can be used as an index
+     * @param acctNr The account number
+     * @return The hash of the account number
+     */
+    static int hash(int acctNr) {
+        int h = acctNr * 0x9E3779B9;
+        return h ^ h >>> 16;
+    }
+}
@@ -0,0 +1,19 @@
+package tpc;
+
+/**
+ * A source of unique identifiers for documents stored by the bank.
+ */
+public interface IdGenerator {
+
+    /**
+     * Get the next unique ID
+     * @return A positive ID that was never handed out before
+     * @throws BankingException When a database error occurs
+     */
+    long nextId() throws BankingException;
+
+    /**
+     * Forget any IDs that are cached locally, e.g. after the bank has been reset
+     */
+    void reset();
+}
@@ -0,0 +1,80 @@
+package tpc;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded cache of the outcomes of transfers with an idempotency key, so most retries of a finished transfer are
+ * answered without a round trip. Only final outcomes are cached, because those never change. When the cache is
+ * full, the least recently used key is evicted, and a retry with that key is looked up in the database instead.
+ */
+public class IdempotencyCache {
+
+    private final Map<String, TransferResult> results;
+
+    private final LongAdder hits = new LongAdder(), misses = new LongAdder();
+
+    /**
+     * Create a new IdempotencyCache
+     * @param capacity The maximum number of cached keys
+     */
+    IdempotencyCache(final int capacity) {
+        if (capacity < 1) throw new IllegalArgumentException("Capacity must be positive");
+        results = new LinkedHashMap<String, TransferResult>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, TransferResult> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Get the final outcome of a transfer
+     * @param key The idempotency key of the transfer
+     * @return The outcome, or null if the key is not cached
+     */
+    synchronized TransferResult get(String key) {
+        TransferResult result = results.get(key);
+        if (result == null) misses.increment();
+        else hits.increment();
+        return result;
+    }
+
+    /**
+     * Cache the final outcome of a transfer
+     * @param key The idempotency key of the transfer
+     * @param result The outcome
+     */
+    synchronized void put(String key, TransferResult result) {
+        results.put(key, result);
+    }
+
+    /**
+     * Remove all keys
+     */
+    synchronized void clear() {
+        results.clear();
+    }
+
+    /**
+     * @return The number of cached keys
+     */
+    public synchronized int size() {
+        return results.size();
+    }
+
+    /**
+     * @return The number of duplicate checks that were answered from the cache
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return The number of duplicate checks that had to go to the database
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+}
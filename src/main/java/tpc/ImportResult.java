@@ -0,0 +1,76 @@
+package tpc;
+
+/**
+ * The outcome of importing a file of deposits
+ */
+public final class ImportResult {
+
+    private final String name;
+
+    private final long lines, deposited, rejected, malformed, amountInCents;
+
+    private final double seconds;
+
+    ImportResult(String name, long lines, long deposited, long rejected, long malformed, long amountInCents,
+                 double seconds) {
+        this.name = name;
+        this.lines = lines;
+        this.deposited = deposited;
+        this.rejected = rejected;
+        this.malformed = malformed;
+        this.amountInCents = amountInCents;
+        this.seconds = seconds;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return The number of non-blank lines in the file
+     */
+    public long getLines() {
+        return lines;
+    }
+
+    /**
+     * @return The number of deposits that were applied
+     */
+    public long getDeposited() {
+        return deposited;
+    }
+
+    /**
+     * @return The number of deposits into accounts that do not exist or are closed
+     */
+    public long getRejected() {
+        return rejected;
+    }
+
+    /**
+     * @return The number of lines that could not be parsed
+     */
+    public long getMalformed() {
+        return malformed;
+    }
+
+    /**
+     * @return The total amount of the applied deposits in cents
+     */
+    public long getAmountInCents() {
+        return amountInCents;
+    }
+
+    /**
+     * @return The time this run of the import took in seconds, not counting earlier runs that were resumed
+     */
+    public double getSeconds() {
+        return seconds;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("import '%s': %s lines, %s deposited for %s, %s rejected, %s malformed in %.3f s",
+                name, lines, deposited, Money.format(amountInCents), rejected, malformed, seconds);
+    }
+}
@@ -0,0 +1,37 @@
+package tpc;
+
+/**
+ * The opening state of an account to create, e.g. when migrating accounts from another system
+ */
+public final class InitialBalance {
+
+    private final long balanceInCents;
+
+    private final boolean closed;
+
+    /**
+     * Create a new InitialBalance of an open account
+     * @param balanceInCents The opening balance in cents
+     */
+    public InitialBalance(long balanceInCents) {
+        this(balanceInCents, false);
+    }
+
+    /**
+     * Create a new InitialBalance
+     * @param balanceInCents The opening balance in cents
+     * @param closed Whether the account is closed
+     */
+    public InitialBalance(long balanceInCents, boolean closed) {
+        this.balanceInCents = balanceInCents;
+        this.closed = closed;
+    }
+
+    public long getBalanceInCents() {
+        return balanceInCents;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+}
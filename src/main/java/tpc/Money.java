@@ -0,0 +1,66 @@
+package tpc;
+
+/**
+ * Amounts of money are represented as a primitive long number of cents, which is stored as a BSON int64.
+ * Adding cents is exact, also with $inc in the database. This class converts between cents and the float
+ * dollar amounts of the public API.
+ */
+public final class Money {
+
+    private final static int CENTS_PER_DOLLAR = 100;
+
+    private Money() {}
+
+    /**
+     * Convert a dollar amount to cents, rounding to the nearest cent
+     * @param amount The amount in dollars
+     * @return The amount in cents
+     */
+    public static long toCents(float amount) {
+        return Math.round((double) amount * CENTS_PER_DOLLAR);
+    }
+
+    /**
+     * Convert a dollar amount to cents, rounding to the nearest cent
+     * @param amount The amount in dollars
+     * @return The amount in cents
+     */
+    public static long toCents(double amount) {
+        return Math.round(amount * CENTS_PER_DOLLAR);
+    }
+
+    /**
+     * Convert cents to a dollar amount
+     * @param cents The amount in cents
+     * @return The amount in dollars
+     */
+    public static float toDollars(long cents) {
+        return (float) ((double) cents / CENTS_PER_DOLLAR);
+    }
+
+    /**
+     * Format an amount for logging, e.g. $12.34 or -$0.05
+     * @param cents The amount in cents
+     * @return The formatted amount
+     */
+    public static String format(long cents) {
+        long abs = Math.abs(cents);
+        StringBuilder sb = new StringBuilder(16);
+        if (cents < 0) sb.append('-');
+        sb.append('$').append(abs / CENTS_PER_DOLLAR).append('.');
+        long fraction = abs % CENTS_PER_DOLLAR;
+        if (fraction < 10) sb.append('0');
+        return sb.append(fraction).toString();
+    }
+
+    /**
+     * Get an amount in cents from a BSON value. Amounts of documents that were not migrated yet are doubles in
+     * dollars, see MongoBank.migrateToCents().
+     * @param value A BSON int64, int32 or legacy double
+     * @return The amount in cents
+     */
+    static long centsOf(Object value) {
+        if (value instanceof Double) return toCents(((Double) value).doubleValue());
+        return ((Number) value).longValue();
+    }
+}
@@ -2,8 +2,12 @@ package tpc;
 
 import com.mongodb.*;
 
+import java.io.IOException;
 import java.net.UnknownHostException;
-import java.util.Date;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 
 /**
@@ -17,9 +21,22 @@ public class MongoBank {
     /**
      * BSON field names
      */
-    private final static String CLOSED = "closed", BALANCE = "balance", PENDING_TXNS = "pendingTransactions",
+    final static String CLOSED = "closed", BALANCE = "balance", PENDING_TXNS = "pendingTransactions",
     ID = "_id", LAST_MOD = "lastModified", SRC = "source", DEST = "destination", AMOUNT = "value", STATE = "state",
-    DB = "mongobank", ACCOUNTS = "accounts", TXNS = "transactions";
+    DB = "mongobank", ACCOUNTS = "accounts", TXNS = "transactions", COUNTERS = "counters",
+    TXN_ARCHIVE = "transactionArchive", IMPORTS = "imports", LAST_IMPORT = "lastImport", DEPOSITED = "deposited",
+    WITHDRAWN = "withdrawn", IDEMPOTENCY_KEY = "idempotencyKey", STRIPES = "stripes", STRIPE_OF = "stripeOf",
+    NODE_LEASES = "nodeLeases";
+
+    /**
+     * The number of account numbers leased from the account counter at once
+     */
+    private final static int ACCOUNT_ID_BLOCK_SIZE = 100;
+
+    /**
+     * The number of transaction numbers leased from the transaction counter at once
+     */
+    private final static int TXN_ID_BLOCK_SIZE = 1000;
 
     /**
      * The one and only mongo bank
@@ -29,33 +46,253 @@ public class MongoBank {
     /**
      * Mongo collections
      */
-    private DBCollection accounts, transactions;
+    private MongoClient mongoClient;
+
+    private DBCollection accounts, transactions, counters, transactionArchive, imports, nodeLeases;
+
+    /**
+     * Source of new account numbers
+     */
+    private BlockIdGenerator accountIds;
+
+    /**
+     * Source of new transaction numbers
+     */
+    private volatile IdGenerator transactionIds;
+
+    /**
+     * Combines concurrent deposits into the same account, if enabled
+     */
+    private volatile DepositCombiner depositCombiner;
+
+    /**
+     * Serializes transfers on the same accounts within this JVM, if enabled
+     */
+    private volatile AccountLockManager accountLocks;
+
+    /**
+     * Caches balances and closed flags of accounts, if enabled
+     */
+    private volatile AccountCache accountCache;
+
+    /**
+     * Remembers the final outcomes of recent transfers with an idempotency key
+     */
+    private final IdempotencyCache idempotencyCache = new IdempotencyCache(IDEMPOTENCY_CACHE_SIZE);
+
+    /**
+     * Limits the number of deposits, withdrawals and transfers in flight, if enabled
+     */
+    private volatile AdmissionController admissionController;
+
+    /**
+     * The stripes of striped accounts, by account number, with the account itself as the first stripe
+     */
+    private final ConcurrentHashMap<Integer, int[]> stripedAccounts = new ConcurrentHashMap<>();
+
+    /**
+     * Recovers stuck transactions in the background, if started
+     */
+    private RecoveryDaemon recoveryDaemon;
+
+    /**
+     * Recovers stuck transactions driven by oplog events, if started
+     */
+    private TransactionTailer transactionTailer;
+
+    /**
+     * Archives done and canceled transactions in the background, if started
+     */
+    private TransactionArchiver transactionArchiver;
 
     /**
      * Age of transactions that are considered incomplete
      */
     private long ageOfTransactionsRequiringRecovery = 5000; // in ms
 
+    /**
+     * The number of parallel workers recovering transactions
+     */
+    private int recoveryParallelism = 1;
+
+    /**
+     * The workers recovering the partitions of transactions in parallel, shared by all recoveries. Idle workers
+     * die after a minute, so the bank holds no threads while nothing is recovered.
+     */
+    private final ExecutorService recoveryWorkers = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "recovery-worker");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * The number of recovered transactions between progress reports
+     */
+    private final static int RECOVERY_PROGRESS_INTERVAL = 1000;
+
+    /**
+     * The number of transactions that are canceled with one bulk write
+     */
+    private final static int CANCEL_BATCH_SIZE = 1000;
+
+    /**
+     * The number of accounts inserted with one bulk write when creating many accounts
+     */
+    private int accountBatchSize = 1000;
+
+    /**
+     * The number of created accounts between progress reports
+     */
+    private final static int ACCOUNT_PROGRESS_INTERVAL = 100000;
+
+    /**
+     * The number of accounts fetched per round trip when reading many balances
+     */
+    private final static int BALANCE_BATCH_SIZE = 1000;
+
+    /**
+     * The number of transactions that are archived at once
+     */
+    private final static int ARCHIVE_BATCH_SIZE = 1000;
+
+    /**
+     * The states of transactions that are in flight, which have a partial index each
+     */
+    final static String[] IN_FLIGHT_STATES = {TxnState.INITIAL, TxnState.PENDING, TxnState.APPLIED,
+            TxnState.CANCELING};
+
+    /**
+     * The number of idempotency keys whose transfer outcomes are kept in memory
+     */
+    private final static int IDEMPOTENCY_CACHE_SIZE = 10000;
+
     /**
      * Create a new MongoBank
      * @throws BankingException In the unlikely case that localhost is not recognized
      */
     private MongoBank() throws BankingException {
         try {
-            MongoClient mongoClient = new MongoClient();
+            mongoClient = new MongoClient();
             DB db = mongoClient.getDB(DB);
             accounts = db.getCollection(ACCOUNTS);
             accounts.setWriteConcern(WriteConcern.JOURNALED);
             transactions = db.getCollection(TXNS);
             transactions.setWriteConcern(WriteConcern.JOURNALED);
+            counters = db.getCollection(COUNTERS);
+            counters.setWriteConcern(WriteConcern.JOURNALED);
+            transactionArchive = db.getCollection(TXN_ARCHIVE);
+            transactionArchive.setWriteConcern(WriteConcern.JOURNALED);
+            imports = db.getCollection(IMPORTS);
+            imports.setWriteConcern(WriteConcern.JOURNALED);
+            nodeLeases = db.getCollection(NODE_LEASES);
+            nodeLeases.setWriteConcern(WriteConcern.JOURNALED);
+            accountIds = new BlockIdGenerator(counters, ACCOUNTS, accounts, ACCOUNT_ID_BLOCK_SIZE);
+            transactionIds = new BlockIdGenerator(counters, TXNS, transactions, TXN_ID_BLOCK_SIZE);
+            ensureIndexes();
+            verifyIndexes();
+            loadStripedAccounts();
             LOG.info("Bank open for business");
-        } catch (UnknownHostException e) {
+        } catch (UnknownHostException | MongoException e) {
             String msg = String.format("Bank failed to open: %s", e.getMessage());
             LOG.severe(msg);
             throw new BankingException(BankingError.DB_ERROR);
         }
     }
 
+    /**
+     * Create the indexes of the queries that recovery, cancellation and transfers do on transactions. They are
+     * partial indexes on a single non-terminal state each, so they only hold the transactions that are in
+     * flight, no matter how long the history of done and canceled transactions gets. The state is the first key
+     * of the index, so queries on the state alone use it as well as queries on the state and lastModified.
+     * The index of the 'initial' state is on source and destination instead, which transfers look up.
+     * Idempotency keys get a
+     * unique index, which makes sure no two transactions are ever created for the same key, in the transactions
+     * as well as in the archive they are moved to. Striped accounts
+     * are found with a sparse index on their stripes.
+     */
+    private void ensureIndexes() {
+        Set<String> indexNames = new HashSet<>();
+        for (DBObject index : transactions.getIndexInfo()) indexNames.add((String) index.get("name"));
+        // Earlier versions left out the state, so queries on the state alone could not use the indexes
+        for (String legacy : new String[]{TxnState.INITIAL + "_" + SRC + "_" + DEST, TxnState.PENDING + "_" + LAST_MOD,
+                TxnState.APPLIED + "_" + LAST_MOD, TxnState.CANCELING + "_" + LAST_MOD}) {
+            if (indexNames.contains(legacy)) transactions.dropIndex(legacy);
+        }
+        for (String state : IN_FLIGHT_STATES) {
+            BasicDBObject keys = new BasicDBObject(STATE, 1);
+            if (state.equals(TxnState.INITIAL)) keys.append(SRC, 1).append(DEST, 1);
+            else keys.append(LAST_MOD, 1);
+            transactions.createIndex(keys, new BasicDBObject("name", stateIndexName(state))
+                    .append("partialFilterExpression", new BasicDBObject(STATE, state)));
+        }
+        transactions.createIndex(new BasicDBObject(IDEMPOTENCY_KEY, 1), new BasicDBObject("name", IDEMPOTENCY_KEY)
+                .append("unique", true).append("sparse", true));
+        for (DBObject index : transactionArchive.getIndexInfo()) {
+            // Earlier versions did not make the idempotency keys of the archive unique
+            if (IDEMPOTENCY_KEY.equals(index.get("name")) && !Boolean.TRUE.equals(index.get("unique"))) {
+                transactionArchive.dropIndex(IDEMPOTENCY_KEY);
+            }
+        }
+        transactionArchive.createIndex(new BasicDBObject(IDEMPOTENCY_KEY, 1), new BasicDBObject("name", IDEMPOTENCY_KEY)
+                .append("unique", true).append("sparse", true));
+        accounts.createIndex(new BasicDBObject(STRIPES, 1), new BasicDBObject("name", STRIPES).append("sparse", true));
+        LOG.info("Indexes are in place");
+    }
+
+    /**
+     * @return The name of the partial index on the transactions in a state
+     */
+    static String stateIndexName(String state) {
+        if (state.equals(TxnState.INITIAL)) return state + "_" + STATE + "_" + SRC + "_" + DEST;
+        return state + "_" + STATE + "_" + LAST_MOD;
+    }
+
+    /**
+     * Check with explain that the hot queries on transactions use their indexes, and warn if they do not. These
+     * are the queries on the state alone, which cancellation, reconciliation and the tailer do, on the state and
+     * lastModified, which recovery does, and on the source and destination of new transactions.
+     * @return Whether all queries use their index
+     */
+    boolean verifyIndexes() {
+        Date now = new Date();
+        boolean used = true;
+        for (String state : IN_FLIGHT_STATES) {
+            used &= verifyIndex(new BasicDBObject(STATE, state), stateIndexName(state));
+            used &= verifyIndex(new BasicDBObject(STATE, state).append(LAST_MOD, new BasicDBObject("$lt", now)),
+                    stateIndexName(state));
+        }
+        used &= verifyIndex(new BasicDBObject(SRC, 1).append(DEST, 2).append(STATE, TxnState.INITIAL),
+                stateIndexName(TxnState.INITIAL));
+        return used;
+    }
+
+    /**
+     * Explain a query on transactions and check that its winning plan uses an index
+     * @param query The query to explain
+     * @param indexName The name of the index the query should use
+     * @return Whether the query uses the index
+     */
+    private boolean verifyIndex(DBObject query, String indexName) {
+        CommandResult explain = transactions.getDB().command(new BasicDBObject("explain",
+                new BasicDBObject("find", transactions.getName()).append("filter", query))
+                .append("verbosity", "queryPlanner"));
+        if (!explain.ok()) {
+            LOG.warning(String.format("Could not explain query %s: %s", query, explain.getErrorMessage()));
+            return false;
+        }
+        Object plan = explain.get("queryPlanner") instanceof DBObject ?
+                ((DBObject) explain.get("queryPlanner")).get("winningPlan") : null;
+        if (plan != null && plan.toString().contains(indexName)) {
+            LOG.info(String.format("Query %s uses index %s", query, indexName));
+            return true;
+        }
+        LOG.warning(String.format("Query %s does not use index %s, plan: %s", query, indexName, plan));
+        return false;
+    }
+
     /**
      * Get a singleton MongoBank
      * @return
@@ -82,6 +319,151 @@ public class MongoBank {
         this.ageOfTransactionsRequiringRecovery = ageInMs;
     }
 
+    /**
+     * Get the source of new transaction numbers
+     * @return The transaction ID generator
+     */
+    public IdGenerator getTransactionIdGenerator() {
+        return transactionIds;
+    }
+
+    /**
+     * Set the source of new transaction numbers. By default transaction numbers are leased in blocks from a
+     * counter document.
+     * @param generator The transaction ID generator
+     */
+    public void setTransactionIdGenerator(IdGenerator generator) {
+        this.transactionIds = generator;
+    }
+
+    /**
+     * Create a generator of time-ordered 64-bit transaction IDs, with a node ID that is unique among the bank
+     * instances sharing this database. The node ID is leased until the generator is released, or until this
+     * instance stops renewing the lease.
+     * @return A new TimeOrderedIdGenerator
+     * @throws BankingException NODE_IDS_EXHAUSTED when every node ID is leased, or when a database error occurs
+     */
+    public TimeOrderedIdGenerator newTimeOrderedIdGenerator() throws BankingException {
+        return TimeOrderedIdGenerator.lease(nodeLeases);
+    }
+
+    /**
+     * Get the number of parallel workers recovering transactions
+     * @return The number of workers
+     */
+    public int getRecoveryParallelism() {
+        return recoveryParallelism;
+    }
+
+    /**
+     * Set the number of parallel workers recovering transactions
+     * @param parallelism The number of workers
+     */
+    public void setRecoveryParallelism(int parallelism) {
+        if (parallelism < 1) throw new IllegalArgumentException("Parallelism must be positive");
+        this.recoveryParallelism = parallelism;
+    }
+
+    /**
+     * Start recovering stuck transactions in the background
+     * @param minIntervalMs The time between scans while stuck transactions are found
+     * @param maxIntervalMs The maximum time between scans while no stuck transactions are found
+     * @return The recovery daemon
+     */
+    public synchronized RecoveryDaemon startRecoveryDaemon(long minIntervalMs, long maxIntervalMs) {
+        stopRecoveryDaemon();
+        recoveryDaemon = new RecoveryDaemon(this, minIntervalMs, maxIntervalMs);
+        recoveryDaemon.start();
+        return recoveryDaemon;
+    }
+
+    /**
+     * Stop recovering stuck transactions in the background
+     */
+    public synchronized void stopRecoveryDaemon() {
+        if (recoveryDaemon != null) {
+            recoveryDaemon.stop();
+            recoveryDaemon = null;
+        }
+    }
+
+    /**
+     * Get the recovery daemon, to see what it recovered
+     * @return The recovery daemon, or null if it was not started
+     */
+    public synchronized RecoveryDaemon getRecoveryDaemon() {
+        return recoveryDaemon;
+    }
+
+    /**
+     * Start recovering stuck transactions driven by the oplog instead of scans. Needs a replica set.
+     * @return The transaction tailer
+     * @throws BankingException When there is no oplog or a database error occurs
+     */
+    public synchronized TransactionTailer startTransactionTailer() throws BankingException {
+        stopTransactionTailer();
+        TransactionTailer tailer = new TransactionTailer(this, mongoClient.getDB("local"), transactions);
+        tailer.start();
+        transactionTailer = tailer;
+        return tailer;
+    }
+
+    /**
+     * Stop recovering stuck transactions driven by the oplog
+     */
+    public synchronized void stopTransactionTailer() {
+        if (transactionTailer != null) {
+            transactionTailer.stop();
+            transactionTailer = null;
+        }
+    }
+
+    /**
+     * Get the transaction tailer, to see what it recovered
+     * @return The transaction tailer, or null if it was not started
+     */
+    public synchronized TransactionTailer getTransactionTailer() {
+        return transactionTailer;
+    }
+
+    /**
+     * Start moving done and canceled transactions out of the live transactions collection in the background
+     * @param retentionMs The minimum age of a done or canceled transaction before it is archived, in ms
+     * @param batchSize The number of transactions to move at once
+     * @param maxPerSecond The maximum number of transactions to move per second
+     * @return The transaction archiver
+     */
+    public synchronized TransactionArchiver startTransactionArchiver(long retentionMs, int batchSize,
+                                                                     int maxPerSecond) {
+        stopTransactionArchiver();
+        transactionArchiver = new TransactionArchiver(transactions, transactionArchive, retentionMs, batchSize,
+                maxPerSecond);
+        transactionArchiver.start();
+        return transactionArchiver;
+    }
+
+    /**
+     * Stop archiving transactions in the background
+     */
+    public synchronized void stopTransactionArchiver() {
+        if (transactionArchiver != null) {
+            transactionArchiver.stop();
+            transactionArchiver = null;
+        }
+    }
+
+    /**
+     * Move all done and canceled transactions older than the retention window out of the live transactions
+     * collection at once
+     * @param retentionMs The minimum age of a done or canceled transaction before it is archived, in ms
+     * @return The number of archived transactions
+     * @throws BankingException When a database error occurs
+     */
+    public long archiveTransactions(long retentionMs) throws BankingException {
+        return new TransactionArchiver(transactions, transactionArchive, retentionMs, ARCHIVE_BATCH_SIZE,
+                Integer.MAX_VALUE).archiveAll();
+    }
+
     /**
      * Reset the bank to initial state, without any data
      * @throws BankingException
@@ -90,25 +472,91 @@ public class MongoBank {
         try {
             accounts.remove(new BasicDBObject());
             transactions.remove(new BasicDBObject());
+            counters.remove(new BasicDBObject());
+            transactionArchive.remove(new BasicDBObject());
+            imports.remove(new BasicDBObject());
+            nodeLeases.remove(new BasicDBObject());
+            accountIds.reset();
+            transactionIds.reset();
+            clearAccountCache();
+            idempotencyCache.clear();
+            stripedAccounts.clear();
         } catch (MongoException e) {
             LOG.severe(String.format("Failed while resetting: %s", e.getMessage()));
             throw new BankingException(BankingError.DB_ERROR);
         }
     }
 
+    /**
+     * Migrate documents that store amounts as doubles in dollars to int64 cents, and give accounts created
+     * before deposits and withdrawals were totalled a total deposited of their balance and nothing withdrawn, so
+     * they can be reconciled. Run this once, before any money is moved by this version of the bank. It is safe
+     * to run more than once or while other bank instances are migrating, because every document is only
+     * converted when it still holds the amount it was read with.
+     * @return The number of documents that were migrated
+     * @throws BankingException When a database error occurs
+     */
+    public long migrateToCents() throws BankingException {
+        try {
+            long migrated = migrateToCents(accounts, BALANCE) + migrateToCents(transactions, AMOUNT);
+            migrated += backfillTotals();
+            clearAccountCache();
+            LOG.info(String.format("Migrated %s documents to amounts in cents", migrated));
+            return migrated;
+        } catch (MongoException e) {
+            LOG.severe(String.format("Failed to migrate to amounts in cents: %s", e.getMessage()));
+            throw new BankingException(BankingError.DB_ERROR);
+        }
+    }
+
+    /**
+     * Migrate an amount field of all documents in a collection from double dollars to int64 cents
+     * @param collection The collection to migrate
+     * @param field The name of the amount field
+     * @return The number of documents that were migrated
+     */
+    private long migrateToCents(DBCollection collection, String field) {
+        long migrated = 0;
+        DBCursor cursor = collection.find(new BasicDBObject(field, new BasicDBObject("$type", 1)),
+                new BasicDBObject(field, 1));
+        while (cursor.hasNext()) {
+            DBObject doc = cursor.next();
+            Object dollars = doc.get(field);
+            WriteResult result = collection.update(new BasicDBObject(ID, doc.get(ID)).append(field, dollars),
+                    new BasicDBObject("$set", new BasicDBObject(field, Money.centsOf(dollars))));
+            migrated += result.getN();
+        }
+        return migrated;
+    }
+
+    /**
+     * Set the total deposited to the balance and the total withdrawn to zero, for accounts without totals
+     * @return The number of accounts that were migrated
+     */
+    private long backfillTotals() {
+        long migrated = 0;
+        DBCursor cursor = accounts.find(new BasicDBObject(DEPOSITED, new BasicDBObject("$exists", false)),
+                new BasicDBObject(BALANCE, 1));
+        while (cursor.hasNext()) {
+            DBObject account = cursor.next();
+            Object balance = account.get(BALANCE);
+            WriteResult result = accounts.update(new BasicDBObject(ID, account.get(ID)).append(BALANCE, balance)
+                            .append(DEPOSITED, new BasicDBObject("$exists", false)),
+                    new BasicDBObject("$set", new BasicDBObject(DEPOSITED, balance).append(WITHDRAWN, 0L)));
+            migrated += result.getN();
+        }
+        return migrated;
+    }
+
     /**
      * Create a new account
      * @return The account number of the created account
      * @throws BankingException When a database error occurs
      */
-    public synchronized int createAccount() throws BankingException {
+    public int createAccount() throws BankingException {
         final int acctNr = getNewAccountNumber();
-        BasicDBObject accountA = new BasicDBObject(ID, acctNr)
-                .append(CLOSED, false)
-                .append(BALANCE, new Double(0.0))
-                .append(PENDING_TXNS, new String[]{});
         try {
-            accounts.insert(accountA);
+            accounts.insert(newAccount(acctNr, 0, false));
         } catch (MongoException e) {
             String msg = String.format("Failed to create new account: %s", e.getMessage());
             LOG.severe(msg);
@@ -119,177 +567,1464 @@ public class MongoBank {
     }
 
     /**
-     * Close an account
-     * @param acctNr The account number to close
+     * Create a number of accounts with a zero balance. Their account numbers are reserved as one consecutive
+     * range with a single round trip, and the accounts are inserted with unordered bulk writes.
+     * @param count The number of accounts to create
+     * @return The account numbers of the created accounts
      * @throws BankingException When a database error occurs
      */
-    public void closeAccount(int acctNr) throws BankingException {
-        DBObject account = findAccount(acctNr);
-        boolean closed = (Boolean) account.get(CLOSED);
-        if (closed) {
-            LOG.warning(String.format("Account %s was already closed.", acctNr));
-            return;
+    public AccountRange createAccounts(int count) throws BankingException {
+        if (count < 1) throw new IllegalArgumentException("Count must be positive");
+        AccountRange range = leaseAccountNumbers(count);
+        long start = System.nanoTime();
+        List<DBObject> batch = new ArrayList<>(Math.min(count, accountBatchSize));
+        for (long acctNr = range.getFirst(); acctNr <= range.getLast(); acctNr++) {
+            batch.add(newAccount((int) acctNr, 0, false));
+            if (batch.size() == accountBatchSize || acctNr == range.getLast()) {
+                insertAccounts(batch);
+                reportAccountCreation(acctNr - range.getFirst() + 1, batch.size(), start);
+                batch.clear();
+            }
         }
-        try {
-            accounts.update(new BasicDBObject(ID, acctNr), new BasicDBObject("$set", new BasicDBObject(CLOSED, true)));
-            LOG.info(String.format("Closed account %s", acctNr));
-        } catch (MongoException e) {
-            LOG.severe(String.format("Failed to close account %s", acctNr));
+        LOG.info(String.format("Created %s in %.3f s", range, (System.nanoTime() - start) / 1e9));
+        return range;
+    }
+
+    /**
+     * Create an account for every initial balance, without holding them all in memory. A consecutive range of
+     * account numbers is reserved for every batch, so when other accounts are created at the same time, the
+     * accounts may be spread over more than one range.
+     * @param initialBalances The opening states of the accounts to create, in account number order
+     * @return The ranges of account numbers of the created accounts, in order
+     * @throws BankingException When a database error occurs. The accounts of earlier batches remain created.
+     */
+    public List<AccountRange> createAccounts(Iterator<InitialBalance> initialBalances) throws BankingException {
+        List<AccountRange> ranges = new ArrayList<>();
+        List<InitialBalance> pending = new ArrayList<>(accountBatchSize);
+        List<DBObject> batch = new ArrayList<>(accountBatchSize);
+        long start = System.nanoTime();
+        long created = 0;
+        while (initialBalances.hasNext()) {
+            pending.add(initialBalances.next());
+            if (pending.size() < accountBatchSize && initialBalances.hasNext()) continue;
+            AccountRange range = leaseAccountNumbers(pending.size());
+            for (int i = 0; i < pending.size(); i++) {
+                InitialBalance initialBalance = pending.get(i);
+                batch.add(newAccount(range.getFirst() + i, initialBalance.getBalanceInCents(),
+                        initialBalance.isClosed()));
+            }
+            insertAccounts(batch);
+            created += batch.size();
+            reportAccountCreation(created, batch.size(), start);
+            // Merge with the previous range if no other accounts were created in between
+            AccountRange previous = ranges.isEmpty() ? null : ranges.get(ranges.size() - 1);
+            if (previous != null && previous.getLast() + 1 == range.getFirst()) {
+                ranges.set(ranges.size() - 1, new AccountRange(previous.getFirst(), range.getLast()));
+            } else {
+                ranges.add(range);
+            }
+            pending.clear();
+            batch.clear();
         }
+        LOG.info(String.format("Created %s accounts in %s ranges in %.3f s", created, ranges.size(),
+                (System.nanoTime() - start) / 1e9));
+        return ranges;
     }
 
     /**
-     * Get the balance of an account
-     * @param acctNr The account number for which to get the balance
-     * @return The account number
-     * @throws BankingException When the account does not exist or a database error occurs
+     * @return The number of accounts inserted with one bulk write when creating many accounts
      */
-    public float getBalance(int acctNr) throws BankingException {
-        DBObject account = findAccount(acctNr);
-        return new Float((Double) account.get(BALANCE));
+    public int getAccountBatchSize() {
+        return accountBatchSize;
     }
 
     /**
-     * Check if an account is closed
-     * @param acctNr
-     * @return
-     * @throws BankingException
+     * @param batchSize The number of accounts inserted with one bulk write when creating many accounts
      */
-    public boolean isClosed(int acctNr) throws BankingException {
-        DBObject account = findAccount(acctNr);
-        return (boolean) account.get(CLOSED);
+    public void setAccountBatchSize(int batchSize) {
+        if (batchSize < 1) throw new IllegalArgumentException("Batch size must be positive");
+        this.accountBatchSize = batchSize;
     }
 
-    public float deposit(int acctNr, float amount) throws BankingException {
+    /**
+     * Reserve a range of consecutive account numbers, bypassing the block of this bank instance
+     * @param count The number of account numbers
+     * @return The reserved range
+     * @throws BankingException When a database error occurs or the account numbers are exhausted
+     */
+    private AccountRange leaseAccountNumbers(int count) throws BankingException {
+        long last = accountIds.lease(count);
+        if (last > Integer.MAX_VALUE) {
+            LOG.severe(String.format("Account numbers up to %s are out of range", last));
+            throw new BankingException(BankingError.DB_ERROR);
+        }
+        return new AccountRange((int) last - count + 1, (int) last);
+    }
+
+    /**
+     * Create the document of a new account. The opening balance counts as deposited, for reconciliation.
+     * @param acctNr The account number
+     * @param balance The balance in cents
+     * @param closed Whether the account is closed
+     * @return The account document
+     */
+    private static DBObject newAccount(int acctNr, long balance, boolean closed) {
+        return new BasicDBObject(ID, acctNr)
+                .append(CLOSED, closed)
+                .append(BALANCE, balance)
+                .append(DEPOSITED, balance)
+                .append(WITHDRAWN, 0L)
+                .append(PENDING_TXNS, new String[]{});
+    }
+
+    /**
+     * Insert a batch of new accounts with a single unordered bulk write
+     * @param batch The account documents
+     * @throws BankingException When a database error occurs
+     */
+    private void insertAccounts(List<DBObject> batch) throws BankingException {
+        BulkWriteOperation bulk = accounts.initializeUnorderedBulkOperation();
+        for (DBObject account : batch) bulk.insert(account);
         try {
-            accounts.update(new BasicDBObject(ID, acctNr),
-                    new BasicDBObject("$inc", new BasicDBObject(BALANCE, new Float(amount))));
-            LOG.info(String.format("Deposited $%.2f into account %s", amount, acctNr));
-            return getBalance(acctNr);
+            bulk.execute();
         } catch (MongoException e) {
-            String msg = String.format("Failed to deposit $%.2f into account %s: %s", amount, acctNr, e.getMessage());
-            LOG.severe(msg);
+            LOG.severe(String.format("Failed to create accounts %s to %s: %s", batch.get(0).get(ID),
+                    batch.get(batch.size() - 1).get(ID), e.getMessage()));
             throw new BankingException(BankingError.DB_ERROR);
         }
+        LOG.fine(String.format("Created accounts %s to %s", batch.get(0).get(ID), batch.get(batch.size() - 1).get(ID)));
     }
 
     /**
-     * Withdraw money from an account
-     * @param acctNr The account number to withdraw from
-     * @param amount The amount to withdraw
-     * @return The balance after the withdraw has taken place
-     * @throws BankingException
+     * Report the progress of creating many accounts, whenever another progress interval is passed
+     * @param created The number of accounts created so far
+     * @param batchSize The number of accounts created by the last batch
+     * @param start The start time in ns
      */
-    public float withdraw(int acctNr, float amount) throws BankingException {
-        DBObject account = findAccount(acctNr);
-        boolean closed = (boolean) account.get(CLOSED);
-        if (closed) {
-            LOG.severe(String.format("Cannot withdraw $%.2f from account %s because it is closed.",
-                    amount, acctNr));
-            throw new BankingException(BankingError.CLOSED_ACCOUNT);
-        }
-        double balance = (Double) account.get(BALANCE);
-        if (amount > balance) {
-            String msg = String.format("Can't withdraw $%.2f from account %s because of insufficient balance $%.2f",
-                    amount, acctNr, balance);
-            LOG.severe(msg);
-            throw new BankingException(BankingError.INSUFFICIENT_BALANCE);
-        } else {
-            try {
-                accounts.update(new BasicDBObject(ID, new Integer(acctNr)),
-                        new BasicDBObject("$inc", new BasicDBObject(BALANCE, -new Float(amount))));
-            } catch (MongoException e) {
-                String msg = String.format("Failed to withdraw $%.2f from account %s: %s", amount, acctNr, e.getMessage());
-                LOG.severe(msg);
-                throw new BankingException(BankingError.DB_ERROR);
-            }
+    private void reportAccountCreation(long created, int batchSize, long start) {
+        if ((created - batchSize) / ACCOUNT_PROGRESS_INTERVAL != created / ACCOUNT_PROGRESS_INTERVAL) {
+            LOG.info(String.format("Created %s accounts, %.1f/s", created,
+                    created / ((System.nanoTime() - start) / 1e9)));
         }
-        LOG.info(String.format("$%.2f was withdrawn from account %s", amount, acctNr));
-        return getBalance(acctNr);
     }
 
     /**
-     * Transfer money from one account to another
-     * @param srcAcctNr The source of the transfer
-     * @param destAcctNr The destination of the transfer
-     * @param amount The amount to transfer from source to destination
-     * @throws BankingException
+     * Export the balances of all accounts to a directory, splitting the accounts into ranges that are exported
+     * in parallel
+     * @param dir The directory to write the snapshot to
+     * @param parallelism The number of ranges exported at once
+     * @return The snapshot, which can be opened again with AccountSnapshot.load
+     * @throws IOException When a file cannot be written
+     * @throws BankingException When a database error occurs
      */
-    public void transfer(int srcAcctNr, int destAcctNr, float amount) throws BankingException {
-        transfer(srcAcctNr, destAcctNr, amount, null);
+    public AccountSnapshot exportSnapshot(Path dir, int parallelism) throws IOException, BankingException {
+        return AccountSnapshot.export(accounts, dir, parallelism);
     }
 
-    public void transfer(int srcAcctNr, int destAcctNr, float amount, String failState)
-            throws BankingException {
-
-        // Check that the balance of the source account is sufficient
-        DBObject srcAccount = findAccount(srcAcctNr);
-        double balance = (Double) srcAccount.get(BALANCE);
-        if (amount > balance) {
-            String msg = String.format("Balance $%.2f in account %s is insufficient to transfer $%.2f to account %s",
-                    balance, srcAccount, amount, destAcctNr);
-            LOG.severe(msg);
-            throw new BankingException(BankingError.INSUFFICIENT_BALANCE);
-        }
-
-        // Start a transaction
-        DBObject transaction = createTransaction(srcAcctNr, destAcctNr, amount);
-        int txnID = (Integer) transaction.get(ID);
+    /**
+     * Check that the balances of all accounts add up to all deposits minus all withdrawals, and that every
+     * pending transaction of an account is a transaction in flight of that account
+     * @param parallelism The number of account ranges scanned at once
+     * @return The report
+     * @throws BankingException When a database error occurs
+     */
+    public ReconciliationReport reconcile(int parallelism) throws BankingException {
+        return new Reconciler(accounts, transactions, parallelism).reconcile();
+    }
 
-        // Find the transaction
-        findTransaction(srcAcctNr, destAcctNr, TxnState.INITIAL);
+    /**
+     * Create an importer of files of deposits
+     * @param batchSize The number of lines applied at once
+     * @param writers The number of threads applying a batch, each for its own part of the accounts
+     * @return The importer
+     */
+    public DepositImporter newDepositImporter(int batchSize, int writers) {
+        return new DepositImporter(this, accounts, imports, counters, batchSize, writers);
+    }
+
+    /**
+     * Close an account
+     * @param acctNr The account number to close
+     * @throws BankingException When a database error occurs
+     */
+    public void closeAccount(int acctNr) throws BankingException {
+        DBObject account = findAccount(acctNr, CLOSED, STRIPES);
+        if (closedOf(account)) {
+            LOG.warning(String.format("Account %s was already closed.", acctNr));
+            return;
+        }
+        // The stripes of a striped account are closed with it
+        int[] stripes = stripesOf(account);
+        List<Integer> acctNrs = new ArrayList<>(stripes.length);
+        for (int stripe : stripes) acctNrs.add(stripe);
+        try {
+            accounts.update(new BasicDBObject(ID, new BasicDBObject("$in", acctNrs)),
+                    new BasicDBObject("$set", new BasicDBObject(CLOSED, true)), false, true);
+            LOG.info(String.format("Closed account %s", acctNr));
+        } catch (MongoException e) {
+            LOG.severe(String.format("Failed to close account %s", acctNr));
+        } finally {
+            for (int stripe : stripes) invalidateCachedAccount(stripe);
+        }
+    }
+
+    /**
+     * Split a hot account into a number of stripes, so the transfers, deposits and withdrawals that involve it
+     * are spread over that many documents instead of all serializing on one. The account document itself is
+     * the first stripe, and the others are new account documents that only this account uses. Credits go to a
+     * random stripe. Debits go to a random stripe too, and when that stripe does not hold enough, money is first
+     * moved into one stripe from the others with internal transfers. getBalance sums all stripes. Other bank
+     * instances spread over the stripes of accounts that were striped before they opened. Until then they use
+     * the account document as a whole account, which is still correct.
+     * @param acctNr The account number
+     * @param stripeCount The number of stripes, including the account document itself
+     * @return The account numbers of all stripes, the account itself first
+     * @throws BankingException When the account does not exist or is closed, or a database error occurs
+     */
+    public int[] stripeAccount(int acctNr, int stripeCount) throws BankingException {
+        if (stripeCount < 2) throw new IllegalArgumentException("An account needs at least two stripes");
+        DBObject account = findAccount(acctNr, CLOSED, STRIPES);
+        if (account.get(STRIPES) != null) {
+            LOG.warning(String.format("Account %s was already striped.", acctNr));
+            return registerStripes(acctNr, stripesOf(account));
+        }
+        if (closedOf(account)) throw new BankingException(BankingError.CLOSED_ACCOUNT);
+        AccountRange range = leaseAccountNumbers(stripeCount - 1);
+        List<DBObject> stripeAccounts = new ArrayList<>(stripeCount - 1);
+        List<Integer> stripeNrs = new ArrayList<>(stripeCount - 1);
+        for (int stripe = range.getFirst(); stripe <= range.getLast(); stripe++) {
+            DBObject stripeAccount = newAccount(stripe, 0, false);
+            stripeAccount.put(STRIPE_OF, acctNr);
+            stripeAccounts.add(stripeAccount);
+            stripeNrs.add(stripe);
+        }
+        insertAccounts(stripeAccounts);
+        WriteResult result;
+        try {
+            result = accounts.update(new BasicDBObject(ID, acctNr).append(CLOSED, false)
+                            .append(STRIPES, new BasicDBObject("$exists", false)),
+                    new BasicDBObject("$set", new BasicDBObject(STRIPES, stripeNrs)));
+            if (result.getN() == 0) {
+                // The account was closed or striped in the meantime
+                accounts.remove(new BasicDBObject(ID, new BasicDBObject("$in", stripeNrs)));
+            }
+        } catch (MongoException e) {
+            LOG.severe(String.format("Failed to stripe account %s: %s", acctNr, e.getMessage()));
+            throw new BankingException(BankingError.DB_ERROR);
+        } finally {
+            invalidateCachedAccount(acctNr);
+        }
+        if (result.getN() == 0) return stripeAccount(acctNr, stripeCount);
+        LOG.info(String.format("Striped account %s over accounts %s to %s", acctNr, range.getFirst(), range.getLast()));
+        return registerStripes(acctNr, stripesOf(new BasicDBObject(ID, acctNr).append(STRIPES, stripeNrs)));
+    }
+
+    /**
+     * Get the balance each stripe of a striped account holds by itself, as stored in the stripe documents
+     * @param stripes The account numbers of the stripes
+     * @return The balance in cents by stripe
+     * @throws BankingException When a database error occurs
+     */
+    Balances getStripeBalances(int[] stripes) throws BankingException {
+        List<Integer> stripeNrs = new ArrayList<>(stripes.length);
+        for (int stripe : stripes) stripeNrs.add(stripe);
+        return findBalances(stripeNrs);
+    }
+
+    /**
+     * Remember the stripes of a striped account, to spread its writes over
+     * @param acctNr The account number
+     * @param stripes The stripes, the account itself first
+     * @return The stripes
+     */
+    private int[] registerStripes(int acctNr, int[] stripes) {
+        stripedAccounts.put(acctNr, stripes);
+        return stripes;
+    }
+
+    /**
+     * Load the stripes of all striped accounts, when the bank opens
+     * @throws MongoException When a database error occurs
+     */
+    private void loadStripedAccounts() {
+        DBCursor cursor = accounts.find(new BasicDBObject(STRIPES, new BasicDBObject("$exists", true)),
+                fields(STRIPES));
+        try {
+            while (cursor.hasNext()) {
+                DBObject account = cursor.next();
+                registerStripes(acctNrOf(account), stripesOf(account));
+            }
+        } finally {
+            cursor.close();
+        }
+        if (!stripedAccounts.isEmpty()) LOG.info(String.format("%s accounts are striped", stripedAccounts.size()));
+    }
+
+    /**
+     * Pick the stripe of an account to credit
+     * @param acctNr The account number
+     * @return A random stripe if the account is striped, or the account itself
+     */
+    private int creditStripe(int acctNr) {
+        int[] stripes = stripedAccounts.get(acctNr);
+        return stripes == null ? acctNr : stripes[ThreadLocalRandom.current().nextInt(stripes.length)];
+    }
+
+    /**
+     * Make sure one stripe of a striped account holds an amount, by moving money into the stripe that holds the
+     * most from the other stripes, richest first. Every move is an internal transfer with a two phase commit, so
+     * it is recovered like any other transfer if the bank fails halfway.
+     * @param acctNr The account number of the striped account
+     * @param stripes The stripes of the account
+     * @param amount The amount in cents to debit
+     * @return The stripe that holds the amount
+     * @throws BankingException When all stripes together do not hold the amount, or a database error occurs
+     */
+    private int rebalanceStripes(int acctNr, int[] stripes, long amount) throws BankingException {
+        List<Integer> stripeNrs = new ArrayList<>(stripes.length);
+        for (int stripe : stripes) stripeNrs.add(stripe);
+        final Balances balances = findBalances(stripeNrs);
+        long total = 0;
+        for (int stripe : stripes) total += balances.getOrDefault(stripe, 0);
+        if (total < amount) {
+            LOG.severe(String.format("Balance %s in account %s is insufficient to debit %s",
+                    Money.format(total), acctNr, Money.format(amount)));
+            throw new BankingException(BankingError.INSUFFICIENT_BALANCE);
+        }
+        Collections.sort(stripeNrs, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer stripe1, Integer stripe2) {
+                return Long.compare(balances.getOrDefault(stripe2, 0), balances.getOrDefault(stripe1, 0));
+            }
+        });
+        int target = stripeNrs.get(0);
+        long held = balances.getOrDefault(target, 0);
+        for (int i = 1; i < stripeNrs.size() && held < amount; i++) {
+            int stripe = stripeNrs.get(i);
+            long move = Math.min(balances.getOrDefault(stripe, 0), amount - held);
+            if (move <= 0) continue;
+            try {
+                doTransfer(stripe, target, move, null, null);
+                held += move;
+            } catch (BankingException e) {
+                // A concurrent debit took from this stripe first
+                if (e.getError() != BankingError.INSUFFICIENT_BALANCE) throw e;
+            }
+        }
+        if (held < amount) {
+            LOG.severe(String.format("Could not collect %s in a stripe of account %s", Money.format(amount), acctNr));
+            throw new BankingException(BankingError.INSUFFICIENT_BALANCE);
+        }
+        LOG.info(String.format("Rebalanced account %s to debit %s from stripe %s", acctNr, Money.format(amount),
+                target));
+        return target;
+    }
+
+    /**
+     * Debit a striped account: from a random stripe, or after rebalancing if that stripe does not hold enough
+     * @param acctNr The account number
+     * @param stripes The stripes of the account
+     * @param amount The amount in cents to debit
+     * @param debit Debits one stripe
+     * @return The result of the debit
+     * @throws BankingException When the stripes together do not hold the amount, or the debit fails
+     */
+    private <T> T debitStripes(int acctNr, int[] stripes, long amount, StripeDebit<T> debit)
+            throws BankingException {
+        try {
+            return debit.debit(stripes[ThreadLocalRandom.current().nextInt(stripes.length)]);
+        } catch (BankingException e) {
+            if (e.getError() != BankingError.INSUFFICIENT_BALANCE) throw e;
+        }
+        return debit.debit(rebalanceStripes(acctNr, stripes, amount));
+    }
+
+    /**
+     * @return Whether an account number is the account itself or one of its stripes
+     */
+    private boolean isStripe(int acctNr, int stripe) {
+        if (acctNr == stripe) return true;
+        int[] stripes = stripedAccounts.get(acctNr);
+        if (stripes == null) return false;
+        for (int s : stripes) {
+            if (s == stripe) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Debits one stripe of a striped account
+     */
+    private interface StripeDebit<T> {
+        T debit(int stripe) throws BankingException;
+    }
+
+    /**
+     * Add up the balances of the stripes of a striped account other than the one given
+     * @param stripes The stripes of the account
+     * @param except The stripe to leave out
+     * @return The balance in cents of the other stripes
+     * @throws BankingException When a database error occurs
+     */
+    private long otherStripesBalance(int[] stripes, int except) throws BankingException {
+        List<Integer> others = new ArrayList<>(stripes.length - 1);
+        for (int stripe : stripes) {
+            if (stripe != except) others.add(stripe);
+        }
+        Balances balances = findBalances(others);
+        long balance = 0;
+        for (int stripe : others) balance += balances.getOrDefault(stripe, 0);
+        return balance;
+    }
+
+    /**
+     * @return The stripes of an account, the account itself first, or only the account itself if it is not striped
+     */
+    static int[] stripesOf(DBObject account) {
+        List<?> stripeNrs = (List<?>) account.get(STRIPES);
+        int[] stripes = new int[stripeNrs == null ? 1 : stripeNrs.size() + 1];
+        stripes[0] = acctNrOf(account);
+        for (int i = 1; i < stripes.length; i++) stripes[i] = ((Number) stripeNrs.get(i - 1)).intValue();
+        return stripes;
+    }
+
+    /**
+     * Get the balance of an account
+     * @param acctNr The account number for which to get the balance
+     * @return The balance in dollars
+     * @throws BankingException When the account does not exist or a database error occurs
+     */
+    public float getBalance(int acctNr) throws BankingException {
+        return Money.toDollars(getBalanceInCents(acctNr));
+    }
+
+    /**
+     * Get the balance of an account
+     * @param acctNr The account number for which to get the balance
+     * @return The balance in cents
+     * @throws BankingException When the account does not exist or a database error occurs
+     */
+    public long getBalanceInCents(int acctNr) throws BankingException {
+        AccountCache cache = accountCache;
+        if (cache != null) {
+            long balance = cache.getBalance(acctNr);
+            if (balance != AccountCache.MISS) return balance;
+        }
+        DBObject account = findAndCacheAccount(cache, acctNr);
+        long balance = balanceOf(account);
+        if (account.get(STRIPES) != null) balance += otherStripesBalance(stripesOf(account), acctNr);
+        return balance;
+    }
+
+    /**
+     * Check if an account is closed
+     * @param acctNr
+     * @return
+     * @throws BankingException
+     */
+    public boolean isClosed(int acctNr) throws BankingException {
+        AccountCache cache = accountCache;
+        if (cache != null) {
+            Boolean closed = cache.isClosed(acctNr);
+            if (closed != null) return closed;
+        }
+        return closedOf(findAndCacheAccount(cache, acctNr));
+    }
+
+    /**
+     * Cache balances and closed flags of accounts for getBalance and isClosed. Writes through this bank invalidate
+     * the cached accounts they touch. Writes by other bank instances are seen once the cached account is
+     * older than the staleness bound.
+     * @param capacity The maximum number of cached accounts
+     * @param maxStalenessMs The maximum age of a cached account in ms
+     */
+    public void enableAccountCache(int capacity, long maxStalenessMs) {
+        accountCache = new AccountCache(capacity, maxStalenessMs);
+        LOG.info(String.format("Caching up to %s accounts for at most %s ms", capacity, maxStalenessMs));
+    }
+
+    /**
+     * Read every balance from the database again
+     */
+    public void disableAccountCache() {
+        accountCache = null;
+    }
+
+    /**
+     * Get the account cache, to see how well it performs
+     * @return The account cache, or null if accounts are not cached
+     */
+    public AccountCache getAccountCache() {
+        return accountCache;
+    }
+
+    /**
+     * Get the cache of transfer outcomes by idempotency key, to see how well it performs
+     * @return The idempotency cache
+     */
+    public IdempotencyCache getIdempotencyCache() {
+        return idempotencyCache;
+    }
+
+    /**
+     * Deposit money into an account with a single atomic round trip
+     * @param acctNr The account number to deposit into
+     * @param amount The amount to deposit
+     * @return The balance after the deposit has taken place
+     * @throws BankingException When the account does not exist or is closed, or a database error occurs
+     */
+    public float deposit(int acctNr, float amount) throws BankingException {
+        return Money.toDollars(depositCents(acctNr, Money.toCents(amount)));
+    }
+
+    /**
+     * Deposit money into an account with a single atomic round trip
+     * @param acctNr The account number to deposit into
+     * @param amount The amount to deposit in cents
+     * @return The balance in cents after the deposit has taken place
+     * @throws BankingException When the account does not exist or is closed, or a database error occurs
+     */
+    public long depositCents(final int acctNr, final long amount) throws BankingException {
+        return admit(new Write<Long>() {
+            @Override
+            public Long run() throws BankingException {
+                int[] stripes = stripedAccounts.get(acctNr);
+                int stripe = stripes == null ? acctNr : stripes[ThreadLocalRandom.current().nextInt(stripes.length)];
+                DepositCombiner combiner = depositCombiner;
+                long balance = combiner == null ? writeDeposit(stripe, amount) : combiner.deposit(stripe, amount);
+                return stripes == null ? balance : balance + otherStripesBalance(stripes, stripe);
+            }
+        });
+    }
+
+    /**
+     * Combine concurrent deposits into the same account into a single write. Every depositor waits at most the
+     * window for other deposits, and gets the balance after the combined deposit.
+     * @param windowMicros The time in microseconds to wait for more deposits into the same account
+     * @param maxCount The maximum number of deposits to combine in one write
+     */
+    public void enableDepositCombining(long windowMicros, int maxCount) {
+        depositCombiner = new DepositCombiner(new DepositCombiner.Writer() {
+            @Override
+            public long deposit(int acctNr, long amount) throws BankingException {
+                return writeDeposit(acctNr, amount);
+            }
+        }, windowMicros, maxCount);
+        LOG.info(String.format("Combining up to %s deposits within %s us", maxCount, windowMicros));
+    }
+
+    /**
+     * Write every deposit on its own again
+     */
+    public void disableDepositCombining() {
+        depositCombiner = null;
+    }
+
+    /**
+     * Serialize transfers that involve the same accounts within this JVM, so that conflicting transfers do not
+     * waste round trips on each other. Transfers on disjoint accounts still run in parallel, unless their
+     * accounts share a stripe.
+     * @param stripes The number of locks
+     * @param fair Whether the locks are granted in arrival order
+     */
+    public void enableAccountLocking(int stripes, boolean fair) {
+        accountLocks = new AccountLockManager(stripes, fair);
+        LOG.info(String.format("Locking accounts with %s %s locks", accountLocks.getStripes(),
+                fair ? "fair" : "unfair"));
+    }
+
+    /**
+     * Stop locking accounts within this JVM
+     */
+    public void disableAccountLocking() {
+        accountLocks = null;
+    }
+
+    /**
+     * Put admission control in front of deposits, withdrawals and transfers. At most a limited number of them are
+     * in flight at once, and the limit adapts to their latency. Callers over the limit queue up, and fail with
+     * OVERLOADED when the queue is full or they waited too long.
+     * @param initialLimit The number of writes allowed in flight at first
+     * @param maxLimit The maximum number of writes in flight
+     * @param targetLatencyMs The write latency in ms above which the limit is lowered
+     * @param maxQueueLength The maximum number of callers waiting for a slot
+     * @param maxWaitMs The maximum time in ms a caller waits for a slot
+     */
+    public void enableAdmissionControl(int initialLimit, int maxLimit, long targetLatencyMs, int maxQueueLength,
+                                       long maxWaitMs) {
+        admissionController = new AdmissionController(initialLimit, maxLimit, targetLatencyMs, maxQueueLength,
+                maxWaitMs);
+        LOG.info(String.format("Admitting %s to %s writes in flight with a target latency of %s ms",
+                initialLimit, maxLimit, targetLatencyMs));
+    }
+
+    /**
+     * Admit all writes right away again
+     */
+    public void disableAdmissionControl() {
+        admissionController = null;
+    }
+
+    /**
+     * Get the admission controller, to see its limit, queue depth and latency
+     * @return The admission controller, or null if writes are not admission controlled
+     */
+    public AdmissionController getAdmissionController() {
+        return admissionController;
+    }
+
+    /**
+     * A write to admit
+     */
+    private interface Write<T> {
+        T run() throws BankingException;
+    }
+
+    /**
+     * Do a write once the admission controller admits it, if admission control is enabled
+     * @param write The write
+     * @return The result of the write
+     * @throws BankingException OVERLOADED when the write was not admitted, or the error of the write
+     */
+    private <T> T admit(Write<T> write) throws BankingException {
+        AdmissionController controller = admissionController;
+        if (controller == null) return write.run();
+        long admittedAt = controller.acquire();
+        boolean failed = true;
+        try {
+            T result = write.run();
+            failed = false;
+            return result;
+        } catch (BankingException e) {
+            failed = e.getError() == BankingError.DB_ERROR;
+            throw e;
+        } finally {
+            controller.release(admittedAt, failed);
+        }
+    }
+
+    /**
+     * Get the deposit combiner, to see how well deposits are combined
+     * @return The deposit combiner, or null if deposits are not combined
+     */
+    public DepositCombiner getDepositCombiner() {
+        return depositCombiner;
+    }
+
+    /**
+     * Write a deposit into an account with a single atomic round trip
+     * @param acctNr The account number to deposit into
+     * @param amount The amount to deposit in cents
+     * @return The balance in cents after the deposit has taken place
+     * @throws BankingException When the account does not exist or is closed, or a database error occurs
+     */
+    private long writeDeposit(int acctNr, long amount) throws BankingException {
+        DBObject account;
+        try {
+            account = findAndModifyJournaled(accounts, new BasicDBObject(ID, acctNr).append(CLOSED, false),
+                    new BasicDBObject(BALANCE, 1),
+                    new BasicDBObject("$inc", new BasicDBObject(BALANCE, amount).append(DEPOSITED, amount)));
+        } catch (MongoException e) {
+            String msg = String.format("Failed to deposit %s into account %s: %s",
+                    Money.format(amount), acctNr, e.getMessage());
+            LOG.severe(msg);
+            throw new BankingException(BankingError.DB_ERROR);
+        } finally {
+            invalidateCachedAccount(acctNr);
+        }
+        if (account == null) {
+            BankingError error = accountUpdateError(acctNr);
+            LOG.severe(String.format("Cannot deposit %s into account %s: %s",
+                    Money.format(amount), acctNr, error.getMessage()));
+            throw new BankingException(error);
+        }
+        LOG.info(String.format("Deposited %s into account %s", Money.format(amount), acctNr));
+        return balanceOf(account);
+    }
+
+    /**
+     * Withdraw money from an account with a single atomic round trip. The account must not be closed and its
+     * balance must be sufficient at the time of the update.
+     * @param acctNr The account number to withdraw from
+     * @param amount The amount to withdraw
+     * @return The balance after the withdraw has taken place
+     * @throws BankingException
+     */
+    public float withdraw(int acctNr, float amount) throws BankingException {
+        return Money.toDollars(withdrawCents(acctNr, Money.toCents(amount)));
+    }
+
+    /**
+     * Withdraw money from an account with a single atomic round trip
+     * @param acctNr The account number to withdraw from
+     * @param amount The amount to withdraw in cents
+     * @return The balance in cents after the withdraw has taken place
+     * @throws BankingException
+     */
+    public long withdrawCents(final int acctNr, final long amount) throws BankingException {
+        return admit(new Write<Long>() {
+            @Override
+            public Long run() throws BankingException {
+                final int[] stripes = stripedAccounts.get(acctNr);
+                if (stripes == null) return writeWithdrawal(acctNr, amount);
+                return debitStripes(acctNr, stripes, amount, new StripeDebit<Long>() {
+                    @Override
+                    public Long debit(int stripe) throws BankingException {
+                        return writeWithdrawal(stripe, amount) + otherStripesBalance(stripes, stripe);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Write a withdrawal from an account with a single atomic round trip
+     * @param acctNr The account number to withdraw from
+     * @param amount The amount to withdraw in cents
+     * @return The balance in cents after the withdraw has taken place
+     * @throws BankingException
+     */
+    private long writeWithdrawal(int acctNr, long amount) throws BankingException {
+        DBObject account;
+        try {
+            account = findAndModifyJournaled(accounts, new BasicDBObject(ID, acctNr).append(CLOSED, false)
+                            .append(BALANCE, new BasicDBObject("$gte", amount)),
+                    new BasicDBObject(BALANCE, 1),
+                    new BasicDBObject("$inc", new BasicDBObject(BALANCE, -amount).append(WITHDRAWN, amount)));
+        } catch (MongoException e) {
+            String msg = String.format("Failed to withdraw %s from account %s: %s",
+                    Money.format(amount), acctNr, e.getMessage());
+            LOG.severe(msg);
+            throw new BankingException(BankingError.DB_ERROR);
+        } finally {
+            invalidateCachedAccount(acctNr);
+        }
+        if (account == null) {
+            BankingError error = accountUpdateError(acctNr);
+            LOG.severe(String.format("Cannot withdraw %s from account %s: %s",
+                    Money.format(amount), acctNr, error.getMessage()));
+            throw new BankingException(error);
+        }
+        LOG.info(String.format("%s was withdrawn from account %s", Money.format(amount), acctNr));
+        return balanceOf(account);
+    }
+
+    /**
+     * Find out why a conditional update of an account did not match. Only called when an update failed.
+     * @param acctNr The account number
+     * @return CLOSED_ACCOUNT if the account is closed, INSUFFICIENT_BALANCE otherwise
+     * @throws BankingException When the account does not exist or a database error occurs
+     */
+    private BankingError accountUpdateError(int acctNr) throws BankingException {
+        return closedOf(findAccount(acctNr, CLOSED)) ? BankingError.CLOSED_ACCOUNT : BankingError.INSUFFICIENT_BALANCE;
+    }
+
+    /**
+     * Atomically update a document and return its post-image, acknowledged only once the update is journaled
+     * like all other writes of the bank
+     * @param collection The collection of the document
+     * @param query The filter the document must match
+     * @param fields The fields to return
+     * @param update The update to apply
+     * @return The updated document or null if no document matched
+     * @throws MongoException When a database error occurs
+     */
+    private static DBObject findAndModifyJournaled(DBCollection collection, DBObject query, DBObject fields,
+                                                   DBObject update) {
+        return findAndModifyJournaled(collection, query, fields, update, false);
+    }
+
+    /**
+     * Atomically update a document and return its post-image, acknowledged only once the update is journaled
+     * @param collection The collection of the document
+     * @param query The filter the document must match
+     * @param fields The fields to return, or null for all fields
+     * @param update The update to apply
+     * @param upsert Whether to insert the document if no document matched
+     * @return The updated document or null if no document matched
+     * @throws MongoException When a database error occurs
+     */
+    static DBObject findAndModifyJournaled(DBCollection collection, DBObject query, DBObject fields,
+                                           DBObject update, boolean upsert) {
+        BasicDBObject command = new BasicDBObject("findAndModify", collection.getName())
+                .append("query", query)
+                .append("update", update)
+                .append("new", true)
+                .append("upsert", upsert)
+                .append("writeConcern", new BasicDBObject("j", true));
+        if (fields != null) command.append("fields", fields);
+        CommandResult result = collection.getDB().command(command);
+        result.throwOnError();
+        return (DBObject) result.get("value");
+    }
+
+    /**
+     * Transfer money from one account to another
+     * @param srcAcctNr The source of the transfer
+     * @param destAcctNr The destination of the transfer
+     * @param amount The amount to transfer from source to destination
+     * @throws BankingException
+     */
+    public void transfer(int srcAcctNr, int destAcctNr, float amount) throws BankingException {
+        transfer(srcAcctNr, destAcctNr, amount, null);
+    }
+
+    public void transfer(int srcAcctNr, int destAcctNr, float amount, String failState)
+            throws BankingException {
+        transferCents(srcAcctNr, destAcctNr, Money.toCents(amount), failState);
+    }
+
+    /**
+     * Transfer money from one account to another
+     * @param srcAcctNr The source of the transfer
+     * @param destAcctNr The destination of the transfer
+     * @param amount The amount in cents to transfer from source to destination
+     * @throws BankingException
+     */
+    public void transferCents(int srcAcctNr, int destAcctNr, long amount) throws BankingException {
+        transferCents(srcAcctNr, destAcctNr, amount, null);
+    }
+
+    public void transferCents(final int srcAcctNr, final int destAcctNr, final long amount, final String failState)
+            throws BankingException {
+        admit(new Write<Long>() {
+            @Override
+            public Long run() throws BankingException {
+                return lockAndTransfer(srcAcctNr, destAcctNr, amount, null, failState);
+            }
+        });
+    }
+
+    /**
+     * Transfer money from one account to another. A request with an idempotency key moves the money at most once,
+     * no matter how often it is retried: a retry of a finished transfer returns its original outcome, and a retry
+     * of a transfer that failed halfway finishes the transaction that was created for it.
+     * @param request The transfer to do
+     * @return The outcome of the transfer
+     */
+    public TransferResult transfer(TransferRequest request) {
+        return transfer(request, null);
+    }
+
+    public TransferResult transfer(final TransferRequest request, final String failState) {
+        try {
+            return admit(new Write<TransferResult>() {
+                @Override
+                public TransferResult run() {
+                    return transferRequest(request, failState);
+                }
+            });
+        } catch (BankingException e) {
+            return new TransferResult(request, -1, e.getError());
+        }
+    }
+
+    /**
+     * Transfer money for a transfer request, retried safely when it has an idempotency key
+     * @param request The transfer to do
+     * @param failState The state to fail in, for testing recovery, or null
+     * @return The outcome of the transfer
+     */
+    private TransferResult transferRequest(TransferRequest request, String failState) {
+        String key = request.getIdempotencyKey();
+        if (key == null) {
+            try {
+                long txnID = lockAndTransfer(request.getSrcAcctNr(), request.getDestAcctNr(),
+                        request.getAmountInCents(), null, failState);
+                return new TransferResult(request, txnID, null);
+            } catch (BankingException e) {
+                return new TransferResult(request, -1, e.getError());
+            }
+        }
+        TransferResult cached = idempotencyCache.get(key);
+        if (cached != null) {
+            LOG.info(String.format("Transfer with idempotency key '%s' already finished as transaction %s",
+                    key, cached.getTxnID()));
+            return new TransferResult(request, cached.getTxnID(), cached.getError());
+        }
+        try {
+            TransferResult previous = finishKeyedTransfer(request);
+            if (previous != null) return previous;
+            long txnID = lockAndTransfer(request.getSrcAcctNr(), request.getDestAcctNr(),
+                    request.getAmountInCents(), key, failState);
+            TransferResult result = new TransferResult(request, txnID, null);
+            idempotencyCache.put(key, result);
+            return result;
+        } catch (DuplicateKeyException e) {
+            // A concurrent retry created the transaction for this key first
+            try {
+                TransferResult previous = finishKeyedTransfer(request);
+                return previous != null ? previous : new TransferResult(request, -1, BankingError.DB_ERROR);
+            } catch (BankingException ex) {
+                return new TransferResult(request, -1, ex.getError());
+            }
+        } catch (BankingException e) {
+            long txnID = -1;
+            try {
+                DBObject txn = findTransactionByKey(key);
+                if (txn != null) txnID = txnIdOf(txn);
+            } catch (BankingException ignored) {
+                // Report the original error
+            }
+            return new TransferResult(request, txnID, e.getError());
+        }
+    }
+
+    /**
+     * Finish the transaction that was created for the idempotency key of a transfer request, if there is one.
+     * Transactions that are still in flight are driven to the end in the same way recovery or cancellation would.
+     * @param request The transfer request with an idempotency key
+     * @return The outcome of the transaction, or null if no transaction exists for the key
+     * @throws BankingException When a database error occurs
+     */
+    private TransferResult finishKeyedTransfer(TransferRequest request) throws BankingException {
+        String key = request.getIdempotencyKey();
+        DBObject txn = findTransactionByKey(key);
+        if (txn == null) return null;
+        long txnID = txnIdOf(txn);
+        if (!isStripe(request.getSrcAcctNr(), srcOf(txn)) || !isStripe(request.getDestAcctNr(), destOf(txn))
+                || amountOf(txn) != request.getAmountInCents()) {
+            LOG.warning(String.format("Idempotency key '%s' of transfer %s was used before for transaction %s",
+                    key, request, txnID));
+        }
+        switch ((String) txn.get(STATE)) {
+            case TxnState.INITIAL:
+                // Move it on to pending, so that recovery finishes it
+                updateTransactionState(txnID, TxnState.INITIAL, TxnState.PENDING);
+                recoverTransaction(txnID);
+                txn = findTransactionByKey(key);
+                break;
+            case TxnState.PENDING:
+            case TxnState.APPLIED:
+                recoverTransaction(txnID);
+                txn = findTransactionByKey(key);
+                break;
+            default:
+                break;
+        }
+        if (TxnState.CANCELING.equals(txn.get(STATE))) {
+            try {
+                cancelTransactions(Collections.singletonList(txn));
+            } catch (MongoException e) {
+                LOG.severe(String.format("Failed to cancel transaction %s: %s", txnID, e.getMessage()));
+                throw new BankingException(BankingError.DB_ERROR);
+            }
+            txn = findTransactionByKey(key);
+        }
+        TransferResult result;
+        switch ((String) txn.get(STATE)) {
+            case TxnState.DONE:
+                result = new TransferResult(request, txnID, null);
+                break;
+            case TxnState.CANCELED:
+                result = new TransferResult(request, txnID, BankingError.DB_ERROR);
+                break;
+            default:
+                // Another bank instance moved the transaction on in the meantime
+                return new TransferResult(request, txnID, BankingError.DB_ERROR);
+        }
+        idempotencyCache.put(key, result);
+        LOG.info(String.format("Transfer with idempotency key '%s' finished as transaction %s", key, txnID));
+        return result;
+    }
+
+    /**
+     * Find the transaction with an idempotency key, in the transactions or else in the archive
+     * @param key The idempotency key
+     * @return The transaction, or null if there is none
+     * @throws BankingException When a database error occurs
+     */
+    private DBObject findTransactionByKey(String key) throws BankingException {
+        try {
+            DBObject query = new BasicDBObject(IDEMPOTENCY_KEY, key);
+            DBObject txn = transactions.findOne(query);
+            return txn != null ? txn : transactionArchive.findOne(query);
+        } catch (MongoException e) {
+            LOG.severe(String.format("Failed to find the transaction with idempotency key '%s': %s",
+                    key, e.getMessage()));
+            throw new BankingException(BankingError.DB_ERROR);
+        }
+    }
+
+    /**
+     * Transfer money from one account to another, holding the account locks if they are enabled
+     * @return The ID of the transaction
+     */
+    private long lockAndTransfer(int srcAcctNr, int destAcctNr, long amount, String key, String failState)
+            throws BankingException {
+        AccountLockManager locks = accountLocks;
+        if (locks == null) return transferStripes(srcAcctNr, destAcctNr, amount, key, failState);
+        AccountLockManager.Locked locked = locks.lock(srcAcctNr, destAcctNr);
+        try {
+            return transferStripes(srcAcctNr, destAcctNr, amount, key, failState);
+        } finally {
+            locked.close();
+        }
+    }
+
+    /**
+     * Transfer money from one account to another, between stripes if the accounts are striped
+     * @return The ID of the transaction
+     */
+    private long transferStripes(int srcAcctNr, final int destAcctNr, final long amount, final String key,
+                                 final String failState) throws BankingException {
+        int[] stripes = stripedAccounts.get(srcAcctNr);
+        if (stripes == null) return doTransfer(srcAcctNr, creditStripe(destAcctNr), amount, key, failState);
+        return debitStripes(srcAcctNr, stripes, amount, new StripeDebit<Long>() {
+            @Override
+            public Long debit(int stripe) throws BankingException {
+                return doTransfer(stripe, creditStripe(destAcctNr), amount, key, failState);
+            }
+        });
+    }
+
+    /**
+     * Transfer money from one account to another with a two phase commit
+     * @param srcAcctNr The source of the transfer
+     * @param destAcctNr The destination of the transfer
+     * @param amount The amount in cents to transfer from source to destination
+     * @param key The idempotency key to store on the transaction, or null
+     * @param failState The state to fail in, for testing recovery, or null
+     * @return The ID of the transaction
+     * @throws BankingException
+     * @throws DuplicateKeyException When a transaction with the same idempotency key exists
+     */
+    private long doTransfer(int srcAcctNr, int destAcctNr, long amount, String key, String failState)
+            throws BankingException {
+
+        // Check that the balance of the source account is sufficient
+        long balance = balanceOf(findAccount(srcAcctNr, BALANCE));
+        if (amount > balance) {
+            String msg = String.format("Balance %s in account %s is insufficient to transfer %s to account %s",
+                    Money.format(balance), srcAcctNr, Money.format(amount), destAcctNr);
+            LOG.severe(msg);
+            throw new BankingException(BankingError.INSUFFICIENT_BALANCE);
+        }
+
+        // Start a transaction
+        DBObject transaction = createTransaction(srcAcctNr, destAcctNr, amount, key);
+        long txnID = txnIdOf(transaction);
+
+        // Find the transaction
+        findTransaction(srcAcctNr, destAcctNr, TxnState.INITIAL);
 
         // Set the transaction state to 'pending'
         updateTransactionState(txnID, TxnState.INITIAL, TxnState.PENDING);
 
-        // Apply the transaction to the source account
-        applyPendingTransactionToAccount(txnID, srcAcctNr, -amount);
+        // Apply the transaction to the source account
+        applyPendingTransactionToAccount(txnID, srcAcctNr, -amount);
+
+        // Conditionally fail in the 'pending' state
+        if (failState != null && failState.equals(TxnState.PENDING)) {
+            String msg = String.format("The transfer transaction %s failed in the 'pending' state", txnID);
+            LOG.severe(msg);
+            throw new BankingException(BankingError.DB_ERROR);
+        }
+
+        // Apply the transaction to the destination account
+        applyPendingTransactionToAccount(txnID, destAcctNr, amount);
+
+        // Update the transaction state to 'applied'
+        updateTransactionState(txnID, TxnState.PENDING, TxnState.APPLIED);
+
+        // Remove the applied transaction ID from the source account
+        removeAppliedTransactionFromAccount(txnID, srcAcctNr);
+
+        // Conditionally fail in the 'pending' state
+        if (failState != null && failState.equals(TxnState.APPLIED)) {
+            String msg = String.format("The transfer transaction %s failed in the 'applied' state", txnID);
+            LOG.severe(msg);
+            throw new BankingException(BankingError.DB_ERROR);
+        }
+
+        // Remove the applied transaction ID from the target account
+        removeAppliedTransactionFromAccount(txnID, destAcctNr);
+
+        // Update the transaction state to 'done'
+        updateTransactionState(txnID, TxnState.APPLIED, TxnState.DONE);
+
+        LOG.info(String.format("Transferred %s from account %s to account %s",
+                Money.format(amount), srcAcctNr, destAcctNr));
+        return txnID;
+    }
+
+    /**
+     * Transfer money for a batch of transfer requests. Every step of the two phase commit is done for all
+     * transfers in the batch at once, with a single bulk write or multi-update per step.
+     * @param requests The transfers to do
+     * @return A result for every request, in the same order as the requests
+     * @throws BankingException When a database error occurs before any transaction was created
+     */
+    public List<TransferResult> transferBatch(List<TransferRequest> requests) throws BankingException {
+        return transferBatch(requests, null);
+    }
+
+    public List<TransferResult> transferBatch(final List<TransferRequest> requests, final String failState)
+            throws BankingException {
+        return admit(new Write<List<TransferResult>>() {
+            @Override
+            public List<TransferResult> run() throws BankingException {
+                return transferRequests(requests, failState);
+            }
+        });
+    }
+
+    /**
+     * Transfer money for a batch of transfer requests, doing those with an idempotency key one by one
+     * @param requests The transfers to do
+     * @param failState The state to fail in, for testing recovery, or null
+     * @return A result for every request, in the same order as the requests
+     * @throws BankingException When a database error occurs before any transaction was created
+     */
+    private List<TransferResult> transferRequests(List<TransferRequest> requests, String failState)
+            throws BankingException {
+        List<TransferRequest> batchable = new ArrayList<>(requests.size());
+        for (TransferRequest request : requests) {
+            if (isBatchable(request)) batchable.add(request);
+        }
+        if (batchable.size() < requests.size()) {
+            // Transfers with an idempotency key are checked for duplicates and done one by one, and so are
+            // transfers of striped accounts, which pick their stripes one by one
+            List<TransferResult> batched = batchable.isEmpty() ? Collections.<TransferResult>emptyList()
+                    : transferRequests(batchable, failState);
+            List<TransferResult> results = new ArrayList<>(requests.size());
+            int next = 0;
+            for (TransferRequest request : requests) {
+                results.add(isBatchable(request) ? batched.get(next++) : transferRequest(request, failState));
+            }
+            return results;
+        }
+        Set<Integer> acctNrs = new HashSet<>();
+        for (TransferRequest request : requests) {
+            acctNrs.add(request.getSrcAcctNr());
+            acctNrs.add(request.getDestAcctNr());
+        }
+        AccountLockManager locks = accountLocks;
+        if (locks == null) return doTransferBatch(requests, acctNrs, failState);
+        AccountLockManager.Locked locked = locks.lockAll(acctNrs);
+        try {
+            return doTransferBatch(requests, acctNrs, failState);
+        } finally {
+            locked.close();
+        }
+    }
+
+    /**
+     * @return Whether a transfer request can be done as part of a batch, which applies every transfer with one
+     * update of each of two different accounts
+     */
+    private boolean isBatchable(TransferRequest request) {
+        return request.getIdempotencyKey() == null && request.getSrcAcctNr() != request.getDestAcctNr()
+                && !stripedAccounts.containsKey(request.getSrcAcctNr())
+                && !stripedAccounts.containsKey(request.getDestAcctNr());
+    }
+
+    /**
+     * Transfer money for a batch of transfer requests, with a bulk write or multi-update per step
+     * @param requests The transfers to do
+     * @param acctNrs All source and destination accounts of the transfers
+     * @param failState The state to fail in, for testing recovery, or null
+     * @return A result for every request, in the same order as the requests
+     * @throws BankingException When a database error occurs before any transaction was created
+     */
+    private List<TransferResult> doTransferBatch(List<TransferRequest> requests, Set<Integer> acctNrs,
+                                                 String failState) throws BankingException {
+        TransferResult[] results = new TransferResult[requests.size()];
+
+        // Check that all accounts exist and are open, and that the balances of the source accounts are sufficient
+        Set<Integer> closed = new HashSet<>();
+        Balances balances = findBalances(acctNrs, closed);
+        List<Integer> accepted = new ArrayList<>();
+        List<DBObject> txns = new ArrayList<>();
+        for (int i = 0; i < results.length; i++) {
+            TransferRequest request = requests.get(i);
+            long balance = balances.getOrDefault(request.getSrcAcctNr(), 0);
+            if (!balances.contains(request.getSrcAcctNr()) || !balances.contains(request.getDestAcctNr())) {
+                LOG.severe(String.format("Cannot transfer %s because an account does not exist", request));
+                results[i] = new TransferResult(request, -1, BankingError.NON_EXISTING_ACCOUNT);
+            } else if (closed.contains(request.getSrcAcctNr()) || closed.contains(request.getDestAcctNr())) {
+                LOG.severe(String.format("Cannot transfer %s because an account is closed", request));
+                results[i] = new TransferResult(request, -1, BankingError.CLOSED_ACCOUNT);
+            } else if (request.getAmountInCents() > balance) {
+                LOG.severe(String.format("Balance %s is insufficient to transfer %s", Money.format(balance), request));
+                results[i] = new TransferResult(request, -1, BankingError.INSUFFICIENT_BALANCE);
+            } else {
+                balances.put(request.getSrcAcctNr(), balance - request.getAmountInCents());
+                accepted.add(i);
+                txns.add(new BasicDBObject(ID, transactionIds.nextId())
+                        .append(SRC, request.getSrcAcctNr())
+                        .append(DEST, request.getDestAcctNr())
+                        .append(AMOUNT, request.getAmountInCents())
+                        .append(STATE, TxnState.INITIAL)
+                        .append(LAST_MOD, new Date()));
+            }
+        }
+        if (txns.isEmpty()) return Arrays.asList(results);
+
+        List<Long> txnIDs = new ArrayList<>(txns.size());
+        for (DBObject txn : txns) txnIDs.add(txnIdOf(txn));
+        String step = "create";
+        try {
+            // Start the transactions
+            BulkWriteOperation bulk = transactions.initializeUnorderedBulkOperation();
+            for (DBObject txn : txns) bulk.insert(txn);
+            bulk.execute();
+
+            // Set the transaction states to 'pending'
+            step = TxnState.PENDING;
+            updateTransactionStates(txnIDs, TxnState.INITIAL, TxnState.PENDING);
+
+            // Apply the transactions to the source and destination accounts
+            bulk = accounts.initializeUnorderedBulkOperation();
+            for (DBObject txn : txns) {
+                Object txnID = txn.get(ID);
+                long amount = amountOf(txn);
+                bulk.find(new BasicDBObject(ID, txn.get(SRC)).append(CLOSED, false)
+                        .append(PENDING_TXNS, new BasicDBObject("$ne", txnID)))
+                        .updateOne(new BasicDBObject("$inc", new BasicDBObject(BALANCE, -amount))
+                                .append("$push", new BasicDBObject(PENDING_TXNS, txnID)));
+                bulk.find(new BasicDBObject(ID, txn.get(DEST)).append(CLOSED, false)
+                        .append(PENDING_TXNS, new BasicDBObject("$ne", txnID)))
+                        .updateOne(new BasicDBObject("$inc", new BasicDBObject(BALANCE, amount))
+                                .append("$push", new BasicDBObject(PENDING_TXNS, txnID)));
+            }
+            BulkWriteResult applied;
+            try {
+                applied = bulk.execute();
+            } finally {
+                for (int acctNr : acctNrs) invalidateCachedAccount(acctNr);
+            }
+            LOG.info(String.format("Applied %s transactions with %s account updates",
+                    txns.size(), applied.getMatchedCount()));
+            if (applied.getMatchedCount() != 2 * txns.size()) {
+                // An account was closed since the check, so money would be credited without being debited
+                step = TxnState.CANCELING;
+                return cancelTransferBatch(requests, results, accepted, txns, txnIDs, acctNrs);
+            }
+
+            // Conditionally fail in the 'pending' state
+            if (failState != null && failState.equals(TxnState.PENDING)) {
+                LOG.severe(String.format("The batch of %s transfer transactions failed in the 'pending' state",
+                        txns.size()));
+                throw new BankingException(BankingError.DB_ERROR);
+            }
+
+            // Update the transaction states to 'applied'
+            step = TxnState.APPLIED;
+            updateTransactionStates(txnIDs, TxnState.PENDING, TxnState.APPLIED);
+
+            // Conditionally fail in the 'applied' state
+            if (failState != null && failState.equals(TxnState.APPLIED)) {
+                LOG.severe(String.format("The batch of %s transfer transactions failed in the 'applied' state",
+                        txns.size()));
+                throw new BankingException(BankingError.DB_ERROR);
+            }
+
+            // Remove the applied transaction IDs from the accounts, with one update per account
+            Map<Object, List<Object>> appliedTxnsByAcct = new HashMap<>();
+            for (DBObject txn : txns) {
+                for (String acct : new String[]{SRC, DEST}) {
+                    List<Object> acctTxns = appliedTxnsByAcct.get(txn.get(acct));
+                    if (acctTxns == null) appliedTxnsByAcct.put(txn.get(acct), acctTxns = new ArrayList<>());
+                    acctTxns.add(txn.get(ID));
+                }
+            }
+            bulk = accounts.initializeUnorderedBulkOperation();
+            for (Map.Entry<Object, List<Object>> entry : appliedTxnsByAcct.entrySet()) {
+                bulk.find(new BasicDBObject(ID, entry.getKey()))
+                        .updateOne(new BasicDBObject("$pullAll", new BasicDBObject(PENDING_TXNS, entry.getValue())));
+            }
+            bulk.execute();
 
-        // Conditionally fail in the 'pending' state
-        if (failState != null && failState.equals(TxnState.PENDING)) {
-            String msg = String.format("The transfer transaction %s failed in the 'pending' state", txnID);
-            LOG.severe(msg);
-            throw new BankingException(BankingError.DB_ERROR);
+            // Update the transaction states to 'done'
+            step = TxnState.DONE;
+            updateTransactionStates(txnIDs, TxnState.APPLIED, TxnState.DONE);
+        } catch (MongoException e) {
+            LOG.severe(String.format("The batch of %s transfer transactions failed in step '%s': %s",
+                    txns.size(), step, e.getMessage()));
+            for (int j = 0; j < accepted.size(); j++) {
+                int i = accepted.get(j);
+                results[i] = new TransferResult(requests.get(i), txnIDs.get(j), BankingError.DB_ERROR);
+            }
+            return Arrays.asList(results);
         }
+        for (int j = 0; j < accepted.size(); j++) {
+            int i = accepted.get(j);
+            results[i] = new TransferResult(requests.get(i), txnIDs.get(j), null);
+        }
+        LOG.info(String.format("Transferred %s of %s transfers in a batch", accepted.size(), results.length));
+        return Arrays.asList(results);
+    }
 
-        // Apply the transaction to the destination account
-        applyPendingTransactionToAccount(txnID, destAcctNr, amount);
+    /**
+     * Cancel a batch of transfers that were not applied to all of their accounts. The transfers with a closed
+     * account fail with CLOSED_ACCOUNT, the others with DB_ERROR, and none of them moved any money.
+     * @return A result for every request, in the same order as the requests
+     * @throws MongoException When a database error occurs
+     */
+    private List<TransferResult> cancelTransferBatch(List<TransferRequest> requests, TransferResult[] results,
+                                                     List<Integer> accepted, List<DBObject> txns,
+                                                     List<Long> txnIDs, Set<Integer> acctNrs) {
+        updateTransactionStates(txnIDs, TxnState.PENDING, TxnState.CANCELING);
+        cancelTransactions(txns);
+        Set<Integer> closed = new HashSet<>();
+        DBCursor cursor = accounts.find(new BasicDBObject(ID, new BasicDBObject("$in", acctNrs)).append(CLOSED, true),
+                fields(ID));
+        while (cursor.hasNext()) closed.add(acctNrOf(cursor.next()));
+        LOG.severe(String.format("Canceled a batch of %s transfer transactions, because accounts %s were closed",
+                txns.size(), closed));
+        for (int j = 0; j < accepted.size(); j++) {
+            int i = accepted.get(j);
+            TransferRequest request = requests.get(i);
+            boolean hasClosed = closed.contains(request.getSrcAcctNr()) || closed.contains(request.getDestAcctNr());
+            results[i] = new TransferResult(request, txnIDs.get(j),
+                    hasClosed ? BankingError.CLOSED_ACCOUNT : BankingError.DB_ERROR);
+        }
+        return Arrays.asList(results);
+    }
 
-        // Update the transaction state to 'applied'
-        updateTransactionState(txnID, TxnState.PENDING, TxnState.APPLIED);
+    /**
+     * Get the balances of a number of accounts with a single query, for statements and reconciliation.
+     * Unlike getBalance, this always reads the database. The balances of striped accounts add up all their
+     * stripes, which takes one more query.
+     * @param acctNrs The account numbers
+     * @return The balances of the accounts that exist, and the account numbers that do not exist
+     * @throws BankingException When a database error occurs
+     */
+    public Balances getBalances(int... acctNrs) throws BankingException {
+        List<Integer> acctNrList = new ArrayList<>(acctNrs.length);
+        for (int acctNr : acctNrs) acctNrList.add(acctNr);
+        Map<Integer, int[]> striped = new HashMap<>();
+        Balances balances = findBalances(acctNrList, null, striped);
+        balances.setMissing(acctNrs);
+        addStripeBalances(balances, striped);
+        if (balances.getMissing().length > 0) {
+            LOG.warning(String.format("%s of %s accounts do not exist", balances.getMissing().length, acctNrs.length));
+        }
+        return balances;
+    }
 
-        // Remove the applied transaction ID from the source account
-        removeAppliedTransactionFromAccount(txnID, srcAcctNr);
+    /**
+     * Add the balances of the other stripes of striped accounts to the balances of those accounts, with a single
+     * query for all stripes
+     * @param balances The balances of the account documents
+     * @param striped The stripes of the striped accounts, as stored in their account documents
+     * @throws BankingException When a database error occurs
+     */
+    private void addStripeBalances(Balances balances, Map<Integer, int[]> striped) throws BankingException {
+        if (striped.isEmpty()) return;
+        List<Integer> stripeNrs = new ArrayList<>();
+        for (int[] stripes : striped.values()) {
+            for (int i = 1; i < stripes.length; i++) stripeNrs.add(stripes[i]);
+        }
+        Balances stripeBalances = findBalances(stripeNrs);
+        for (Map.Entry<Integer, int[]> entry : striped.entrySet()) {
+            int[] stripes = entry.getValue();
+            long balance = balances.getOrDefault(entry.getKey(), 0);
+            for (int i = 1; i < stripes.length; i++) balance += stripeBalances.getOrDefault(stripes[i], 0);
+            balances.put(entry.getKey(), balance);
+        }
+    }
 
-        // Conditionally fail in the 'pending' state
-        if (failState != null && failState.equals(TxnState.APPLIED)) {
-            String msg = String.format("The transfer transaction %s failed in the 'applied' state", txnID);
-            LOG.severe(msg);
+    /**
+     * Stream the balances of all accounts in a range of account numbers, in account number order, without
+     * holding them all in memory. Every stripe of a striped account is reported as an account of its own.
+     * @param fromAcctNr The first account number of the range
+     * @param toAcctNr The last account number of the range
+     * @param consumer Receives the balance of every account in the range
+     * @return The number of accounts in the range
+     * @throws BankingException When a database error occurs
+     */
+    public long forEachBalance(int fromAcctNr, int toAcctNr, BalanceConsumer consumer) throws BankingException {
+        long count = 0;
+        try {
+            DBCursor cursor = accounts.find(new BasicDBObject(ID, new BasicDBObject("$gte", fromAcctNr)
+                            .append("$lte", toAcctNr)), fields(BALANCE))
+                    .sort(new BasicDBObject(ID, 1))
+                    .batchSize(BALANCE_BATCH_SIZE);
+            try {
+                while (cursor.hasNext()) {
+                    DBObject account = cursor.next();
+                    consumer.accept(acctNrOf(account), balanceOf(account));
+                    count++;
+                }
+            } finally {
+                cursor.close();
+            }
+        } catch (MongoException e) {
+            LOG.severe(String.format("Failed to stream the balances of accounts %s to %s: %s",
+                    fromAcctNr, toAcctNr, e.getMessage()));
             throw new BankingException(BankingError.DB_ERROR);
         }
+        return count;
+    }
 
-        // Remove the applied transaction ID from the target account
-        removeAppliedTransactionFromAccount(txnID, destAcctNr);
-
-        // Update the transaction state to 'done'
-        updateTransactionState(txnID, TxnState.APPLIED, TxnState.DONE);
+    /**
+     * Find the balances of a number of accounts with a single query
+     * @param acctNrs The account numbers
+     * @return The balance by account number, for the accounts that exist
+     * @throws BankingException When a database error occurs
+     */
+    private Balances findBalances(Collection<Integer> acctNrs) throws BankingException {
+        return findBalances(acctNrs, null, null);
+    }
 
-        LOG.info(String.format("Transferred $%.2f from account %s to account %s", amount, srcAcctNr, destAcctNr));
+    /**
+     * Find the balances of a number of accounts with a single query, and which of them are closed
+     * @param acctNrs The account numbers
+     * @param closed Receives the numbers of the closed accounts, or null if not needed
+     * @return The balance by account number, for the accounts that exist
+     * @throws BankingException When a database error occurs
+     */
+    private Balances findBalances(Collection<Integer> acctNrs, Set<Integer> closed) throws BankingException {
+        return findBalances(acctNrs, closed, null);
+    }
 
+    /**
+     * Find the balances of a number of accounts with a single query, which of them are closed and which are
+     * striped
+     * @param acctNrs The account numbers
+     * @param closed Receives the numbers of the closed accounts, or null if not needed
+     * @param striped Receives the stripes of the striped accounts by account number, or null if not needed
+     * @return The balance by account number, for the accounts that exist, without their other stripes
+     * @throws BankingException When a database error occurs
+     */
+    private Balances findBalances(Collection<Integer> acctNrs, Set<Integer> closed, Map<Integer, int[]> striped)
+            throws BankingException {
+        Balances balances = new Balances(acctNrs.size());
+        DBObject projection = fields(BALANCE);
+        if (closed != null) projection.put(CLOSED, 1);
+        if (striped != null) projection.put(STRIPES, 1);
+        try {
+            DBCursor cursor = accounts.find(new BasicDBObject(ID, new BasicDBObject("$in", acctNrs)), projection)
+                    .batchSize(BALANCE_BATCH_SIZE);
+            while (cursor.hasNext()) {
+                DBObject account = cursor.next();
+                balances.put(acctNrOf(account), balanceOf(account));
+                if (closed != null && closedOf(account)) closed.add(acctNrOf(account));
+                if (striped != null && account.get(STRIPES) != null) striped.put(acctNrOf(account), stripesOf(account));
+            }
+        } catch (MongoException e) {
+            LOG.severe(String.format("Failed to lookup %s accounts: %s", acctNrs.size(), e.getMessage()));
+            throw new BankingException(BankingError.DB_ERROR);
+        }
+        return balances;
     }
 
     /**
-     * Find an account
+     * Find an account, with only the fields the caller uses, so the pending transactions array is not shipped
+     * and decoded for nothing
      * @param acctNr The account number
+     * @param fields The fields to return
      * @return A Mongo object representing the account
      * @throws BankingException If the account does not exist
      */
-    private DBObject findAccount(int acctNr) throws BankingException {
+    private DBObject findAccount(int acctNr, String... fields) throws BankingException {
         DBObject account;
         try {
-            account = accounts.findOne(new BasicDBObject(ID, acctNr));
+            account = accounts.findOne(new BasicDBObject(ID, acctNr), fields(fields));
         } catch (MongoException e) {
-            LOG.severe(String.format("Failed to lookup account %s: $s", acctNr, e.getMessage()));
+            LOG.severe(String.format("Failed to lookup account %s: %s", acctNr, e.getMessage()));
             throw new BankingException(BankingError.DB_ERROR);
         }
         if (account == null) {
@@ -302,63 +2037,146 @@ public class MongoBank {
         }
     }
 
-    private int getNewAccountNumber() throws BankingException {
-        try {
-            DBCursor cursor = accounts.find(new BasicDBObject(), new BasicDBObject(ID, 1))
-                    .sort(new BasicDBObject(ID, -1))
-                    .limit(1);
-            if (cursor.hasNext()) {
-                DBObject dbObject = cursor.next();
-                return ((Integer) dbObject.get(ID)).intValue() + 1;
-            }
-        } catch (MongoException e) {
-            throw new BankingException(BankingError.DB_ERROR);
-        }
-        return 1;
+    /**
+     * Build a projection of fields to return
+     * @param fields The field names
+     * @return The projection
+     */
+    private static DBObject fields(String... fields) {
+        BasicDBObject projection = new BasicDBObject();
+        for (String field : fields) projection.append(field, 1);
+        return projection;
     }
 
-    private int getNewTransactionNumber() throws BankingException {
-        try {
-            DBCursor cursor = transactions.find(new BasicDBObject(), new BasicDBObject(ID, 1))
-                    .sort(new BasicDBObject(ID, -1))
-                    .limit(1);
-            if (cursor.hasNext()) {
-                DBObject dbObject = cursor.next();
-                return ((Integer) dbObject.get(ID)).intValue() + 1;
-            }
-        } catch (MongoException e) {
+    /**
+     * @return The number of an account
+     */
+    static int acctNrOf(DBObject account) {
+        return ((Number) account.get(ID)).intValue();
+    }
+
+    /**
+     * @return The balance of an account in cents
+     */
+    static long balanceOf(DBObject account) {
+        return Money.centsOf(account.get(BALANCE));
+    }
+
+    /**
+     * @return Whether an account is closed
+     */
+    static boolean closedOf(DBObject account) {
+        return (Boolean) account.get(CLOSED);
+    }
+
+    /**
+     * @return The ID of a transaction
+     */
+    static long txnIdOf(DBObject txn) {
+        return ((Number) txn.get(ID)).longValue();
+    }
+
+    /**
+     * @return The source account number of a transaction
+     */
+    static int srcOf(DBObject txn) {
+        return ((Number) txn.get(SRC)).intValue();
+    }
+
+    /**
+     * @return The destination account number of a transaction
+     */
+    static int destOf(DBObject txn) {
+        return ((Number) txn.get(DEST)).intValue();
+    }
+
+    /**
+     * @return The amount of a transaction in cents
+     */
+    static long amountOf(DBObject txn) {
+        return Money.centsOf(txn.get(AMOUNT));
+    }
+
+    /**
+     * Find an account and cache its balance and closed flag. Striped accounts are not cached, because their
+     * balance is spread over their stripes.
+     * @param cache The account cache, or null if accounts are not cached
+     * @param acctNr The account number
+     * @return A Mongo object representing the account
+     * @throws BankingException If the account does not exist
+     */
+    private DBObject findAndCacheAccount(AccountCache cache, int acctNr) throws BankingException {
+        if (cache == null) return findAccount(acctNr, BALANCE, CLOSED, STRIPES);
+        long stamp = cache.stamp(acctNr);
+        DBObject account = findAccount(acctNr, BALANCE, CLOSED, STRIPES);
+        if (account.get(STRIPES) == null) cache.putLoaded(acctNr, balanceOf(account), closedOf(account), stamp);
+        return account;
+    }
+
+    /**
+     * Remove an account from the cache after changing its balance or closed flag
+     * @param acctNr The account number
+     */
+    void invalidateCachedAccount(int acctNr) {
+        AccountCache cache = accountCache;
+        if (cache != null) cache.invalidate(acctNr);
+    }
+
+    /**
+     * Remove all accounts from the cache
+     */
+    private void clearAccountCache() {
+        AccountCache cache = accountCache;
+        if (cache != null) cache.clear();
+    }
+
+    /**
+     * Get a new account number from the leased block of account numbers
+     * @return A unique account number
+     * @throws BankingException When a database error occurs or the account numbers are exhausted
+     */
+    private int getNewAccountNumber() throws BankingException {
+        long acctNr = accountIds.nextId();
+        if (acctNr > Integer.MAX_VALUE) {
+            LOG.severe(String.format("Account number %s is out of range", acctNr));
             throw new BankingException(BankingError.DB_ERROR);
         }
-        return 1;
+        return (int) acctNr;
     }
 
     /**
-     * Create a new transaction in a thread-safe way, to ensure unique transaction numbers in the store
+     * Create a new transaction with a unique transaction number from the transaction ID generator
      * @param srcAcctNr The source account number
      * @param destAcctNr The destination account number
      * @param amount The amount to transfer
+     * @param key The idempotency key of the transfer, or null
      * @return A Mongo object
      * @throws BankingException When a Mongo exception occurs
+     * @throws DuplicateKeyException When a transaction with the same idempotency key exists
      */
-    private synchronized DBObject createTransaction(int srcAcctNr, int destAcctNr, double amount)
+    private DBObject createTransaction(int srcAcctNr, int destAcctNr, long amount, String key)
             throws BankingException {
-        int txnId = getNewTransactionNumber();
+        long txnId = transactionIds.nextId();
         BasicDBObject transaction = new BasicDBObject(ID, txnId)
                 .append(SRC, srcAcctNr)
                 .append(DEST, destAcctNr)
                 .append(AMOUNT, amount)
                 .append(STATE, TxnState.INITIAL)
                 .append(LAST_MOD, new Date());
+        if (key != null) transaction.append(IDEMPOTENCY_KEY, key);
         try {
             transactions.insert(transaction);
+        } catch (DuplicateKeyException e) {
+            LOG.info(String.format("A transaction with idempotency key '%s' already exists", key));
+            throw e;
         } catch (MongoException e) {
-            String msg = String.format("Failed to create a transaction to transfer $%.2f from account %s to account %s: %s",
-                    amount, srcAcctNr, destAcctNr, e.getMessage());
+            String msg = String.format("Failed to create a transaction to transfer %s from account %s to account %s: %s",
+                    Money.format(amount), srcAcctNr, destAcctNr, e.getMessage());
             LOG.severe(msg);
             throw new BankingException(BankingError.DB_ERROR);
         }
-        LOG.info(String.format("Created transaction %s to transfer $%.2f from account %s to account %s",
-                txnId, amount, srcAcctNr, destAcctNr));
+        LOG.info(String.format("Created transaction %s to transfer %s from account %s to account %s",
+                txnId, Money.format(amount), srcAcctNr, destAcctNr));
         return transaction;
     }
 
@@ -373,9 +2191,9 @@ public class MongoBank {
     private DBObject findTransaction(int srcAcctNr, int destAcctNr, String state) throws BankingException {
         DBObject transaction = null;
         try {
-            transaction = transactions.findOne(new BasicDBObject(SRC, new Integer(srcAcctNr))
-                    .append(DEST, new Integer(destAcctNr))
-                    .append(STATE, state));
+            transaction = transactions.findOne(new BasicDBObject(SRC, srcAcctNr)
+                    .append(DEST, destAcctNr)
+                    .append(STATE, state), fields(ID));
         } catch(MongoException e) {
             String msg =
                     String.format("Failed to find a transaction with state '%s' for source account %s and destination account %s: $s",
@@ -390,7 +2208,7 @@ public class MongoBank {
             LOG.severe(msg);
             throw new BankingException(BankingError.NON_EXISTING_TRANSACTION);
         }
-        int txnID = (Integer) transaction.get(ID);
+        long txnID = txnIdOf(transaction);
         LOG.info(String.format("Found transaction %s with state '%s' for source account %s and destination account %s",
                 txnID, state, srcAcctNr, destAcctNr));
         return transaction;
@@ -403,7 +2221,7 @@ public class MongoBank {
      * @param newState The new state of the txn
      * @throws BankingException When a db error occurs
      */
-    private void updateTransactionState(int txnID, String currentState, String newState) throws BankingException {
+    private void updateTransactionState(long txnID, String currentState, String newState) throws BankingException {
         try {
             transactions.update(new BasicDBObject(ID, txnID)
                             .append(STATE, currentState),
@@ -418,35 +2236,53 @@ public class MongoBank {
         }
     }
 
+    /**
+     * Update the state of a number of transactions with a single multi-update
+     * @param txnIDs The IDs of the transactions to update
+     * @param currentState The current state of the txns
+     * @param newState The new state of the txns
+     * @throws MongoException When a db error occurs
+     */
+    private void updateTransactionStates(List<Long> txnIDs, String currentState, String newState) {
+        WriteResult result = transactions.update(new BasicDBObject(ID, new BasicDBObject("$in", txnIDs))
+                        .append(STATE, currentState),
+                new BasicDBObject("$set", new BasicDBObject(STATE, newState))
+                        .append("$currentDate", new BasicDBObject(LAST_MOD, true)), false, true);
+        LOG.info(String.format("Changed the state of %s of %s transactions from '%s' to '%s'",
+                result.getN(), txnIDs.size(), currentState, newState));
+    }
+
     /**
      * Apply a pending transaction to an account
      * @param txnID The ID of the transaction to apply
      * @param acctNr The number of the account to apply the txn to
-     * @param amount The amount to add
+     * @param amount The amount in cents to add
      * @throws BankingException When a db error occurs.
      */
-    private void applyPendingTransactionToAccount(int txnID, int acctNr, float amount) throws BankingException {
+    private void applyPendingTransactionToAccount(long txnID, int acctNr, long amount) throws BankingException {
         try {
-            WriteResult result = accounts.update(new BasicDBObject(ID, new Integer(acctNr))
+            WriteResult result = accounts.update(new BasicDBObject(ID, acctNr)
                             .append(CLOSED, false)
                             .append(PENDING_TXNS, new BasicDBObject("$ne", txnID)),
                     new BasicDBObject("$inc", new BasicDBObject(BALANCE, amount))
                             .append("$push", new BasicDBObject(PENDING_TXNS, txnID)));
             switch(result.getN()) {
                 case 1:
-                    LOG.info(String.format("Applied transaction %s for amount $%.2f to account %s",
-                            txnID, amount, acctNr));
+                    LOG.info(String.format("Applied transaction %s for amount %s to account %s",
+                            txnID, Money.format(amount), acctNr));
                     break;
                 case 0:
                     LOG.info(String.format(
-                            "Did not apply transaction %s for amount $%.2f to account %s",
-                            txnID, amount, acctNr));
+                            "Did not apply transaction %s for amount %s to account %s",
+                            txnID, Money.format(amount), acctNr));
             }
         } catch (MongoException e) {
-            String msg = String.format("Failed to apply transaction %s for amount $%.2f to account %s: %s",
-                    txnID, amount, acctNr, e.getMessage());
+            String msg = String.format("Failed to apply transaction %s for amount %s to account %s: %s",
+                    txnID, Money.format(amount), acctNr, e.getMessage());
             LOG.severe(msg);
             throw new BankingException(BankingError.DB_ERROR);
+        } finally {
+            invalidateCachedAccount(acctNr);
         }
     }
 
@@ -456,9 +2292,9 @@ public class MongoBank {
      * @param acctNr The number of the account to which the transaction was applied
      * @throws BankingException When a database error occurs
      */
-    private void removeAppliedTransactionFromAccount(int txnID, int acctNr) throws BankingException {
+    private void removeAppliedTransactionFromAccount(long txnID, int acctNr) throws BankingException {
         try {
-            WriteResult result = accounts.update(new BasicDBObject(ID, new Integer(acctNr))
+            WriteResult result = accounts.update(new BasicDBObject(ID, acctNr)
                             .append(PENDING_TXNS, txnID),
                     new BasicDBObject("$pull", new BasicDBObject(PENDING_TXNS, txnID)));
             switch(result.getN()) {
@@ -485,129 +2321,405 @@ public class MongoBank {
      * It first applies the pending transaction to the source and destination accounts. Then it marks the txn
      * as 'applied'. Then it removes the applied txn ID from the source and destination accounts. And finally
      * it marks the txn as 'done'
+     * @return The number of recovered transactions
      * @throws BankingException When a database error occurs
      */
-    public void recoverPendingTransactions() throws BankingException {
-        int txnID = -1, srcAcctNr, destAcctNr;
-        float amount;
-        Date dateThreshold = new Date();
-        dateThreshold.setTime(dateThreshold.getTime() - ageOfTransactionsRequiringRecovery);
-        try {
-            DBCursor cursor = transactions.find(new BasicDBObject(STATE, TxnState.PENDING)
-            .append(LAST_MOD, new BasicDBObject("$lt", dateThreshold)));
-            while (cursor.hasNext()) {
-                DBObject txn = cursor.next();
-                txnID = (Integer) txn.get(ID);
-                srcAcctNr = (Integer) txn.get(SRC);
-                destAcctNr = (Integer) txn.get(DEST);
-                amount = new Float((Double) txn.get(AMOUNT));
-                LOG.info(String.format("About to recover pending transaction %s", txnID));
-                applyPendingTransactionToAccount(txnID, srcAcctNr, -amount);
-                applyPendingTransactionToAccount(txnID, destAcctNr, amount);
-                updateTransactionState(txnID, TxnState.PENDING, TxnState.APPLIED);
-                removeAppliedTransactionFromAccount(txnID, srcAcctNr);
-                removeAppliedTransactionFromAccount(txnID, destAcctNr);
-                updateTransactionState(txnID, TxnState.APPLIED, TxnState.DONE);
-                LOG.info(String.format("Recovered pending transaction %s", txnID));
+    public long recoverPendingTransactions() throws BankingException {
+        return recoverPendingTransactions(recoveryParallelism);
+    }
+
+    /**
+     * Recover transactions in the 'pending' state that are older than ageOfTransactionsRequiringRecovery, with
+     * the transactions partitioned by ID over a number of parallel workers
+     * @param parallelism The number of workers
+     * @return The number of recovered transactions
+     * @throws BankingException When a database error occurs
+     */
+    public long recoverPendingTransactions(int parallelism) throws BankingException {
+        return recoverTransactions(TxnState.PENDING, parallelism, new TxnRecoverer() {
+            @Override
+            public void recover(DBObject txn) throws BankingException {
+                recoverPendingTransaction(txn);
             }
-        } catch (MongoException e) {
-            String msg = (txnID == -1) ?
-                    "Failed while recovering pending transactions" :
-                    String.format("Failed to recover pending transaction %s: %s", txnID, e.getMessage());
-            LOG.severe(msg);
-            throw new BankingException(BankingError.DB_ERROR);
-        }
+        });
+    }
+
+    /**
+     * Recover a transaction in the 'pending' state
+     * @param txn The transaction
+     * @throws BankingException When a database error occurs
+     */
+    private void recoverPendingTransaction(DBObject txn) throws BankingException {
+        long txnID = txnIdOf(txn);
+        int srcAcctNr = srcOf(txn);
+        int destAcctNr = destOf(txn);
+        long amount = amountOf(txn);
+        LOG.info(String.format("About to recover pending transaction %s", txnID));
+        applyPendingTransactionToAccount(txnID, srcAcctNr, -amount);
+        applyPendingTransactionToAccount(txnID, destAcctNr, amount);
+        updateTransactionState(txnID, TxnState.PENDING, TxnState.APPLIED);
+        removeAppliedTransactionFromAccount(txnID, srcAcctNr);
+        removeAppliedTransactionFromAccount(txnID, destAcctNr);
+        updateTransactionState(txnID, TxnState.APPLIED, TxnState.DONE);
+        LOG.info(String.format("Recovered pending transaction %s", txnID));
     }
 
     /**
-     * Cancel transactions in the 'pending' state.
+     * Cancel transactions in the 'pending' state that are older than ageOfTransactionsRequiringRecovery.
+     * All of them are marked 'canceling' with a single multi-update. Then they are undone in batches, with one
+     * ordered bulk write compensating the accounts and one multi-update marking the batch 'canceled'.
+     * @return The number of canceled transactions
      * @throws BankingException When a database error occurs.
      */
-    public void cancelPendingTransactions() throws BankingException {
+    public long cancelPendingTransactions() throws BankingException {
         LOG.info("Start cancelling pending transactions");
         Date dateThreshold = new Date();
         dateThreshold.setTime(dateThreshold.getTime() - ageOfTransactionsRequiringRecovery);
+        long canceled = 0;
         try {
-            // Set the txn state to 'cancelling'
-            transactions.update(new BasicDBObject(STATE, TxnState.PENDING)
+            // Set the txn state to 'canceling'
+            WriteResult result = transactions.update(new BasicDBObject(STATE, TxnState.PENDING)
                     .append(LAST_MOD, new BasicDBObject("$lt", dateThreshold)),
                     new BasicDBObject("$set", new BasicDBObject(STATE, TxnState.CANCELING))
-                    .append("$currentDate", new BasicDBObject(LAST_MOD, true)));
-            // Undo the txn on both accounts
-            DBCursor cursor = transactions.find(new BasicDBObject(STATE, TxnState.CANCELING));
-            while (cursor.hasNext()) {
-                // Update the destination account, subtracting from its balance the transaction value
-                // and removing the transaction _id from the pendingTransactions array.
-                DBObject txn = cursor.next();
-                int txnID = (Integer) txn.get(ID);
-                int srcAcctNr = (Integer) txn.get(SRC);
-                int destAcctNr = (Integer) txn.get(DEST);
-                double amount = (Double) txn.get(AMOUNT);
-                WriteResult result = accounts.update(new BasicDBObject(ID, destAcctNr).append(PENDING_TXNS, txnID),
-                        new BasicDBObject("$inc", new BasicDBObject(BALANCE, -amount))
-                                .append("$pull", new BasicDBObject(PENDING_TXNS, txnID)));
-                if (result.getN() == 1) {
-                    LOG.info(String.format("Updated destination account %s by depositing -$%.2f and removing txn %s",
-                            destAcctNr, amount, txnID));
-                }
-                // Update the source account, adding to its balance the transaction value and removing the
-                // transaction _id from the pendingTransactions array.
-                result = accounts.update(new BasicDBObject(ID, srcAcctNr).append(PENDING_TXNS, txnID),
-                        new BasicDBObject("$inc", new BasicDBObject(BALANCE, amount))
-                                .append("$pull", new BasicDBObject(PENDING_TXNS, txnID)));
-                if (result.getN() == 1) {
-                    LOG.info(String.format("Updated source account %s by depositing -$%.2f and removing txn %s",
-                            srcAcctNr, amount, txnID));
-                }
-                // To finish the rollback, update the transaction state from canceling to cancelled.
-                result = transactions.update(new BasicDBObject(ID, txnID).append(STATE, TxnState.CANCELING),
-                        new BasicDBObject("$set", new BasicDBObject(STATE, TxnState.CANCELED))
-                                .append("$currentDate", new BasicDBObject(LAST_MOD, true)));
-                if (result.getN() == 1) {
-                    LOG.info(String.format("Updated transaction %s to state 'cancelled'",
-                            srcAcctNr, amount, txnID));
-                }
+                    .append("$currentDate", new BasicDBObject(LAST_MOD, true)), false, true);
+            LOG.info(String.format("Changed the state of %s pending transactions to 'canceling'", result.getN()));
+            // Undo the txns on both accounts, batch by batch. Every batch leaves the 'canceling' state, and so
+            // the partial index, so every batch is read from the head of the index in lastModified order.
+            while (true) {
+                List<DBObject> txns = transactions.find(new BasicDBObject(STATE, TxnState.CANCELING))
+                        .sort(new BasicDBObject(STATE, 1).append(LAST_MOD, 1))
+                        .hint(stateIndexName(TxnState.CANCELING))
+                        .limit(CANCEL_BATCH_SIZE).toArray();
+                if (txns.isEmpty()) break;
+                canceled += cancelTransactions(txns);
             }
         } catch (MongoException e) {
             LOG.severe(String.format("Failed while cancelling pending transactions: %s", e.getMessage()));
             throw new BankingException(BankingError.DB_ERROR);
         } finally {
-            LOG.info("Finish cancelling pending transactions");
+            LOG.info(String.format("Finish cancelling pending transactions, canceled %s", canceled));
+        }
+        return canceled;
+    }
+
+    /**
+     * Undo a batch of transactions in the 'canceling' state on their accounts and mark them 'canceled'
+     * @param txns The transactions to undo
+     * @return The number of transactions that were marked 'canceled'
+     * @throws MongoException When a database error occurs
+     */
+    private long cancelTransactions(List<DBObject> txns) {
+        List<Long> txnIDs = new ArrayList<>(txns.size());
+        BulkWriteOperation bulk = accounts.initializeOrderedBulkOperation();
+        for (DBObject txn : txns) {
+            long txnID = txnIdOf(txn);
+            long amount = amountOf(txn);
+            txnIDs.add(txnID);
+            // Update the destination account, subtracting from its balance the transaction value
+            // and removing the transaction _id from the pendingTransactions array.
+            bulk.find(new BasicDBObject(ID, txn.get(DEST)).append(PENDING_TXNS, txnID))
+                    .updateOne(new BasicDBObject("$inc", new BasicDBObject(BALANCE, -amount))
+                            .append("$pull", new BasicDBObject(PENDING_TXNS, txnID)));
+            // Update the source account, adding to its balance the transaction value and removing the
+            // transaction _id from the pendingTransactions array.
+            bulk.find(new BasicDBObject(ID, txn.get(SRC)).append(PENDING_TXNS, txnID))
+                    .updateOne(new BasicDBObject("$inc", new BasicDBObject(BALANCE, amount))
+                            .append("$pull", new BasicDBObject(PENDING_TXNS, txnID)));
+        }
+        BulkWriteResult undone;
+        try {
+            undone = bulk.execute();
+        } finally {
+            for (DBObject txn : txns) {
+                invalidateCachedAccount(srcOf(txn));
+                invalidateCachedAccount(destOf(txn));
+            }
+        }
+        LOG.info(String.format("Undid %s transactions with %s account updates", txns.size(),
+                undone.getMatchedCount()));
+        // To finish the rollback, update the transaction states from canceling to canceled.
+        WriteResult result = transactions.update(new BasicDBObject(ID, new BasicDBObject("$in", txnIDs))
+                        .append(STATE, TxnState.CANCELING),
+                new BasicDBObject("$set", new BasicDBObject(STATE, TxnState.CANCELED))
+                        .append("$currentDate", new BasicDBObject(LAST_MOD, true)), false, true);
+        LOG.info(String.format("Updated %s transactions to state 'canceled'", result.getN()));
+        return result.getN();
+    }
+
+    /**
+     * Finish the cancellation of transactions that are in the 'canceling' state for longer than
+     * ageOfTransactionsRequiringRecovery, e.g. because the bank failed while cancelling them. They are undone on
+     * their accounts and marked 'canceled' in batches, like cancelPendingTransactions does.
+     * @return The number of canceled transactions
+     * @throws BankingException When a database error occurs
+     */
+    public long recoverCancelingTransactions() throws BankingException {
+        Date dateThreshold = new Date();
+        dateThreshold.setTime(dateThreshold.getTime() - ageOfTransactionsRequiringRecovery);
+        long canceled = 0;
+        try {
+            while (true) {
+                List<DBObject> txns = transactions.find(new BasicDBObject(STATE, TxnState.CANCELING)
+                                .append(LAST_MOD, new BasicDBObject("$lt", dateThreshold)))
+                        .sort(new BasicDBObject(STATE, 1).append(LAST_MOD, 1))
+                        .hint(stateIndexName(TxnState.CANCELING))
+                        .limit(CANCEL_BATCH_SIZE).toArray();
+                if (txns.isEmpty()) break;
+                canceled += cancelTransactions(txns);
+            }
+        } catch (MongoException e) {
+            LOG.severe(String.format("Failed while finishing canceling transactions: %s", e.getMessage()));
+            throw new BankingException(BankingError.DB_ERROR);
         }
+        if (canceled > 0) LOG.info(String.format("Finished cancelling %s transactions", canceled));
+        return canceled;
     }
 
     /**
      * Recover transactions in the 'applied' state that are older than ageOfTransactionsRequiringRecovery.
      * It first removes the txn ID from the accounts, then marks the txn as 'done'
+     * @return The number of recovered transactions
      * @throws BankingException
      */
-    public void recoverAppliedTransactions() throws BankingException {
-        LOG.info("Start recovering applied transactions");
-        int txnID = -1, srcAcctNr, destAcctNr;
+    public long recoverAppliedTransactions() throws BankingException {
+        return recoverAppliedTransactions(recoveryParallelism);
+    }
+
+    /**
+     * Recover transactions in the 'applied' state that are older than ageOfTransactionsRequiringRecovery, with
+     * the transactions partitioned by ID over a number of parallel workers
+     * @param parallelism The number of workers
+     * @return The number of recovered transactions
+     * @throws BankingException When a database error occurs
+     */
+    public long recoverAppliedTransactions(int parallelism) throws BankingException {
+        return recoverTransactions(TxnState.APPLIED, parallelism, new TxnRecoverer() {
+            @Override
+            public void recover(DBObject txn) throws BankingException {
+                recoverAppliedTransaction(txn);
+            }
+        });
+    }
+
+    /**
+     * Recover a transaction in the 'applied' state
+     * @param txn The transaction
+     * @throws BankingException When a database error occurs
+     */
+    private void recoverAppliedTransaction(DBObject txn) throws BankingException {
+        long txnID = txnIdOf(txn);
+        int srcAcctNr = srcOf(txn);
+        int destAcctNr = destOf(txn);
+        LOG.info(String.format("About to recover applied transaction %s", txnID));
+        removeAppliedTransactionFromAccount(txnID, srcAcctNr);
+        removeAppliedTransactionFromAccount(txnID, destAcctNr);
+        updateTransactionState(txnID, TxnState.APPLIED, TxnState.DONE);
+        LOG.info(String.format("Recovered applied transaction %s", txnID));
+    }
+
+    /**
+     * Recover a single pending or applied transaction, regardless of its age
+     * @param txnID The ID of the transaction
+     * @return Whether the transaction was pending or applied and is now done
+     * @throws BankingException When a database error occurs
+     */
+    boolean recoverTransaction(long txnID) throws BankingException {
+        DBObject txn;
+        try {
+            txn = transactions.findOne(new BasicDBObject(ID, txnID));
+        } catch (MongoException e) {
+            LOG.severe(String.format("Failed to lookup transaction %s: %s", txnID, e.getMessage()));
+            throw new BankingException(BankingError.DB_ERROR);
+        }
+        if (txn == null) return false;
+        switch ((String) txn.get(STATE)) {
+            case TxnState.PENDING:
+                recoverPendingTransaction(txn);
+                return true;
+            case TxnState.APPLIED:
+                recoverAppliedTransaction(txn);
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Check if there are any pending, applied or canceling transactions older than
+     * ageOfTransactionsRequiringRecovery
+     * @return Whether there are transactions to recover
+     * @throws BankingException When a database error occurs
+     */
+    boolean hasStuckTransactions() throws BankingException {
         Date dateThreshold = new Date();
         dateThreshold.setTime(dateThreshold.getTime() - ageOfTransactionsRequiringRecovery);
         try {
-            DBCursor cursor = transactions.find(new BasicDBObject(STATE, TxnState.APPLIED)
-                    .append(LAST_MOD, new BasicDBObject("$lt", dateThreshold)));
-            while (cursor.hasNext()) {
-                DBObject txn = cursor.next();
-                txnID = (Integer) txn.get(ID);
-                srcAcctNr = (Integer) txn.get(SRC);
-                destAcctNr = (Integer) txn.get(DEST);
-                LOG.info(String.format("About to recover applied transaction %s", txnID));
-                removeAppliedTransactionFromAccount(txnID, srcAcctNr);
-                removeAppliedTransactionFromAccount(txnID, destAcctNr);
-                updateTransactionState(txnID, TxnState.APPLIED, TxnState.DONE);
-                LOG.info(String.format("Recovered applied transaction %s", txnID));
+            for (String state : new String[]{TxnState.PENDING, TxnState.APPLIED, TxnState.CANCELING}) {
+                DBObject txn = transactions.findOne(new BasicDBObject(STATE, state)
+                        .append(LAST_MOD, new BasicDBObject("$lt", dateThreshold)), new BasicDBObject(ID, 1));
+                if (txn != null) return true;
             }
+            return false;
         } catch (MongoException e) {
-            String msg = (txnID == -1) ?
-                    "Failed while recovering pending transactions" :
-                    String.format("Failed to recover pending transaction %s: %s", txnID, e.getMessage());
-            LOG.severe(msg);
+            LOG.severe(String.format("Failed to look for stuck transactions: %s", e.getMessage()));
+            throw new BankingException(BankingError.DB_ERROR);
+        }
+    }
+
+    /**
+     * Recovers a single transaction
+     */
+    private interface TxnRecoverer {
+        void recover(DBObject txn) throws BankingException;
+    }
+
+    /**
+     * Recover all transactions in a state that are older than ageOfTransactionsRequiringRecovery. With more than
+     * one worker, the IDs between the lowest and highest ID of those transactions are split into as many ranges as
+     * there are workers, and every range is recovered by its own worker with a scan of only that range of the _id
+     * index. Recovering a transaction twice has no effect because all updates are guarded by state and
+     * pendingTransactions, so workers never need to coordinate.
+     * @param state The state of the transactions to recover
+     * @param parallelism The number of workers
+     * @param recoverer Recovers a single transaction
+     * @return The number of recovered transactions
+     * @throws BankingException When a database error occurs
+     */
+    private long recoverTransactions(final String state, final int parallelism, final TxnRecoverer recoverer)
+            throws BankingException {
+        if (parallelism < 1) throw new IllegalArgumentException("Parallelism must be positive");
+        LOG.info(String.format("Start recovering %s transactions with %s workers", state, parallelism));
+        Date dateThreshold = new Date();
+        dateThreshold.setTime(dateThreshold.getTime() - ageOfTransactionsRequiringRecovery);
+        final long start = System.nanoTime();
+        final AtomicLong recovered = new AtomicLong();
+        List<Callable<Void>> partitions = new ArrayList<>(parallelism);
+        if (parallelism == 1) {
+            partitions.add(recoverPartition(state, new BasicDBObject(STATE, state)
+                    .append(LAST_MOD, new BasicDBObject("$lt", dateThreshold)), stateIndexName(state), recoverer,
+                    recovered, start));
+        } else {
+            long[] range = stuckIdRange(state, dateThreshold);
+            if (range != null) {
+                for (long[] ids : splitIdRange(range[0], range[1], parallelism)) {
+                    partitions.add(recoverPartition(state, new BasicDBObject(ID, new BasicDBObject("$gte", ids[0])
+                                    .append("$lte", ids[1])).append(STATE, state)
+                                    .append(LAST_MOD, new BasicDBObject("$lt", dateThreshold)), "_id_", recoverer,
+                            recovered, start));
+                }
+            }
+        }
+        BankingException failure = null;
+        if (partitions.size() == 1) {
+            try {
+                partitions.get(0).call();
+            } catch (BankingException e) {
+                failure = e;
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        } else if (!partitions.isEmpty()) {
+            try {
+                for (Future<Void> future : recoveryWorkers.invokeAll(partitions)) {
+                    try {
+                        future.get();
+                    } catch (ExecutionException e) {
+                        failure = e.getCause() instanceof BankingException ?
+                                (BankingException) e.getCause() : new BankingException(BankingError.DB_ERROR);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failure = new BankingException(BankingError.DB_ERROR);
+            }
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        LOG.info(String.format("Finished recovering %s %s transactions in %.3f s, %.1f/s",
+                recovered.get(), state, seconds, recovered.get() / seconds));
+        if (failure != null) throw failure;
+        return recovered.get();
+    }
+
+    /**
+     * Find the lowest and highest ID of the transactions in a state that were last modified before a threshold,
+     * reading the partial index of the state
+     * @param state The state of the transactions
+     * @param dateThreshold The threshold
+     * @return The lowest and highest ID, or null if there are no such transactions
+     * @throws BankingException When a database error occurs
+     */
+    private long[] stuckIdRange(String state, Date dateThreshold) throws BankingException {
+        DBObject query = new BasicDBObject(STATE, state).append(LAST_MOD, new BasicDBObject("$lt", dateThreshold));
+        try {
+            DBCursor lowest = transactions.find(query, new BasicDBObject(ID, 1)).hint(stateIndexName(state))
+                    .sort(new BasicDBObject(ID, 1)).limit(1);
+            if (!lowest.hasNext()) return null;
+            DBCursor highest = transactions.find(query, new BasicDBObject(ID, 1)).hint(stateIndexName(state))
+                    .sort(new BasicDBObject(ID, -1)).limit(1);
+            if (!highest.hasNext()) return null;
+            return new long[]{txnIdOf(lowest.next()), txnIdOf(highest.next())};
+        } catch (MongoException e) {
+            LOG.severe(String.format("Failed to find the IDs of the %s transactions to recover: %s", state,
+                    e.getMessage()));
             throw new BankingException(BankingError.DB_ERROR);
         }
-        LOG.info("Finished recovering applied transactions");
+    }
+
+    /**
+     * Split a range of IDs into ranges of about the same size that do not overlap
+     * @param lowest The lowest ID
+     * @param highest The highest ID
+     * @param parts The maximum number of ranges
+     * @return The first and last ID of every range, in ID order
+     */
+    static List<long[]> splitIdRange(long lowest, long highest, int parts) {
+        long step = (highest - lowest) / parts + 1;
+        List<long[]> ranges = new ArrayList<>(parts);
+        for (long from = lowest; from <= highest && from >= lowest; from += step) {
+            ranges.add(new long[]{from, highest - from < step ? highest : from + step - 1});
+        }
+        return ranges;
+    }
+
+    /**
+     * Create the recovery of a partition of the transactions in a state
+     * @param state The state of the transactions
+     * @param query The query for the transactions of the partition
+     * @param index The name of the index to read
+     * @param recoverer Recovers a single transaction
+     * @param recovered Counts the recovered transactions of all partitions
+     * @param start The time the recovery started at in ns
+     * @return The recovery of the partition
+     */
+    private Callable<Void> recoverPartition(final String state, final DBObject query, final String index,
+                                            final TxnRecoverer recoverer, final AtomicLong recovered,
+                                            final long start) {
+        return new Callable<Void>() {
+            @Override
+            public Void call() throws BankingException {
+                long txnID = -1;
+                try {
+                    DBCursor cursor = transactions.find(query).hint(index);
+                    while (cursor.hasNext()) {
+                        DBObject txn = cursor.next();
+                        txnID = txnIdOf(txn);
+                        recoverer.recover(txn);
+                        long n = recovered.incrementAndGet();
+                        if (n % RECOVERY_PROGRESS_INTERVAL == 0) {
+                            LOG.info(String.format("Recovered %s %s transactions, %.1f/s", n, state,
+                                    n / ((System.nanoTime() - start) / 1e9)));
+                        }
+                    }
+                } catch (MongoException e) {
+                    String msg = (txnID == -1) ?
+                            String.format("Failed while recovering %s transactions: %s", state, e.getMessage()) :
+                            String.format("Failed to recover %s transaction %s: %s", state, txnID, e.getMessage());
+                    LOG.severe(msg);
+                    throw new BankingException(BankingError.DB_ERROR);
+                }
+                return null;
+            }
+        };
     }
 
 }
@@ -0,0 +1,308 @@
+package tpc;
+
+import com.mongodb.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Checks that no money was created or lost. A first pass over the transactions collects the transactions in
+ * flight, reading the partial index of every state in flight, into primitive arrays. A second pass scans the accounts in
+ * parallel account number ranges and sums balances, deposits and withdrawals per range. It joins every pending
+ * transaction ID of an account against the transactions in flight, and records which of their accounts hold
+ * them. Only the transactions in flight are kept in memory, never the accounts.
+ * <p>
+ * Pending transfers that were applied to one of their accounts only have moved money out of the balances, or
+ * into them, and are adjusted for. The totals are exact when no money moves during the reconciliation. While
+ * the bank is busy, transfers that advance between the passes may show up as a small imbalance.
+ */
+class Reconciler {
+
+    private final static Logger LOG = Logger.getLogger(Reconciler.class.getName());
+
+    private final static int SRC_HOLDS = 1, DEST_HOLDS = 2;
+
+    /**
+     * The number of ranges per parallel worker, so workers that finish early can take another range
+     */
+    private final static int RANGES_PER_WORKER = 4;
+
+    private final static int CURSOR_BATCH_SIZE = 10000;
+
+    /**
+     * The maximum number of discrepancies that are described in the report, and of suspected pending
+     * transactions without a transaction in flight that are checked again
+     */
+    private final static int MAX_EXAMPLES = 100, MAX_SUSPECTS = 10000;
+
+    private final DBCollection accounts, transactions;
+
+    private final int parallelism;
+
+    /**
+     * The transactions in flight, by index
+     */
+    private int txns;
+    private long[] txnIds = new long[16], amounts = new long[16];
+    private int[] srcs = new int[16], dests = new int[16];
+    private String[] states = new String[16];
+
+    /**
+     * Index of the transactions in flight by ID: open addressing over txnIds, holding index + 1
+     */
+    private int[] table;
+
+    /**
+     * Which accounts of every transaction in flight hold it in their pending transactions
+     */
+    private AtomicIntegerArray holders;
+
+    private final AtomicLong discrepancies = new AtomicLong();
+
+    private final Queue<String> examples = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Pending transaction IDs of accounts that were not in flight: account number and transaction ID
+     */
+    private final Queue<long[]> suspects = new ConcurrentLinkedQueue<>();
+
+    private final AtomicLong suspectCount = new AtomicLong();
+
+    /**
+     * Create a new Reconciler
+     * @param accounts The accounts collection
+     * @param transactions The transactions collection
+     * @param parallelism The number of account ranges scanned at once
+     */
+    Reconciler(DBCollection accounts, DBCollection transactions, int parallelism) {
+        if (parallelism < 1) throw new IllegalArgumentException("Parallelism must be positive");
+        this.accounts = accounts;
+        this.transactions = transactions;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Reconcile the ledger
+     * @return The report
+     * @throws BankingException When a database error occurs
+     */
+    ReconciliationReport reconcile() throws BankingException {
+        long start = System.nanoTime();
+        try {
+            loadTransactionsInFlight();
+            long[] totals = scanAccounts();
+            recheckSuspects();
+            long adjustment = inFlightAdjustment();
+            ReconciliationReport report = new ReconciliationReport(totals[0], totals[4], txns, totals[1],
+                    totals[2], totals[3], adjustment, discrepancies.get(), new ArrayList<>(examples),
+                    (System.nanoTime() - start) / 1e9);
+            if (report.isBalanced()) LOG.info(report.toString());
+            else LOG.severe(report.toString());
+            return report;
+        } catch (MongoException e) {
+            LOG.severe(String.format("Failed to reconcile: %s", e.getMessage()));
+            throw new BankingException(BankingError.DB_ERROR);
+        }
+    }
+
+    /**
+     * Collect the transactions in flight, one state at a time, reading the partial index of each state, which
+     * has the state as its first key, so the done and canceled transactions are never scanned
+     */
+    private void loadTransactionsInFlight() {
+        for (String state : MongoBank.IN_FLIGHT_STATES) {
+            DBCursor cursor = transactions.find(new BasicDBObject(MongoBank.STATE, state),
+                    new BasicDBObject(MongoBank.SRC, 1).append(MongoBank.DEST, 1).append(MongoBank.AMOUNT, 1))
+                    .hint(MongoBank.stateIndexName(state))
+                    .batchSize(CURSOR_BATCH_SIZE);
+            try {
+                while (cursor.hasNext()) {
+                    DBObject txn = cursor.next();
+                    if (txns == txnIds.length) {
+                        txnIds = Arrays.copyOf(txnIds, txns * 2);
+                        amounts = Arrays.copyOf(amounts, txns * 2);
+                        srcs = Arrays.copyOf(srcs, txns * 2);
+                        dests = Arrays.copyOf(dests, txns * 2);
+                        states = Arrays.copyOf(states, txns * 2);
+                    }
+                    txnIds[txns] = MongoBank.txnIdOf(txn);
+                    amounts[txns] = MongoBank.amountOf(txn);
+                    srcs[txns] = MongoBank.srcOf(txn);
+                    dests[txns] = MongoBank.destOf(txn);
+                    states[txns] = state;
+                    txns++;
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        table = new int[Integer.highestOneBit(Math.max(2, txns * 2 - 1)) << 1];
+        for (int i = 0; i < txns; i++) {
+            int slot = slot(txnIds[i]);
+            // A transaction that changed state between the queries is kept once
+            if (table[slot] == 0) table[slot] = i + 1;
+        }
+        holders = new AtomicIntegerArray(txns);
+        LOG.info(String.format("Found %s transactions in flight", txns));
+    }
+
+    /**
+     * @return The table slot of a transaction ID, empty if it is not in flight
+     */
+    private int slot(long txnID) {
+        int mask = table.length - 1;
+        long h = txnID * 0x9E3779B97F4A7C15L;
+        int i = (int) (h ^ h >>> 32) & mask;
+        while (table[i] != 0 && txnIds[table[i] - 1] != txnID) i = i + 1 & mask;
+        return i;
+    }
+
+    /**
+     * Scan all accounts in parallel ranges
+     * @return The number of accounts, the total balance, deposits and withdrawals, and the number of legacy
+     * accounts
+     */
+    private long[] scanAccounts() throws BankingException {
+        long[] totals = new long[5];
+        DBCursor lowest = accounts.find(new BasicDBObject(), new BasicDBObject(MongoBank.ID, 1))
+                .sort(new BasicDBObject(MongoBank.ID, 1)).limit(1);
+        DBCursor highest = accounts.find(new BasicDBObject(), new BasicDBObject(MongoBank.ID, 1))
+                .sort(new BasicDBObject(MongoBank.ID, -1)).limit(1);
+        if (!lowest.hasNext() || !highest.hasNext()) return totals;
+        long min = MongoBank.acctNrOf(lowest.next()), max = MongoBank.acctNrOf(highest.next());
+        long span = max - min + 1;
+        int n = (int) Math.min(span, (long) parallelism * RANGES_PER_WORKER);
+        List<Callable<long[]>> tasks = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            final int first = (int) (min + span * i / n), last = (int) (min + span * (i + 1) / n - 1);
+            tasks.add(new Callable<long[]>() {
+                @Override
+                public long[] call() {
+                    return scanAccounts(first, last);
+                }
+            });
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+        try {
+            for (Future<long[]> future : executor.invokeAll(tasks)) {
+                long[] range = future.get();
+                for (int i = 0; i < totals.length; i++) totals[i] += range[i];
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof MongoException) throw (MongoException) e.getCause();
+            throw new IllegalStateException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BankingException(BankingError.DB_ERROR);
+        } finally {
+            executor.shutdownNow();
+        }
+        return totals;
+    }
+
+    /**
+     * Scan the accounts of a range
+     * @return The totals of the range, like scanAccounts
+     */
+    private long[] scanAccounts(int first, int last) {
+        long[] totals = new long[5];
+        DBCursor cursor = accounts.find(new BasicDBObject(MongoBank.ID, new BasicDBObject("$gte", first)
+                        .append("$lte", last)),
+                new BasicDBObject(MongoBank.BALANCE, 1).append(MongoBank.DEPOSITED, 1)
+                        .append(MongoBank.WITHDRAWN, 1).append(MongoBank.PENDING_TXNS, 1))
+                .batchSize(CURSOR_BATCH_SIZE);
+        try {
+            while (cursor.hasNext()) {
+                DBObject account = cursor.next();
+                int acctNr = MongoBank.acctNrOf(account);
+                long balance = MongoBank.balanceOf(account);
+                totals[0]++;
+                totals[1] += balance;
+                Object deposited = account.get(MongoBank.DEPOSITED);
+                if (deposited == null) {
+                    totals[4]++;
+                } else {
+                    totals[2] += ((Number) deposited).longValue();
+                    totals[3] += ((Number) account.get(MongoBank.WITHDRAWN)).longValue();
+                }
+                if (balance < 0) discrepancy(String.format("Account %s has a negative balance of %s",
+                        acctNr, Money.format(balance)));
+                List<?> pending = (List<?>) account.get(MongoBank.PENDING_TXNS);
+                if (pending == null) continue;
+                for (Object id : pending) {
+                    long txnID = ((Number) id).longValue();
+                    int i = table[slot(txnID)] - 1;
+                    if (i < 0) {
+                        if (suspectCount.incrementAndGet() <= MAX_SUSPECTS) suspects.add(new long[]{acctNr, txnID});
+                        else discrepancy(String.format("Account %s holds transaction %s, which is not in flight",
+                                acctNr, txnID));
+                    } else if (acctNr == srcs[i] || acctNr == dests[i]) {
+                        final int holder = acctNr == srcs[i] ? SRC_HOLDS : DEST_HOLDS;
+                        int holds;
+                        do {
+                            holds = holders.get(i);
+                        } while (!holders.compareAndSet(i, holds, holds | holder));
+                    } else {
+                        discrepancy(String.format("Account %s holds transaction %s of accounts %s and %s",
+                                acctNr, txnID, srcs[i], dests[i]));
+                    }
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        return totals;
+    }
+
+    /**
+     * Check again whether the pending transaction IDs without a transaction in flight are discrepancies, since
+     * transfers that started after the transactions were collected are fine
+     */
+    private void recheckSuspects() {
+        for (long[] suspect : suspects) {
+            DBObject txn = transactions.findOne(new BasicDBObject(MongoBank.ID, suspect[1]),
+                    new BasicDBObject(MongoBank.STATE, 1));
+            String state = txn == null ? null : (String) txn.get(MongoBank.STATE);
+            if (state != null && !state.equals(TxnState.DONE) && !state.equals(TxnState.CANCELED)) continue;
+            if (accounts.findOne(new BasicDBObject(MongoBank.ID, (int) suspect[0])
+                    .append(MongoBank.PENDING_TXNS, suspect[1]), new BasicDBObject(MongoBank.ID, 1)) == null) {
+                continue;
+            }
+            discrepancy(String.format("Account %s holds transaction %s, which is %s", suspect[0], suspect[1],
+                    state == null ? "missing" : state));
+        }
+    }
+
+    /**
+     * Work out how much money the transfers in flight have taken out of the balances. A pending transfer, or a
+     * transfer that is being canceled, has moved its amount only for the accounts that hold it. An applied
+     * transfer has moved it for both accounts, also when they no longer hold it.
+     * @return The money taken out of the balances in cents
+     */
+    private long inFlightAdjustment() {
+        long adjustment = 0;
+        for (int i = 0; i < txns; i++) {
+            if (table[slot(txnIds[i])] != i + 1) continue; // Counted under another state
+            int holds = holders.get(i);
+            if (states[i].equals(TxnState.PENDING) || states[i].equals(TxnState.CANCELING)) {
+                if ((holds & SRC_HOLDS) != 0) adjustment += amounts[i];
+                if ((holds & DEST_HOLDS) != 0) adjustment -= amounts[i];
+            } else if (states[i].equals(TxnState.INITIAL) && holds != 0) {
+                discrepancy(String.format("Transaction %s is applied to an account in the 'initial' state",
+                        txnIds[i]));
+            }
+        }
+        return adjustment;
+    }
+
+    private void discrepancy(String description) {
+        if (discrepancies.incrementAndGet() <= MAX_EXAMPLES) examples.add(description);
+        LOG.warning(description);
+    }
+}
@@ -0,0 +1,114 @@
+package tpc;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The outcome of reconciling the ledger: the totals over all accounts, the adjustment for transfers that were
+ * in flight, and the discrepancies that were found
+ */
+public final class ReconciliationReport {
+
+    private final long accounts, legacyAccounts, transactionsInFlight;
+
+    private final long totalBalance, totalDeposited, totalWithdrawn, inFlightAdjustment;
+
+    private final long discrepancies;
+
+    private final List<String> examples;
+
+    private final double seconds;
+
+    ReconciliationReport(long accounts, long legacyAccounts, long transactionsInFlight, long totalBalance,
+                         long totalDeposited, long totalWithdrawn, long inFlightAdjustment, long discrepancies,
+                         List<String> examples, double seconds) {
+        this.accounts = accounts;
+        this.legacyAccounts = legacyAccounts;
+        this.transactionsInFlight = transactionsInFlight;
+        this.totalBalance = totalBalance;
+        this.totalDeposited = totalDeposited;
+        this.totalWithdrawn = totalWithdrawn;
+        this.inFlightAdjustment = inFlightAdjustment;
+        this.discrepancies = discrepancies;
+        this.examples = Collections.unmodifiableList(new ArrayList<>(examples));
+        this.seconds = seconds;
+    }
+
+    /**
+     * @return Whether the balances add up to the deposits minus the withdrawals and no discrepancies were found
+     */
+    public boolean isBalanced() {
+        return discrepancies == 0 && legacyAccounts == 0 && getImbalance() == 0;
+    }
+
+    /**
+     * @return The money in cents that the balances hold beyond the deposits minus the withdrawals, after
+     * adjusting for transfers in flight
+     */
+    public long getImbalance() {
+        return totalBalance + inFlightAdjustment - (totalDeposited - totalWithdrawn);
+    }
+
+    public long getAccounts() {
+        return accounts;
+    }
+
+    /**
+     * @return The number of accounts created before deposits and withdrawals were recorded, which cannot be
+     * reconciled
+     */
+    public long getLegacyAccounts() {
+        return legacyAccounts;
+    }
+
+    public long getTransactionsInFlight() {
+        return transactionsInFlight;
+    }
+
+    public long getTotalBalance() {
+        return totalBalance;
+    }
+
+    public long getTotalDeposited() {
+        return totalDeposited;
+    }
+
+    public long getTotalWithdrawn() {
+        return totalWithdrawn;
+    }
+
+    /**
+     * @return The money in cents that transfers in flight have taken out of the balances and not yet put back
+     */
+    public long getInFlightAdjustment() {
+        return inFlightAdjustment;
+    }
+
+    /**
+     * @return The number of discrepancies found
+     */
+    public long getDiscrepancies() {
+        return discrepancies;
+    }
+
+    /**
+     * @return A description of the first discrepancies found
+     */
+    public List<String> getExamples() {
+        return examples;
+    }
+
+    public double getSeconds() {
+        return seconds;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: %s accounts holding %s, deposited %s, withdrawn %s, %s in %s transactions " +
+                        "in flight, imbalance %s, %s discrepancies, %s legacy accounts, in %.3f s",
+                isBalanced() ? "Balanced" : "NOT balanced", accounts, Money.format(totalBalance),
+                Money.format(totalDeposited), Money.format(totalWithdrawn), Money.format(inFlightAdjustment),
+                transactionsInFlight, Money.format(getImbalance()), discrepancies, legacyAccounts, seconds);
+    }
+}
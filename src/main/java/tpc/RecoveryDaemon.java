@@ -0,0 +1,162 @@
+package tpc;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Recovers stuck pending and applied transactions of a bank in the background, and finishes the cancellation
+ * of stuck canceling transactions. The interval between scans
+ * adapts to what the last scan found: after recovering transactions it scans again at the minimum interval,
+ * and every scan that finds nothing doubles the interval up to the maximum. A scan that finds nothing costs a
+ * single indexed lookup.
+ */
+public class RecoveryDaemon {
+
+    private final static Logger LOG = Logger.getLogger(RecoveryDaemon.class.getName());
+
+    private final MongoBank mongoBank;
+
+    private final long minIntervalMs, maxIntervalMs;
+
+    private ScheduledExecutorService scheduler;
+
+    private volatile long intervalMs;
+
+    private final AtomicLong scans = new AtomicLong(), recovered = new AtomicLong(), failures = new AtomicLong();
+
+    private volatile long lastRecovered;
+
+    /**
+     * Create a new RecoveryDaemon
+     * @param mongoBank The bank to recover transactions of
+     * @param minIntervalMs The minimum time between scans in ms
+     * @param maxIntervalMs The maximum time between scans in ms
+     */
+    RecoveryDaemon(MongoBank mongoBank, long minIntervalMs, long maxIntervalMs) {
+        if (minIntervalMs < 1 || maxIntervalMs < minIntervalMs) {
+            throw new IllegalArgumentException("Invalid scan intervals");
+        }
+        this.mongoBank = mongoBank;
+        this.minIntervalMs = minIntervalMs;
+        this.maxIntervalMs = maxIntervalMs;
+        this.intervalMs = minIntervalMs;
+    }
+
+    /**
+     * Start scanning for stuck transactions
+     */
+    public synchronized void start() {
+        if (scheduler != null) return;
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "recovery-daemon");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        intervalMs = minIntervalMs;
+        schedule(scheduler, 0);
+        LOG.info(String.format("Recovery daemon started, scanning every %s to %s ms", minIntervalMs, maxIntervalMs));
+    }
+
+    /**
+     * Stop scanning for stuck transactions, waiting for a running scan to finish
+     */
+    public synchronized void stop() {
+        if (scheduler == null) return;
+        scheduler.shutdownNow();
+        try {
+            scheduler.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        scheduler = null;
+        LOG.info(String.format("Recovery daemon stopped after %s scans, recovered %s transactions",
+                scans.get(), recovered.get()));
+    }
+
+    /**
+     * @return Whether the daemon is scanning
+     */
+    public synchronized boolean isRunning() {
+        return scheduler != null;
+    }
+
+    private void schedule(final ScheduledExecutorService scheduler, long delayMs) {
+        if (scheduler.isShutdown()) return;
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                scan();
+                schedule(scheduler, intervalMs);
+            }
+        }, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Recover the stuck transactions, if there are any, and adapt the interval to the result
+     */
+    void scan() {
+        scans.incrementAndGet();
+        long n = 0;
+        try {
+            if (mongoBank.hasStuckTransactions()) {
+                n = mongoBank.recoverPendingTransactions() + mongoBank.recoverAppliedTransactions()
+                        + mongoBank.recoverCancelingTransactions();
+            }
+        } catch (BankingException | RuntimeException e) {
+            failures.incrementAndGet();
+            LOG.severe(String.format("Recovery scan failed: %s", e.getMessage()));
+        }
+        lastRecovered = n;
+        recovered.addAndGet(n);
+        intervalMs = n > 0 ? minIntervalMs : Math.min(intervalMs * 2, maxIntervalMs);
+        if (n > 0) LOG.info(String.format("Recovery scan recovered %s transactions", n));
+    }
+
+    /**
+     * @return The number of scans so far
+     */
+    public long getScans() {
+        return scans.get();
+    }
+
+    /**
+     * @return The number of transactions recovered so far
+     */
+    public long getRecovered() {
+        return recovered.get();
+    }
+
+    /**
+     * @return The number of transactions recovered by the last scan
+     */
+    public long getLastRecovered() {
+        return lastRecovered;
+    }
+
+    /**
+     * @return The number of scans that failed
+     */
+    public long getFailures() {
+        return failures.get();
+    }
+
+    /**
+     * @return The time until the next scan in ms
+     */
+    public long getIntervalMs() {
+        return intervalMs;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s scans, %s recovered, %s failures, interval %s ms", getScans(), getRecovered(),
+                getFailures(), getIntervalMs());
+    }
+}
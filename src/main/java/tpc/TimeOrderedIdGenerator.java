@@ -0,0 +1,265 @@
+package tpc;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.DuplicateKeyException;
+import com.mongodb.MongoException;
+
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Generates time-ordered 64-bit IDs without any round trips. An ID consists of 41 bits of milliseconds since
+ * 2014-01-01, a 10 bit node ID and a 12 bit sequence number. IDs are unique across bank instances as long as
+ * every instance uses a different node ID.
+ * <p>
+ * Bank instances lease their node ID: every node ID in use has a lease document with its owner and expiry,
+ * which the owner renews in the background. A lease that was not renewed in time expires and is handed out
+ * again, so node IDs of instances that stopped are reused. An instance stops generating IDs well before its
+ * lease expires if it cannot renew it, so two instances never use the same node ID even if their clocks are a
+ * little apart.
+ */
+public class TimeOrderedIdGenerator implements IdGenerator {
+
+    private final static Logger LOG = Logger.getLogger(TimeOrderedIdGenerator.class.getName());
+
+    /**
+     * 2014-01-01T00:00:00Z in ms
+     */
+    private final static long EPOCH = 1388534400000L;
+
+    private final static int NODE_BITS = 10, SEQ_BITS = 12;
+
+    public final static int MAX_NODE_ID = (1 << NODE_BITS) - 1;
+
+    /**
+     * How long a node ID lease lasts after it was taken or renewed, how often it is renewed, and how long before
+     * its expiry an unrenewed lease is no longer used, to allow for clocks that are apart
+     */
+    final static long LEASE_MS = TimeUnit.MINUTES.toMillis(1), RENEW_MS = TimeUnit.SECONDS.toMillis(10),
+            MARGIN_MS = TimeUnit.SECONDS.toMillis(20);
+
+    /**
+     * BSON field names
+     */
+    private final static String ID = "_id", OWNER = "owner", EXPIRES = "expires";
+
+    private final static int DUPLICATE_KEY = 11000;
+
+    private final long nodeId;
+
+    /**
+     * The last handed out timestamp and sequence number, packed as timestamp << SEQ_BITS | sequence. When the
+     * sequence overflows it carries into the timestamp, so IDs keep increasing even if the clock goes backwards.
+     */
+    private final AtomicLong last = new AtomicLong();
+
+    /**
+     * The lease documents and the owner of the lease, or null if the node ID was not leased
+     */
+    private final DBCollection leases;
+
+    private final String owner;
+
+    /**
+     * The time in ms the lease expires at
+     */
+    private volatile long leaseExpiry = Long.MAX_VALUE;
+
+    private ScheduledExecutorService renewer;
+
+    /**
+     * Create a new TimeOrderedIdGenerator
+     * @param nodeId A node ID between 0 and MAX_NODE_ID that is unique among the bank instances
+     */
+    public TimeOrderedIdGenerator(int nodeId) {
+        this(nodeId, null, null);
+    }
+
+    private TimeOrderedIdGenerator(int nodeId, DBCollection leases, String owner) {
+        if (nodeId < 0 || nodeId > MAX_NODE_ID) {
+            throw new IllegalArgumentException(String.format("Node ID %s is not between 0 and %s", nodeId, MAX_NODE_ID));
+        }
+        this.nodeId = nodeId;
+        this.leases = leases;
+        this.owner = owner;
+    }
+
+    @Override
+    public long nextId() throws BankingException {
+        long now = System.currentTimeMillis();
+        if (!isUsable(now, leaseExpiry)) {
+            LOG.severe(String.format("Cannot generate IDs, the lease of node ID %s was not renewed", nodeId));
+            throw new BankingException(BankingError.DB_ERROR);
+        }
+        now -= EPOCH;
+        while (true) {
+            long prev = last.get();
+            long next = Math.max(now << SEQ_BITS, prev + 1);
+            if (last.compareAndSet(prev, next)) {
+                long timestamp = next >>> SEQ_BITS, seq = next & ((1 << SEQ_BITS) - 1);
+                return (timestamp << (NODE_BITS + SEQ_BITS)) | (nodeId << SEQ_BITS) | seq;
+            }
+        }
+    }
+
+    @Override
+    public void reset() {
+        // Nothing is cached, the IDs only depend on the clock. The lease was removed with the rest of the bank.
+        if (leases != null) renew(true);
+    }
+
+    /**
+     * Get the node ID encoded in an ID
+     * @param id An ID generated by a TimeOrderedIdGenerator
+     * @return The node ID
+     */
+    public static int nodeIdOf(long id) {
+        return (int) ((id >>> SEQ_BITS) & MAX_NODE_ID);
+    }
+
+    /**
+     * @return The node ID of the IDs
+     */
+    public int getNodeId() {
+        return (int) nodeId;
+    }
+
+    /**
+     * Lease a node ID that no other bank instance uses, and keep renewing the lease until it is released. An
+     * expired lease is reused if there is one, otherwise the lowest node ID without a lease is taken.
+     * @param leases The collection holding the lease documents, with a journaled write concern
+     * @return A generator with the leased node ID
+     * @throws BankingException NODE_IDS_EXHAUSTED when every node ID is leased, or when a database error occurs
+     */
+    static TimeOrderedIdGenerator lease(DBCollection leases) throws BankingException {
+        String owner = UUID.randomUUID().toString();
+        try {
+            while (true) {
+                long expiry = System.currentTimeMillis() + LEASE_MS;
+                DBObject lease = MongoBank.findAndModifyJournaled(leases,
+                        new BasicDBObject(EXPIRES, new BasicDBObject("$lt", new Date())), null,
+                        new BasicDBObject("$set", new BasicDBObject(OWNER, owner).append(EXPIRES, new Date(expiry))),
+                        false);
+                int nodeId;
+                if (lease != null) {
+                    nodeId = ((Number) lease.get(ID)).intValue();
+                    LOG.info(String.format("Reused the expired lease of node ID %s", nodeId));
+                } else {
+                    Set<Integer> leased = new HashSet<>();
+                    DBCursor cursor = leases.find(new BasicDBObject(), new BasicDBObject(ID, 1));
+                    while (cursor.hasNext()) leased.add(((Number) cursor.next().get(ID)).intValue());
+                    nodeId = freeNodeId(leased);
+                    try {
+                        leases.insert(new BasicDBObject(ID, nodeId).append(OWNER, owner)
+                                .append(EXPIRES, new Date(expiry)));
+                    } catch (DuplicateKeyException e) {
+                        // Another bank instance leased the same node ID first
+                        continue;
+                    }
+                    LOG.info(String.format("Leased node ID %s", nodeId));
+                }
+                TimeOrderedIdGenerator generator = new TimeOrderedIdGenerator(nodeId, leases, owner);
+                generator.leaseExpiry = expiry;
+                generator.startRenewing();
+                return generator;
+            }
+        } catch (MongoException e) {
+            LOG.severe(String.format("Failed to lease a node ID: %s", e.getMessage()));
+            throw new BankingException(BankingError.DB_ERROR);
+        }
+    }
+
+    /**
+     * Find the lowest node ID without a lease
+     * @param leased The node IDs that have a lease document
+     * @return A node ID between 0 and MAX_NODE_ID
+     * @throws BankingException NODE_IDS_EXHAUSTED when every node ID has a lease
+     */
+    static int freeNodeId(Set<Integer> leased) throws BankingException {
+        for (int nodeId = 0; nodeId <= MAX_NODE_ID; nodeId++) {
+            if (!leased.contains(nodeId)) return nodeId;
+        }
+        LOG.severe(String.format("Cannot lease a node ID, all %s are leased", MAX_NODE_ID + 1));
+        throw new BankingException(BankingError.NODE_IDS_EXHAUSTED);
+    }
+
+    /**
+     * @return Whether IDs may be generated with a lease that expires at leaseExpiry
+     */
+    static boolean isUsable(long now, long leaseExpiry) {
+        return leaseExpiry == Long.MAX_VALUE || now < leaseExpiry - MARGIN_MS;
+    }
+
+    private synchronized void startRenewing() {
+        renewer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "node-lease-renewer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        renewer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                renew(false);
+            }
+        }, RENEW_MS, RENEW_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Extend the lease, unless another bank instance took it over
+     * @param recreate Whether to recreate the lease document if it was removed
+     */
+    private void renew(boolean recreate) {
+        long expiry = System.currentTimeMillis() + LEASE_MS;
+        try {
+            DBObject lease = MongoBank.findAndModifyJournaled(leases,
+                    new BasicDBObject(ID, getNodeId()).append(OWNER, owner), null,
+                    new BasicDBObject("$set", new BasicDBObject(EXPIRES, new Date(expiry))), recreate);
+            if (lease != null) {
+                leaseExpiry = expiry;
+                return;
+            }
+        } catch (MongoException e) {
+            // A duplicate key means another bank instance recreated the lease document first
+            if (e.getCode() != DUPLICATE_KEY) {
+                // Retried with the next renewal, the IDs stay usable until shortly before the lease expires
+                LOG.warning(String.format("Failed to renew the lease of node ID %s: %s", nodeId, e.getMessage()));
+                return;
+            }
+        }
+        leaseExpiry = 0;
+        LOG.severe(String.format("Lost the lease of node ID %s to another bank instance", nodeId));
+    }
+
+    /**
+     * Stop renewing the lease and give the node ID back, so another bank instance can lease it at once. No more
+     * IDs are generated after this.
+     */
+    public synchronized void release() {
+        if (renewer == null) return;
+        renewer.shutdownNow();
+        renewer = null;
+        leaseExpiry = 0;
+        try {
+            leases.update(new BasicDBObject(ID, getNodeId()).append(OWNER, owner),
+                    new BasicDBObject("$set", new BasicDBObject(EXPIRES, new Date(0))));
+            LOG.info(String.format("Released node ID %s", nodeId));
+        } catch (MongoException e) {
+            LOG.warning(String.format("Failed to release node ID %s, it is reused once the lease expires: %s",
+                    nodeId, e.getMessage()));
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package tpc;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A hashed timer wheel of transaction IDs. Every ID has a deadline and is kept in the slot of the tick its
+ * deadline falls in. Scheduling and cancelling are O(1), and expiring only visits the slots of the ticks that
+ * passed. Cancelled and rescheduled entries are removed lazily, when their slot is visited.
+ */
+class TimerWheel {
+
+    /**
+     * A growable list of IDs
+     */
+    private static class Slot {
+        private long[] ids = new long[8];
+        private int size;
+
+        private void add(long id) {
+            if (size == ids.length) ids = Arrays.copyOf(ids, size * 2);
+            ids[size++] = id;
+        }
+    }
+
+    private final long tickMs;
+
+    private final Slot[] slots;
+
+    /**
+     * The current deadline of every scheduled ID
+     */
+    private final Map<Long, Long> deadlines = new HashMap<>();
+
+    /**
+     * The last tick that was completely expired
+     */
+    private long currentTick = -1;
+
+    /**
+     * Create a new TimerWheel
+     * @param tickMs The resolution of the deadlines in ms
+     * @param slots The number of slots of the wheel
+     */
+    TimerWheel(long tickMs, int slots) {
+        if (tickMs < 1 || slots < 1) throw new IllegalArgumentException("Invalid timer wheel");
+        this.tickMs = tickMs;
+        this.slots = new Slot[slots];
+        for (int i = 0; i < slots; i++) this.slots[i] = new Slot();
+    }
+
+    /**
+     * Schedule an ID to expire at a deadline, replacing an earlier deadline of the same ID
+     * @param id The ID
+     * @param deadlineMs The deadline in ms since the epoch
+     */
+    synchronized void schedule(long id, long deadlineMs) {
+        deadlines.put(id, deadlineMs);
+        slots[slotOf(Math.max(deadlineMs / tickMs, currentTick + 1))].add(id);
+    }
+
+    /**
+     * Stop an ID from expiring
+     * @param id The ID
+     */
+    synchronized void cancel(long id) {
+        deadlines.remove(id);
+    }
+
+    /**
+     * @return The number of scheduled IDs
+     */
+    synchronized int size() {
+        return deadlines.size();
+    }
+
+    /**
+     * Remove and return all IDs whose deadline passed
+     * @param nowMs The current time in ms since the epoch
+     * @return The expired IDs
+     */
+    synchronized long[] expire(long nowMs) {
+        long nowTick = nowMs / tickMs;
+        Slot expired = new Slot();
+        if (currentTick < 0) currentTick = nowTick - slots.length;
+        long firstTick = Math.max(currentTick + 1, nowTick - slots.length + 1);
+        for (long tick = firstTick; tick <= nowTick; tick++) {
+            Slot slot = slots[slotOf(tick)];
+            int kept = 0;
+            for (int i = 0; i < slot.size; i++) {
+                long id = slot.ids[i];
+                Long deadline = deadlines.get(id);
+                if (deadline == null || slotOf(Math.max(deadline / tickMs, tick)) != slotOf(tick)) {
+                    continue; // Cancelled or rescheduled into another slot
+                }
+                if (deadline <= nowMs) {
+                    deadlines.remove(id);
+                    expired.add(id);
+                } else {
+                    slot.ids[kept++] = id; // Due in a later round of the wheel
+                }
+            }
+            slot.size = kept;
+        }
+        // The current tick is visited again next time, as it may hold deadlines later in the tick
+        currentTick = Math.max(currentTick, nowTick - 1);
+        return Arrays.copyOf(expired.ids, expired.size);
+    }
+
+    private int slotOf(long tick) {
+        return (int) (tick % slots.length);
+    }
+}
@@ -0,0 +1,167 @@
+package tpc;
+
+import com.mongodb.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Moves done and canceled transactions older than a retention window from the live transactions collection to
+ * an archive collection, so the live collection only holds recent and in-flight transactions. Every batch is
+ * first upserted into the archive and then removed from the live collection, so an archiver that crashes in
+ * between simply redoes the batch when it resumes. In the background the archiver throttles itself to a
+ * maximum number of transactions per second.
+ */
+public class TransactionArchiver {
+
+    private final static Logger LOG = Logger.getLogger(TransactionArchiver.class.getName());
+
+    /**
+     * The time to wait before looking again when there was nothing to archive
+     */
+    private final static long IDLE_INTERVAL_MS = 10000;
+
+    private final static List<String> TERMINAL_STATES = Arrays.asList(TxnState.DONE, TxnState.CANCELED);
+
+    private final DBCollection transactions, archive;
+
+    private final long retentionMs;
+
+    private final int batchSize, maxPerSecond;
+
+    private final AtomicLong archived = new AtomicLong();
+
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * Create a new TransactionArchiver
+     * @param transactions The live transactions collection
+     * @param archive The archive collection
+     * @param retentionMs The minimum age of a terminal transaction before it is archived, in ms
+     * @param batchSize The number of transactions to move at once
+     * @param maxPerSecond The maximum number of transactions to move per second in the background
+     */
+    TransactionArchiver(DBCollection transactions, DBCollection archive, long retentionMs, int batchSize,
+                        int maxPerSecond) {
+        if (retentionMs < 0 || batchSize < 1 || maxPerSecond < 1) {
+            throw new IllegalArgumentException("Invalid archiver settings");
+        }
+        this.transactions = transactions;
+        this.archive = archive;
+        this.retentionMs = retentionMs;
+        this.batchSize = batchSize;
+        this.maxPerSecond = maxPerSecond;
+    }
+
+    /**
+     * Start archiving in the background
+     */
+    public synchronized void start() {
+        if (scheduler != null) return;
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "transaction-archiver");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        schedule(scheduler, 0);
+        LOG.info(String.format("Archiving transactions older than %s ms, at most %s per second",
+                retentionMs, maxPerSecond));
+    }
+
+    /**
+     * Stop archiving in the background, waiting for a running batch to finish
+     */
+    public synchronized void stop() {
+        if (scheduler == null) return;
+        scheduler.shutdownNow();
+        try {
+            scheduler.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        scheduler = null;
+        LOG.info(String.format("Stopped archiving transactions, archived %s", archived.get()));
+    }
+
+    private void schedule(final ScheduledExecutorService scheduler, long delayMs) {
+        if (scheduler.isShutdown()) return;
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                long delayMs;
+                try {
+                    int n = archiveBatch();
+                    // Wait long enough to stay below the maximum rate
+                    delayMs = n == 0 ? IDLE_INTERVAL_MS : n * 1000L / maxPerSecond;
+                } catch (BankingException e) {
+                    delayMs = IDLE_INTERVAL_MS;
+                }
+                schedule(scheduler, delayMs);
+            }
+        }, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Archive all terminal transactions older than the retention window, without throttling
+     * @return The number of archived transactions
+     * @throws BankingException When a database error occurs
+     */
+    public long archiveAll() throws BankingException {
+        long total = 0;
+        int n;
+        while ((n = archiveBatch()) > 0) total += n;
+        return total;
+    }
+
+    /**
+     * Move one batch of terminal transactions older than the retention window to the archive
+     * @return The number of archived transactions
+     * @throws BankingException When a database error occurs
+     */
+    int archiveBatch() throws BankingException {
+        Date threshold = new Date(System.currentTimeMillis() - retentionMs);
+        try {
+            List<DBObject> txns = transactions.find(new BasicDBObject(MongoBank.STATE,
+                            new BasicDBObject("$in", TERMINAL_STATES))
+                            .append(MongoBank.LAST_MOD, new BasicDBObject("$lt", threshold)))
+                    .sort(new BasicDBObject(MongoBank.ID, 1))
+                    .limit(batchSize)
+                    .toArray();
+            if (txns.isEmpty()) return 0;
+            List<Object> txnIDs = new ArrayList<>(txns.size());
+            BulkWriteOperation bulk = archive.initializeUnorderedBulkOperation();
+            for (DBObject txn : txns) {
+                txnIDs.add(txn.get(MongoBank.ID));
+                bulk.find(new BasicDBObject(MongoBank.ID, txn.get(MongoBank.ID))).upsert().replaceOne(txn);
+            }
+            bulk.execute();
+            // Terminal transactions never change again, so the archived copies are complete
+            WriteResult result = transactions.remove(new BasicDBObject(MongoBank.ID, new BasicDBObject("$in", txnIDs))
+                    .append(MongoBank.STATE, new BasicDBObject("$in", TERMINAL_STATES)));
+            archived.addAndGet(result.getN());
+            LOG.fine(String.format("Archived %s transactions", result.getN()));
+            return txns.size();
+        } catch (MongoException e) {
+            LOG.severe(String.format("Failed to archive transactions: %s", e.getMessage()));
+            throw new BankingException(BankingError.DB_ERROR);
+        }
+    }
+
+    /**
+     * @return The number of transactions archived so far
+     */
+    public long getArchived() {
+        return archived.get();
+    }
+}
@@ -0,0 +1,325 @@
+package tpc;
+
+import com.mongodb.*;
+import org.bson.types.BSONTimestamp;
+
+import java.util.Date;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Recovers stuck transactions of a bank driven by events instead of scans. It tails the oplog for changes to
+ * the state of transactions and keeps every pending or applied transaction in a timer wheel, with a deadline of
+ * ageOfTransactionsRequiringRecovery after its last state change. Only transactions whose deadline passes
+ * without reaching a terminal state are recovered, so the cost is proportional to the number of transfers in
+ * flight instead of the size of the history. Needs a replica set, a standalone mongod has no oplog.
+ */
+public class TransactionTailer {
+
+    private final static Logger LOG = Logger.getLogger(TransactionTailer.class.getName());
+
+    private final static long TICK_MS = 100;
+
+    /**
+     * The longest delay before reopening a cursor that died without entries
+     */
+    final static long MAX_RETRY_MS = TimeUnit.SECONDS.toMillis(5);
+
+    private final static int SLOTS = 1024;
+
+    /**
+     * Oplog field names
+     */
+    final static String TS = "ts", NS = "ns", OP = "op", O = "o", O2 = "o2", OPLOG = "oplog.rs";
+
+    /**
+     * The options of the cursor on the oplog. OPLOGREPLAY lets mongod find the first entry after the timestamp
+     * without scanning the oplog from the start, so a reopened cursor resumes where the last one stopped.
+     */
+    final static int TAIL_OPTIONS = Bytes.QUERYOPTION_TAILABLE | Bytes.QUERYOPTION_AWAITDATA
+            | Bytes.QUERYOPTION_OPLOGREPLAY;
+
+    private final MongoBank mongoBank;
+
+    private final DBCollection oplog, transactions;
+
+    private final TimerWheel wheel = new TimerWheel(TICK_MS, SLOTS);
+
+    private final AtomicLong events = new AtomicLong(), recovered = new AtomicLong(), failures = new AtomicLong();
+
+    private volatile boolean running;
+
+    private volatile DBCursor cursor;
+
+    private Thread tailer;
+
+    private ScheduledExecutorService expirer;
+
+    /**
+     * Create a new TransactionTailer
+     * @param mongoBank The bank to recover transactions of
+     * @param local The local database holding the oplog
+     * @param transactions The transactions collection of the bank
+     */
+    TransactionTailer(MongoBank mongoBank, DB local, DBCollection transactions) {
+        this.mongoBank = mongoBank;
+        this.oplog = local.getCollection(OPLOG);
+        this.transactions = transactions;
+    }
+
+    /**
+     * Load the transactions in flight and start tailing the oplog from now on
+     * @throws BankingException When there is no oplog or a database error occurs
+     */
+    public synchronized void start() throws BankingException {
+        if (running) return;
+        final BSONTimestamp ts;
+        try {
+            DBCursor last = oplog.find().sort(new BasicDBObject("$natural", -1)).limit(1);
+            if (!last.hasNext()) {
+                LOG.severe("Cannot tail transactions because there is no oplog, is mongod part of a replica set?");
+                throw new BankingException(BankingError.DB_ERROR);
+            }
+            ts = (BSONTimestamp) last.next().get(TS);
+            loadTransactionsInFlight();
+        } catch (MongoException e) {
+            LOG.severe(String.format("Failed to start tailing transactions: %s", e.getMessage()));
+            throw new BankingException(BankingError.DB_ERROR);
+        }
+        running = true;
+        tailer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                tail(ts);
+            }
+        }, "transaction-tailer");
+        tailer.setDaemon(true);
+        tailer.start();
+        expirer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "transaction-expirer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        expirer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                recoverExpired();
+            }
+        }, TICK_MS, TICK_MS, TimeUnit.MILLISECONDS);
+        LOG.info(String.format("Tailing transactions, %s in flight", wheel.size()));
+    }
+
+    /**
+     * Stop tailing the oplog and recovering transactions
+     */
+    public synchronized void stop() {
+        if (!running) return;
+        running = false;
+        DBCursor current = cursor;
+        if (current != null) current.close();
+        tailer.interrupt();
+        expirer.shutdownNow();
+        try {
+            tailer.join(TimeUnit.SECONDS.toMillis(10));
+            expirer.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        LOG.info(String.format("Stopped tailing transactions after %s events, recovered %s transactions",
+                events.get(), recovered.get()));
+    }
+
+    /**
+     * Schedule every pending and applied transaction, reading the partial {state, lastModified} index of each
+     * state in lastModified order, so the index covers the query and the history is never scanned
+     */
+    private void loadTransactionsInFlight() {
+        long age = mongoBank.getAgeOfTransactionsRequiringRecovery();
+        for (String state : new String[]{TxnState.PENDING, TxnState.APPLIED}) {
+            DBCursor txns = transactions.find(new BasicDBObject(MongoBank.STATE, state),
+                    new BasicDBObject(MongoBank.LAST_MOD, 1))
+                    .sort(new BasicDBObject(MongoBank.STATE, 1).append(MongoBank.LAST_MOD, 1))
+                    .hint(MongoBank.stateIndexName(state));
+            while (txns.hasNext()) {
+                DBObject txn = txns.next();
+                long lastModified = ((Date) txn.get(MongoBank.LAST_MOD)).getTime();
+                wheel.schedule(MongoBank.txnIdOf(txn), lastModified + age);
+            }
+        }
+    }
+
+    /**
+     * Tail the oplog for changes to transactions, reopening the cursor when it dies. A cursor that dies without
+     * returning entries, e.g. because mongod keeps failing the query, is reopened after a delay that doubles up to
+     * MAX_RETRY_MS, so the tailer does not spin.
+     * @param ts The timestamp of the last oplog entry that was seen
+     */
+    private void tail(BSONTimestamp ts) {
+        String ns = transactions.getFullName();
+        long retryMs = TICK_MS;
+        while (running) {
+            boolean advanced = false, failed = false;
+            try {
+                cursor = oplog.find(tailQuery(ts, ns)).addOption(TAIL_OPTIONS);
+                while (running && cursor.hasNext()) {
+                    DBObject entry = cursor.next();
+                    ts = (BSONTimestamp) entry.get(TS);
+                    handle(entry);
+                    advanced = true;
+                }
+            } catch (MongoException | IllegalStateException e) {
+                if (!running) return;
+                failed = true;
+                LOG.warning(String.format("Tailing transactions failed, retrying in %s ms: %s", retryMs,
+                        e.getMessage()));
+            }
+            if (advanced && !failed) {
+                retryMs = TICK_MS;
+                continue;
+            }
+            try {
+                Thread.sleep(retryMs);
+            } catch (InterruptedException e) {
+                return;
+            }
+            retryMs = advanced ? TICK_MS : nextRetryMs(retryMs);
+        }
+    }
+
+    /**
+     * @return The delay before reopening a cursor after one that died without entries was reopened after retryMs
+     */
+    static long nextRetryMs(long retryMs) {
+        return Math.min(retryMs * 2, MAX_RETRY_MS);
+    }
+
+    /**
+     * The query for the oplog entries of the transactions after a timestamp. The timestamp comes first, which
+     * OPLOGREPLAY requires.
+     * @param ts The timestamp of the last oplog entry that was seen
+     * @param ns The namespace of the transactions collection
+     */
+    static DBObject tailQuery(BSONTimestamp ts, String ns) {
+        return new BasicDBObject(TS, new BasicDBObject("$gt", ts)).append(NS, ns);
+    }
+
+    /**
+     * Schedule or cancel a transaction for an insert, update or delete in the oplog
+     * @param entry The oplog entry
+     */
+    void handle(DBObject entry) {
+        events.incrementAndGet();
+        handle(wheel, entry, System.currentTimeMillis() + mongoBank.getAgeOfTransactionsRequiringRecovery());
+    }
+
+    /**
+     * Schedule or cancel a transaction for an insert, update or delete in the oplog
+     * @param wheel The timer wheel of the transactions in flight
+     * @param entry The oplog entry
+     * @param deadline The time to recover the transaction at, if it is pending or applied
+     */
+    static void handle(TimerWheel wheel, DBObject entry, long deadline) {
+        String op = (String) entry.get(OP);
+        DBObject o = (DBObject) entry.get(O);
+        Object id;
+        String state;
+        switch (op) {
+            case "i":
+                id = o.get(MongoBank.ID);
+                state = (String) o.get(MongoBank.STATE);
+                break;
+            case "u":
+                id = ((DBObject) entry.get(O2)).get(MongoBank.ID);
+                state = stateOf(o);
+                break;
+            case "d":
+                wheel.cancel(MongoBank.txnIdOf(o));
+                return;
+            default:
+                return;
+        }
+        if (state == null) return;
+        long txnID = ((Number) id).longValue();
+        if (state.equals(TxnState.PENDING) || state.equals(TxnState.APPLIED)) {
+            wheel.schedule(txnID, deadline);
+        } else {
+            wheel.cancel(txnID);
+        }
+    }
+
+    /**
+     * Get the new state from the change of an update entry, which is either a $set or, since MongoDB 5.0, a diff
+     * @param o The change
+     * @return The new state or null if the state did not change
+     */
+    static String stateOf(DBObject o) {
+        Object set = o.get("$set");
+        if (set == null && o.get("diff") instanceof DBObject) set = ((DBObject) o.get("diff")).get("u");
+        if (set instanceof DBObject) return (String) ((DBObject) set).get(MongoBank.STATE);
+        return (String) o.get(MongoBank.STATE); // A replacement
+    }
+
+    /**
+     * Recover the transactions whose deadline passed
+     */
+    private void recoverExpired() {
+        for (long txnID : wheel.expire(System.currentTimeMillis())) {
+            try {
+                if (mongoBank.recoverTransaction(txnID)) recovered.incrementAndGet();
+            } catch (BankingException | RuntimeException e) {
+                failures.incrementAndGet();
+                LOG.severe(String.format("Failed to recover transaction %s, retrying later: %s", txnID,
+                        e.getMessage()));
+                wheel.schedule(txnID, System.currentTimeMillis() + mongoBank.getAgeOfTransactionsRequiringRecovery());
+            }
+        }
+    }
+
+    /**
+     * @return Whether the tailer is running
+     */
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * @return The number of transactions in flight
+     */
+    public int getInFlight() {
+        return wheel.size();
+    }
+
+    /**
+     * @return The number of oplog entries handled
+     */
+    public long getEvents() {
+        return events.get();
+    }
+
+    /**
+     * @return The number of recovered transactions
+     */
+    public long getRecovered() {
+        return recovered.get();
+    }
+
+    /**
+     * @return The number of failed recoveries
+     */
+    public long getFailures() {
+        return failures.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s in flight, %s events, %s recovered, %s failures", getInFlight(), getEvents(),
+                getRecovered(), getFailures());
+    }
+}
@@ -0,0 +1,368 @@
+package tpc;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * A reactive streams processor that turns a stream of transfer requests into a stream of transfer results. It
+ * requests no more transfers from upstream than it may have in flight, counting those that are queued, being
+ * transferred and waiting for downstream demand, so a slow bank or a slow subscriber slows the upstream down
+ * instead of filling memory. Requests that arrive while the bank is busy are queued and transferred together
+ * with transferBatch on the executor, so the batches grow with the load. Results are emitted in the order of the
+ * requests, or as soon as they are available if ordering is not needed.
+ */
+public class TransferProcessor implements Flow.Processor<TransferRequest, TransferResult> {
+
+    private final static Logger LOG = Logger.getLogger(TransferProcessor.class.getName());
+
+    /**
+     * A request with its position in the stream
+     */
+    private static final class Pending {
+        private final long seq;
+        private final TransferRequest request;
+
+        Pending(long seq, TransferRequest request) {
+            this.seq = seq;
+            this.request = request;
+        }
+    }
+
+    private final MongoBank mongoBank;
+
+    private final Executor executor;
+
+    private final int maxInFlight, maxBatchSize, parallelism;
+
+    private final boolean ordered;
+
+    /**
+     * Serializes the draining loop, which is the only place that signals the subscriber and the upstream
+     */
+    private final AtomicInteger wip = new AtomicInteger();
+
+    private final AtomicLong transfers = new AtomicLong(), batches = new AtomicLong();
+
+    // All fields below are guarded by this
+
+    private Flow.Subscription upstream;
+
+    private Flow.Subscriber<? super TransferResult> downstream;
+
+    private final ArrayDeque<Pending> queued = new ArrayDeque<>();
+
+    /**
+     * Results by sequence number modulo maxInFlight, if ordered
+     */
+    private final TransferResult[] slots;
+
+    /**
+     * Results in completion order, if not ordered
+     */
+    private final ArrayDeque<TransferResult> ready = new ArrayDeque<>();
+
+    /**
+     * Downstream demand, the sequence number of the next request to receive and of the next result to emit
+     */
+    private long demand, nextSeq, nextEmit;
+
+    /**
+     * The number of requests asked from upstream and not yet received
+     */
+    private long unreceived;
+
+    private int runningBatches;
+
+    private boolean subscribed, upstreamDone, canceled, terminated;
+
+    private Throwable upstreamError, failure;
+
+    /**
+     * Create a new TransferProcessor
+     * @param mongoBank The bank to transfer with
+     * @param executor The executor to run the batches on
+     * @param maxInFlight The maximum number of requests that are queued, transferred or waiting to be emitted
+     * @param maxBatchSize The maximum number of requests transferred in one batch
+     * @param parallelism The maximum number of batches transferred at once
+     * @param ordered Whether results are emitted in the order of the requests
+     */
+    public TransferProcessor(MongoBank mongoBank, Executor executor, int maxInFlight, int maxBatchSize,
+                             int parallelism, boolean ordered) {
+        if (maxInFlight < 1 || maxBatchSize < 1 || parallelism < 1) {
+            throw new IllegalArgumentException("Invalid transfer processor settings");
+        }
+        this.mongoBank = mongoBank;
+        this.executor = executor;
+        this.maxInFlight = maxInFlight;
+        this.maxBatchSize = maxBatchSize;
+        this.parallelism = parallelism;
+        this.ordered = ordered;
+        this.slots = ordered ? new TransferResult[maxInFlight] : null;
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+        if (subscription == null) throw new NullPointerException("Subscription must not be null");
+        synchronized (this) {
+            if (upstream != null || canceled) {
+                subscription.cancel();
+                return;
+            }
+            upstream = subscription;
+        }
+        drain();
+    }
+
+    @Override
+    public void onNext(TransferRequest request) {
+        if (request == null) throw new NullPointerException("Transfer request must not be null");
+        synchronized (this) {
+            if (upstreamDone || canceled || failure != null) return;
+            if (unreceived == 0) {
+                fail(new IllegalStateException("Received more transfer requests than were requested"));
+            } else {
+                unreceived--;
+                queued.add(new Pending(nextSeq++, request));
+            }
+        }
+        drain();
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        if (throwable == null) throw new NullPointerException("Error must not be null");
+        synchronized (this) {
+            if (upstreamDone) return;
+            upstreamDone = true;
+            upstreamError = throwable;
+        }
+        drain();
+    }
+
+    @Override
+    public void onComplete() {
+        synchronized (this) {
+            upstreamDone = true;
+        }
+        drain();
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super TransferResult> subscriber) {
+        if (subscriber == null) throw new NullPointerException("Subscriber must not be null");
+        boolean first;
+        synchronized (this) {
+            first = !subscribed;
+            subscribed = true;
+        }
+        if (!first) {
+            // Only a single subscriber is supported, because every transfer is done once
+            subscriber.onSubscribe(new Flow.Subscription() {
+                @Override
+                public void request(long n) {
+                }
+
+                @Override
+                public void cancel() {
+                }
+            });
+            subscriber.onError(new IllegalStateException("A transfer processor supports a single subscriber"));
+            return;
+        }
+        subscriber.onSubscribe(new Flow.Subscription() {
+            @Override
+            public void request(long n) {
+                synchronized (TransferProcessor.this) {
+                    if (n <= 0) {
+                        fail(new IllegalArgumentException("Demand must be positive, got " + n));
+                    } else {
+                        demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+                    }
+                }
+                drain();
+            }
+
+            @Override
+            public void cancel() {
+                synchronized (TransferProcessor.this) {
+                    canceled = true;
+                    queued.clear();
+                }
+                drain();
+            }
+        });
+        // Only signal the subscriber once it has its subscription
+        synchronized (this) {
+            downstream = subscriber;
+        }
+        drain();
+    }
+
+    /**
+     * @return The number of transfer requests that were passed to the bank
+     */
+    public long getTransfers() {
+        return transfers.get();
+    }
+
+    /**
+     * @return The number of batches the transfers were done in
+     */
+    public long getBatches() {
+        return batches.get();
+    }
+
+    /**
+     * Fail the stream, to be signaled by the next drain. Must hold the lock.
+     */
+    private void fail(Throwable throwable) {
+        if (failure == null) failure = throwable;
+        queued.clear();
+    }
+
+    /**
+     * Start batches, emit results and ask upstream for more, until there is nothing left to do. Only one thread
+     * drains at a time, and a thread that finds another one draining makes it loop once more.
+     */
+    private void drain() {
+        if (wip.getAndIncrement() != 0) return;
+        int missed = 1;
+        do {
+            startBatches();
+            emit();
+            missed = wip.addAndGet(-missed);
+        } while (missed != 0);
+    }
+
+    private void startBatches() {
+        List<List<Pending>> toStart = new ArrayList<>();
+        synchronized (this) {
+            if (downstream == null || terminated) return;
+            while (runningBatches < parallelism && !queued.isEmpty()) {
+                List<Pending> batch = new ArrayList<>(Math.min(maxBatchSize, queued.size()));
+                while (batch.size() < maxBatchSize && !queued.isEmpty()) batch.add(queued.poll());
+                toStart.add(batch);
+                runningBatches++;
+            }
+        }
+        for (final List<Pending> batch : toStart) {
+            try {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        transfer(batch);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                synchronized (this) {
+                    runningBatches--;
+                    fail(e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Transfer a batch of requests and hand the results to the draining loop
+     */
+    private void transfer(List<Pending> batch) {
+        List<TransferRequest> requests = new ArrayList<>(batch.size());
+        for (Pending pending : batch) requests.add(pending.request);
+        List<TransferResult> results = null;
+        RuntimeException unexpected = null;
+        try {
+            results = mongoBank.transferBatch(requests);
+        } catch (BankingException e) {
+            LOG.severe(String.format("Failed to transfer a batch of %s requests: %s", requests.size(),
+                    e.getMessage()));
+            results = new ArrayList<>(requests.size());
+            for (TransferRequest request : requests) results.add(new TransferResult(request, -1, e.getError()));
+        } catch (RuntimeException e) {
+            unexpected = e;
+        }
+        transfers.addAndGet(requests.size());
+        batches.incrementAndGet();
+        synchronized (this) {
+            runningBatches--;
+            if (unexpected != null) {
+                fail(unexpected);
+            } else if (!canceled && failure == null) {
+                for (int i = 0; i < batch.size(); i++) {
+                    if (ordered) slots[(int) (batch.get(i).seq % maxInFlight)] = results.get(i);
+                    else ready.add(results.get(i));
+                }
+            }
+        }
+        drain();
+    }
+
+    private void emit() {
+        Flow.Subscriber<? super TransferResult> subscriber;
+        Flow.Subscription subscription;
+        while (true) {
+            TransferResult result = null;
+            Throwable error = null;
+            boolean complete = false, cancel = false;
+            long request = 0;
+            synchronized (this) {
+                subscriber = downstream;
+                subscription = upstream;
+                if (subscriber == null || subscription == null || terminated) return;
+                // Ask for more once a quarter of the window is free, rather than for every emitted result
+                long free = maxInFlight - (nextSeq - nextEmit) - unreceived;
+                if (canceled || failure != null) {
+                    terminated = true;
+                    cancel = !upstreamDone;
+                    error = canceled ? null : failure;
+                } else if (demand > 0 && (result = poll()) != null) {
+                    demand--;
+                } else if (upstreamDone && nextSeq == nextEmit) {
+                    terminated = true;
+                    error = upstreamError;
+                    complete = error == null;
+                } else if (!upstreamDone && free >= Math.max(1, maxInFlight / 4)) {
+                    request = free;
+                    unreceived += free;
+                } else {
+                    return;
+                }
+            }
+            if (result != null) {
+                subscriber.onNext(result);
+            } else if (request > 0) {
+                subscription.request(request);
+            } else {
+                if (cancel) subscription.cancel();
+                if (error != null) subscriber.onError(error);
+                else if (complete) subscriber.onComplete();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Take the next result that may be emitted. Must hold the lock.
+     * @return The result, or null if there is none yet
+     */
+    private TransferResult poll() {
+        if (!ordered) {
+            TransferResult result = ready.poll();
+            if (result != null) nextEmit++;
+            return result;
+        }
+        int slot = (int) (nextEmit % maxInFlight);
+        TransferResult result = slots[slot];
+        if (result != null) {
+            slots[slot] = null;
+            nextEmit++;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,59 @@
+package tpc;
+
+/**
+ * A request to transfer money from one account to another
+ */
+public final class TransferRequest {
+
+    private final int srcAcctNr, destAcctNr;
+
+    private final long amountInCents;
+
+    private final String idempotencyKey;
+
+    /**
+     * Create a new TransferRequest
+     * @param srcAcctNr The source of the transfer
+     * @param destAcctNr The destination of the transfer
+     * @param amountInCents The amount in cents to transfer from source to destination
+     */
+    public TransferRequest(int srcAcctNr, int destAcctNr, long amountInCents) {
+        this(srcAcctNr, destAcctNr, amountInCents, null);
+    }
+
+    /**
+     * Create a new TransferRequest that can safely be retried
+     * @param srcAcctNr The source of the transfer
+     * @param destAcctNr The destination of the transfer
+     * @param amountInCents The amount in cents to transfer from source to destination
+     * @param idempotencyKey A key chosen by the client that is unique for every transfer, so a retry of the same
+     *                       transfer with the same key moves the money at most once, or null
+     */
+    public TransferRequest(int srcAcctNr, int destAcctNr, long amountInCents, String idempotencyKey) {
+        this.srcAcctNr = srcAcctNr;
+        this.destAcctNr = destAcctNr;
+        this.amountInCents = amountInCents;
+        this.idempotencyKey = idempotencyKey;
+    }
+
+    public int getSrcAcctNr() {
+        return srcAcctNr;
+    }
+
+    public int getDestAcctNr() {
+        return destAcctNr;
+    }
+
+    public long getAmountInCents() {
+        return amountInCents;
+    }
+
+    public String getIdempotencyKey() {
+        return idempotencyKey;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s from account %s to account %s", Money.format(amountInCents), srcAcctNr, destAcctNr);
+    }
+}
@@ -0,0 +1,46 @@
+package tpc;
+
+/**
+ * The outcome of a transfer request
+ */
+public final class TransferResult {
+
+    private final TransferRequest request;
+
+    private final long txnID;
+
+    private final BankingError error;
+
+    /**
+     * Create a new TransferResult
+     * @param request The request this is the outcome of
+     * @param txnID The ID of the transaction that was created for the request, or -1 if none was created
+     * @param error The error that made the transfer fail, or null if it succeeded
+     */
+    TransferResult(TransferRequest request, long txnID, BankingError error) {
+        this.request = request;
+        this.txnID = txnID;
+        this.error = error;
+    }
+
+    public TransferRequest getRequest() {
+        return request;
+    }
+
+    public long getTxnID() {
+        return txnID;
+    }
+
+    public BankingError getError() {
+        return error;
+    }
+
+    public boolean isSuccess() {
+        return error == null;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Transfer of %s %s", request, isSuccess() ? "succeeded" : "failed: " + error);
+    }
+}
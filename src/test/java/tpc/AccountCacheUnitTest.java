@@ -0,0 +1,85 @@
+package tpc;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the account cache that do not need a database
+ */
+public class AccountCacheUnitTest {
+
+    /**
+     * Test that loaded accounts are cached and counted as hits and misses
+     */
+    @Test
+    public void hitMissTest() {
+        AccountCache cache = new AccountCache(100, 60000);
+        assertEquals(AccountCache.MISS, cache.getBalance(1));
+        assertNull(cache.isClosed(1));
+        cache.putLoaded(1, 1234, false, cache.stamp(1));
+        assertEquals(1234, cache.getBalance(1));
+        assertEquals(Boolean.FALSE, cache.isClosed(1));
+        assertEquals(2, cache.getHits());
+        assertEquals(2, cache.getMisses());
+        assertEquals(0.5, cache.getHitRate(), 0);
+        cache.invalidate(1);
+        assertEquals(AccountCache.MISS, cache.getBalance(1));
+        assertEquals(0, cache.size());
+    }
+
+    /**
+     * Test that an account loaded while the bank wrote to it is not cached
+     */
+    @Test
+    public void concurrentWriteTest() {
+        AccountCache cache = new AccountCache(100, 60000);
+        long stamp = cache.stamp(7);
+        cache.invalidate(7);
+        cache.putLoaded(7, 100, false, stamp);
+        assertEquals(AccountCache.MISS, cache.getBalance(7));
+        cache.putLoaded(7, 200, true, cache.stamp(7));
+        assertEquals(200, cache.getBalance(7));
+        assertEquals(Boolean.TRUE, cache.isClosed(7));
+    }
+
+    /**
+     * Test that the least recently used account is evicted when the cache is full
+     */
+    @Test
+    public void evictionTest() {
+        AccountCache cache = new AccountCache(1, 60000);
+        cache.putLoaded(1, 1, false, cache.stamp(1));
+        cache.putLoaded(2, 2, false, cache.stamp(2));
+        assertEquals(1, cache.size());
+        assertEquals(1, cache.getEvictions());
+        assertEquals(AccountCache.MISS, cache.getBalance(1));
+        assertEquals(2, cache.getBalance(2));
+
+        cache = new AccountCache(1000, 60000);
+        for (int acctNr = 0; acctNr < 5000; acctNr++) {
+            cache.putLoaded(acctNr, acctNr, false, cache.stamp(acctNr));
+            cache.getBalance(0); // Keep account 0 recently used
+        }
+        assertTrue(cache.size() <= 1000);
+        assertEquals(0, cache.getBalance(0));
+        assertEquals(4999, cache.getBalance(4999));
+        for (int acctNr = 1; acctNr < 5000; acctNr++) {
+            long balance = cache.getBalance(acctNr);
+            assertTrue(balance == AccountCache.MISS || balance == acctNr);
+        }
+    }
+
+    /**
+     * Test that accounts older than the staleness bound are not returned
+     * @throws InterruptedException
+     */
+    @Test
+    public void stalenessTest() throws InterruptedException {
+        AccountCache cache = new AccountCache(10, 5);
+        cache.putLoaded(1, 1, false, cache.stamp(1));
+        Thread.sleep(20);
+        assertEquals(AccountCache.MISS, cache.getBalance(1));
+        assertEquals(0, cache.size());
+    }
+}
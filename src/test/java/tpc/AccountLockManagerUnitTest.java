@@ -0,0 +1,80 @@
+package tpc;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests for the striped account locks that do not need a database
+ */
+public class AccountLockManagerUnitTest {
+
+    /**
+     * Test that the number of stripes is rounded up to a power of two
+     */
+    @Test
+    public void stripesTest() {
+        assertEquals(1, new AccountLockManager(1, false).getStripes());
+        assertEquals(64, new AccountLockManager(64, false).getStripes());
+        assertEquals(128, new AccountLockManager(65, true).getStripes());
+    }
+
+    /**
+     * Test that transfers in opposite directions between the same accounts serialize without deadlocks
+     * @throws Exception
+     */
+    @Test(timeout = 10000)
+    public void oppositeTransfersTest() throws Exception {
+        final AccountLockManager lockManager = new AccountLockManager(16, false);
+        final int[] balances = new int[32];
+        final int threads = 8, transfersPerThread = 20000;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            futures.add(executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    for (int j = 0; j < transfersPerThread; j++) {
+                        int src = random.nextInt(balances.length), dest = random.nextInt(balances.length);
+                        AccountLockManager.Locked locked = lockManager.lock(src, dest);
+                        try {
+                            balances[src]--;
+                            balances[dest]++;
+                        } finally {
+                            locked.close();
+                        }
+                    }
+                }
+            }));
+        }
+        for (Future<?> future : futures) future.get();
+        executor.shutdown();
+        int sum = 0;
+        for (int balance : balances) sum += balance;
+        assertEquals(0, sum);
+    }
+
+    /**
+     * Test that locking many accounts at once takes every lock once, so it can be released again
+     */
+    @Test(timeout = 10000)
+    public void lockAllTest() throws Exception {
+        final AccountLockManager lockManager = new AccountLockManager(4, true);
+        lockManager.lockAll(Arrays.asList(1, 2, 3, 4, 5, 6, 7, 8, 1, 2)).close();
+        // All locks must be free again for another thread
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                lockManager.lockAll(Arrays.asList(1, 2, 3, 4, 5, 6, 7, 8)).close();
+            }
+        }).get();
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,95 @@
+package tpc;
+
+import org.junit.Test;
+
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the admission controller that do not need a database
+ */
+public class AdmissionControllerUnitTest {
+
+    /**
+     * Test that callers over the limit are rejected when the queue is full or their deadline passes
+     * @throws Exception
+     */
+    @Test
+    public void rejectTest() throws Exception {
+        AdmissionController controller = new AdmissionController(1, 1, 1000, 1, 20);
+        long admittedAt = controller.acquire();
+        try {
+            controller.acquire();
+            fail("Expected the deadline to pass");
+        } catch (BankingException e) {
+            assertEquals(BankingError.OVERLOADED, e.getError());
+        }
+        controller.release(admittedAt, false);
+        controller.release(controller.acquire(), false);
+        assertEquals(2, controller.getAdmitted());
+        assertEquals(1, controller.getRejected());
+
+        controller = new AdmissionController(1, 1, 1000, 0, 1000);
+        controller.acquire();
+        long start = System.nanoTime();
+        try {
+            controller.acquire();
+            fail("Expected the full queue to reject");
+        } catch (BankingException e) {
+            assertEquals(BankingError.OVERLOADED, e.getError());
+        }
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(500));
+    }
+
+    /**
+     * Test that a released slot is handed to a queued caller
+     * @throws Exception
+     */
+    @Test
+    public void queueTest() throws Exception {
+        final AdmissionController controller = new AdmissionController(1, 1, 1000, 10, 10000);
+        long admittedAt = controller.acquire();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Long> queued = executor.submit(new Callable<Long>() {
+                @Override
+                public Long call() throws BankingException {
+                    return controller.acquire();
+                }
+            });
+            while (controller.getQueueDepth() == 0) Thread.sleep(1);
+            assertEquals(1, controller.getInFlight());
+            controller.release(admittedAt, false);
+            controller.release(queued.get(10, TimeUnit.SECONDS), false);
+            assertEquals(0, controller.getQueueDepth());
+            assertEquals(0, controller.getInFlight());
+            assertEquals(0, controller.getRejected());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Test that the limit grows while writes are fast and shrinks when they are slow or fail
+     * @throws Exception
+     */
+    @Test
+    public void limitTest() throws Exception {
+        AdmissionController controller = new AdmissionController(2, 3, 1000, 0, 0);
+        for (int i = 0; i < 20; i++) {
+            long admittedAt1 = controller.acquire(), admittedAt2 = controller.acquire();
+            controller.release(admittedAt1, false);
+            controller.release(admittedAt2, false);
+        }
+        assertEquals(3, controller.getLimit(), 0);
+        long slow = System.nanoTime() - TimeUnit.SECONDS.toNanos(2);
+        controller.acquire();
+        controller.release(slow, false);
+        assertEquals(2.7, controller.getLimit(), 0.001);
+        controller.acquire();
+        controller.release(System.nanoTime(), true);
+        assertEquals(2.7, controller.getLimit(), 0.001); // At most one decrease per target latency
+        assertTrue(controller.getAverageLatencyMicros() > 0);
+    }
+}
@@ -0,0 +1,41 @@
+package tpc;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the primitive balances map that do not need a database
+ */
+public class BalancesUnitTest {
+
+    /**
+     * Test that balances survive growing the map and that missing accounts are reported once
+     */
+    @Test
+    public void putGetMissingTest() {
+        Balances balances = new Balances(1);
+        for (int acctNr = -500; acctNr < 500; acctNr += 2) balances.put(acctNr, acctNr * 100L);
+        balances.put(10, 7);
+        assertEquals(500, balances.size());
+        assertEquals(7, balances.getOrDefault(10, -1));
+        assertEquals(-50000, balances.getOrDefault(-500, -1));
+        assertTrue(balances.contains(498));
+        assertFalse(balances.contains(499));
+        assertEquals(-1, balances.getOrDefault(499, -1));
+
+        balances.setMissing(new int[]{3, 10, 1, 3, 12});
+        assertArrayEquals(new int[]{1, 3}, balances.getMissing());
+
+        final AtomicLong sum = new AtomicLong();
+        balances.forEach(new BalanceConsumer() {
+            @Override
+            public void accept(int acctNr, long balanceInCents) {
+                sum.addAndGet(balanceInCents);
+            }
+        });
+        assertEquals(-50000 + 7 - 1000, sum.get());
+    }
+}
@@ -0,0 +1,291 @@
+package tpc;
+
+import com.mongodb.*;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Throughput benchmarks against a running bank. These are not part of the regular test run.
+ * To run them: `mvn test -Dtest=BankBenchmark`
+ */
+public class BankBenchmark {
+
+    private final static Logger LOG = Logger.getLogger(BankBenchmark.class.getName());
+
+    private final static int THREADS = 32, TRANSFERS_PER_THREAD = 100, ACCOUNTS = 64;
+
+    private MongoBank mongoBank;
+
+    public BankBenchmark() throws BankingException {
+        mongoBank = MongoBank.getInstance();
+    }
+
+    /**
+     * Drop all documents in the DB and silence the per-operation logging of the bank
+     * @throws BankingException
+     */
+    @Before
+    public void before() throws BankingException {
+        Logger.getLogger(MongoBank.class.getName()).setLevel(Level.WARNING);
+        mongoBank.reset();
+    }
+
+    /**
+     * Compare transfer throughput of the block-leased and the time-ordered transaction ID generators
+     * @throws Exception
+     */
+    @Test
+    public void transactionIdGeneratorBenchmark() throws Exception {
+        int[] acctNrs = createFundedAccounts(ACCOUNTS, 1000000f);
+        double blockTps = concurrentTransfers(acctNrs, THREADS, TRANSFERS_PER_THREAD);
+        IdGenerator blockIds = mongoBank.getTransactionIdGenerator();
+        TimeOrderedIdGenerator timeOrderedIds = mongoBank.newTimeOrderedIdGenerator();
+        mongoBank.setTransactionIdGenerator(timeOrderedIds);
+        try {
+            double timeOrderedTps = concurrentTransfers(acctNrs, THREADS, TRANSFERS_PER_THREAD);
+            LOG.info(String.format("Transfers/s with block-leased IDs: %.1f, with time-ordered IDs: %.1f",
+                    blockTps, timeOrderedTps));
+        } finally {
+            mongoBank.setTransactionIdGenerator(blockIds);
+            timeOrderedIds.release();
+            mongoBank.reset();
+        }
+    }
+
+    /**
+     * Compare transfer throughput of the blocking API on a fixed thread pool with the async API on a
+     * virtual-thread-per-task executor, with many transfers in flight
+     * @throws Exception
+     */
+    @Test
+    public void asyncTransferBenchmark() throws Exception {
+        int[] acctNrs = createFundedAccounts(ACCOUNTS, 1000000f);
+        double blockingTps = concurrentTransfers(acctNrs, THREADS, TRANSFERS_PER_THREAD);
+        final int inFlight = 1000;
+        ExecutorService executor = AsyncMongoBank.newVirtualThreadPerTaskExecutor();
+        AsyncMongoBank asyncBank = new AsyncMongoBank(mongoBank, executor);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int i = 0; i < THREADS * TRANSFERS_PER_THREAD; i++) {
+            int src = acctNrs[random.nextInt(acctNrs.length)];
+            int dest = acctNrs[random.nextInt(acctNrs.length)];
+            if (src != dest) futures.add(asyncBank.transferAsync(src, dest, 1f));
+            if (futures.size() == inFlight) {
+                CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).join();
+                futures.clear();
+            }
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).join();
+        double asyncTps = THREADS * TRANSFERS_PER_THREAD / ((System.nanoTime() - start) / 1e9);
+        executor.shutdown();
+        LOG.info(String.format("Transfers/s blocking with %s threads: %.1f, async with up to %s in flight: %.1f",
+                THREADS, blockingTps, inFlight, asyncTps));
+    }
+
+    /**
+     * Compare deposit throughput with and without write-combining, for a Zipf-skewed load where a few hot
+     * accounts receive most of the deposits
+     * @throws Exception
+     */
+    @Test
+    public void depositCombiningBenchmark() throws Exception {
+        int[] acctNrs = createFundedAccounts(ACCOUNTS * 4, 0f);
+        double[] zipf = zipfDistribution(acctNrs.length, 1.2);
+        double plainTps = concurrentDeposits(acctNrs, zipf);
+        mongoBank.enableDepositCombining(500, 64);
+        try {
+            double combinedTps = concurrentDeposits(acctNrs, zipf);
+            LOG.info(String.format("Deposits/s without combining: %.1f, with combining: %.1f (%s)",
+                    plainTps, combinedTps, mongoBank.getDepositCombiner()));
+        } finally {
+            mongoBank.disableDepositCombining();
+        }
+    }
+
+    /**
+     * Compare the cost of fetching and decoding whole account documents with fetching only the balance, for
+     * accounts with large pending transactions arrays
+     * @throws Exception
+     */
+    @Test
+    public void accountProjectionBenchmark() throws Exception {
+        final int pending = 10000, lookups = 1000;
+        int[] acctNrs = createFundedAccounts(2, 1000000f);
+        List<TransferRequest> requests = new ArrayList<>();
+        for (int i = 0; i < pending; i++) requests.add(new TransferRequest(acctNrs[0], acctNrs[1], 1));
+        try {
+            // Fails in the pending state, which leaves the transactions in both accounts
+            mongoBank.transferBatch(requests, TxnState.PENDING);
+        } catch (BankingException e) { /* Ignore */ }
+        MongoClient mongoClient = new MongoClient("localhost");
+        try {
+            DBCollection accounts = mongoClient.getDB(MongoBank.DB).getCollection(MongoBank.ACCOUNTS);
+            DBObject query = new BasicDBObject(MongoBank.ID, acctNrs[0]);
+            DBObject projection = new BasicDBObject(MongoBank.BALANCE, 1);
+            long start = System.nanoTime();
+            for (int i = 0; i < lookups; i++) MongoBank.balanceOf(accounts.findOne(query));
+            double wholeUs = (System.nanoTime() - start) / 1e3 / lookups;
+            start = System.nanoTime();
+            for (int i = 0; i < lookups; i++) MongoBank.balanceOf(accounts.findOne(query, projection));
+            double projectedUs = (System.nanoTime() - start) / 1e3 / lookups;
+            start = System.nanoTime();
+            for (int i = 0; i < lookups; i++) mongoBank.getBalanceInCents(acctNrs[0]);
+            double bankUs = (System.nanoTime() - start) / 1e3 / lookups;
+            LOG.info(String.format("us per balance lookup with %s pending transactions: whole document %.1f, " +
+                    "projected %.1f, getBalance %.1f", pending, wholeUs, projectedUs, bankUs));
+        } finally {
+            mongoClient.close();
+        }
+    }
+
+    /**
+     * Compare transfer throughput with and without striping, for a skewed load where one hot account, like a fee
+     * account or a payroll source, is the source or destination of most transfers
+     * @throws Exception
+     */
+    @Test
+    public void stripedAccountBenchmark() throws Exception {
+        int[] acctNrs = createFundedAccounts(ACCOUNTS, 1000000f);
+        int hotAcctNr = acctNrs[0];
+        double plainTps = hotAccountTransfers(acctNrs, hotAcctNr, 0.8);
+        mongoBank.stripeAccount(hotAcctNr, 8);
+        double stripedTps = hotAccountTransfers(acctNrs, hotAcctNr, 0.8);
+        LOG.info(String.format("Transfers/s with 80%% on a hot account: %.1f, with the hot account striped 8 ways: %.1f",
+                plainTps, stripedTps));
+    }
+
+    /**
+     * Run transfers from many threads at once, where a share of the transfers goes to or comes from a hot account
+     * and the others are between random accounts
+     * @return The throughput in transfers per second
+     */
+    private double hotAccountTransfers(final int[] acctNrs, final int hotAcctNr, final double hotShare)
+            throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        List<Future<?>> futures = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int i = 0; i < THREADS; i++) {
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws BankingException {
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    for (int j = 0; j < TRANSFERS_PER_THREAD; j++) {
+                        int src = acctNrs[random.nextInt(acctNrs.length)];
+                        int dest = acctNrs[random.nextInt(acctNrs.length)];
+                        if (random.nextDouble() < hotShare) {
+                            // Half of the hot transfers credit the hot account and half debit it
+                            if (random.nextBoolean()) dest = hotAcctNr;
+                            else src = hotAcctNr;
+                        }
+                        if (src != dest) mongoBank.transferCents(src, dest, 100);
+                    }
+                    return null;
+                }
+            }));
+        }
+        for (Future<?> future : futures) future.get();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        executor.shutdown();
+        return THREADS * TRANSFERS_PER_THREAD / seconds;
+    }
+
+    /**
+     * Run deposits into accounts picked from a distribution from many threads at once
+     * @return The throughput in deposits per second
+     */
+    private double concurrentDeposits(final int[] acctNrs, final double[] distribution) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        List<Future<?>> futures = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int i = 0; i < THREADS; i++) {
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws BankingException {
+                    for (int j = 0; j < TRANSFERS_PER_THREAD; j++) {
+                        mongoBank.depositCents(acctNrs[sample(distribution)], 100);
+                    }
+                    return null;
+                }
+            }));
+        }
+        for (Future<?> future : futures) future.get();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        executor.shutdown();
+        return THREADS * TRANSFERS_PER_THREAD / seconds;
+    }
+
+    /**
+     * Get the cumulative Zipf distribution over n ranks
+     * @param n The number of ranks
+     * @param s The skew
+     * @return The cumulative probability of every rank
+     */
+    private static double[] zipfDistribution(int n, double s) {
+        double[] cdf = new double[n];
+        double sum = 0;
+        for (int i = 0; i < n; i++) cdf[i] = sum += 1 / Math.pow(i + 1, s);
+        for (int i = 0; i < n; i++) cdf[i] /= sum;
+        return cdf;
+    }
+
+    /**
+     * Pick a random rank from a cumulative distribution
+     */
+    private static int sample(double[] cdf) {
+        int rank = Arrays.binarySearch(cdf, ThreadLocalRandom.current().nextDouble());
+        return Math.min(rank < 0 ? -rank - 1 : rank, cdf.length - 1);
+    }
+
+    /**
+     * Create accounts with an initial balance
+     * @param count The number of accounts
+     * @param balance The initial balance of every account
+     * @return The account numbers
+     * @throws BankingException
+     */
+    private int[] createFundedAccounts(int count, float balance) throws BankingException {
+        int[] acctNrs = new int[count];
+        for (int i = 0; i < count; i++) {
+            acctNrs[i] = mongoBank.createAccount();
+            mongoBank.deposit(acctNrs[i], balance);
+        }
+        return acctNrs;
+    }
+
+    /**
+     * Run transfers between random accounts from many threads at once
+     * @return The throughput in transfers per second
+     */
+    private double concurrentTransfers(final int[] acctNrs, int threads, final int transfersPerThread)
+            throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<?>> futures = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int i = 0; i < threads; i++) {
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws BankingException {
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    for (int j = 0; j < transfersPerThread; j++) {
+                        int src = acctNrs[random.nextInt(acctNrs.length)];
+                        int dest = acctNrs[random.nextInt(acctNrs.length)];
+                        if (src != dest) mongoBank.transfer(src, dest, 1f);
+                    }
+                    return null;
+                }
+            }));
+        }
+        for (Future<?> future : futures) future.get();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        executor.shutdown();
+        return threads * transfersPerThread / seconds;
+    }
+}
@@ -1,11 +1,20 @@
 package tpc;
 
+import com.mongodb.BasicDBObject;
+import com.mongodb.MongoClient;
 import org.junit.Test;
 import org.junit.Before;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.*;
 import java.util.logging.Logger;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 /**
  * Tests to make sure the bank works as expected
@@ -33,6 +42,15 @@ public class BankUnitTest {
         mongoBank.reset();
     }
 
+    /**
+     * Test that the queries on transactions in flight use the partial state indexes, also when they filter on
+     * the state alone
+     */
+    @Test
+    public void indexesTest() {
+        assertTrue(mongoBank.verifyIndexes());
+    }
+
     /**
      * Test that account numbers are sequential and start with 1.
      * @throws BankingException
@@ -45,6 +63,30 @@ public class BankUnitTest {
         assertEquals(2, accountNr);
     }
 
+    /**
+     * Test that account numbers created concurrently are unique
+     * @throws Exception
+     */
+    @Test
+    public void concurrentAccountCreationTest() throws Exception {
+        final int threads = 8, accountsPerThread = 50;
+        final Set<Integer> acctNrs = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws BankingException {
+                    for (int j = 0; j < accountsPerThread; j++) acctNrs.add(mongoBank.createAccount());
+                    return null;
+                }
+            }));
+        }
+        for (Future<?> future : futures) future.get();
+        executor.shutdown();
+        assertEquals(threads * accountsPerThread, acctNrs.size());
+    }
+
     /**
      * Test account closing. Specifically that non-existing cannot be closed.
      * @throws BankingException
@@ -75,6 +117,54 @@ public class BankUnitTest {
         assertEquals(50.23f, mongoBank.deposit(accountNr, 50.23f), 0f);
     }
 
+    /**
+     * Test that concurrent deposits into the same account are combined and all add up
+     * @throws Exception
+     */
+    @Test
+    public void depositCombiningTest() throws Exception {
+        final int acctNr = mongoBank.createAccount();
+        final int threads = 16, depositsPerThread = 20;
+        mongoBank.enableDepositCombining(2000, threads);
+        try {
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws BankingException {
+                        for (int j = 0; j < depositsPerThread; j++) mongoBank.depositCents(acctNr, 1);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<?> future : futures) future.get();
+            executor.shutdown();
+            assertEquals(threads * depositsPerThread, mongoBank.getBalanceInCents(acctNr));
+            assertEquals(threads * depositsPerThread, mongoBank.getDepositCombiner().getDeposits());
+            assertTrue(mongoBank.getDepositCombiner().getWrites() < threads * depositsPerThread);
+        } finally {
+            mongoBank.disableDepositCombining();
+        }
+    }
+
+    /**
+     * Test that amounts in cents add up exactly
+     * @throws BankingException
+     */
+    @Test
+    public void centsTest() throws BankingException {
+        int acctNr1 = mongoBank.createAccount();
+        int acctNr2 = mongoBank.createAccount();
+        for (int i = 0; i < 10; i++) mongoBank.deposit(acctNr1, 0.1f);
+        assertEquals(100, mongoBank.getBalanceInCents(acctNr1));
+        assertEquals(99, mongoBank.withdrawCents(acctNr1, 1));
+        mongoBank.transferCents(acctNr1, acctNr2, 33);
+        assertEquals(66, mongoBank.getBalanceInCents(acctNr1));
+        assertEquals(33, mongoBank.getBalanceInCents(acctNr2));
+        assertEquals(0.33f, mongoBank.getBalance(acctNr2), 0f);
+    }
+
     /**
      * Test that a withdrawal is reflected in the returned balance
      * @throws BankingException
@@ -87,6 +177,42 @@ public class BankUnitTest {
         assertEquals(100f, balance, 0f);
     }
 
+    /**
+     * Test that deposits and withdrawals fail for closed accounts and that overdrafts are refused
+     * @throws BankingException
+     */
+    @Test
+    public void depositWithdrawErrorsTest() throws BankingException {
+        int accountNr = mongoBank.createAccount();
+        mongoBank.deposit(accountNr, 10f);
+        try {
+            mongoBank.withdraw(accountNr, 10.01f);
+            fail("Withdrawing more than the balance should fail");
+        } catch (BankingException e) {
+            assertEquals(BankingError.INSUFFICIENT_BALANCE.getCode(), e.getCode());
+        }
+        mongoBank.closeAccount(accountNr);
+        try {
+            mongoBank.deposit(accountNr, 10f);
+            fail("Depositing into a closed account should fail");
+        } catch (BankingException e) {
+            assertEquals(BankingError.CLOSED_ACCOUNT.getCode(), e.getCode());
+        }
+        try {
+            mongoBank.withdraw(accountNr, 5f);
+            fail("Withdrawing from a closed account should fail");
+        } catch (BankingException e) {
+            assertEquals(BankingError.CLOSED_ACCOUNT.getCode(), e.getCode());
+        }
+        try {
+            mongoBank.deposit(13, 10f); // This account does not exist
+            fail("Depositing into a non-existing account should fail");
+        } catch (BankingException e) {
+            assertEquals(BankingError.NON_EXISTING_ACCOUNT.getCode(), e.getCode());
+        }
+        assertEquals(10f, mongoBank.getBalance(accountNr), 0f);
+    }
+
     /**
      * Test that a transfer succeeds and is reflected in the balances of source and destination accounts
      * @throws BankingException
@@ -101,6 +227,238 @@ public class BankUnitTest {
         assertEquals(45.34f, mongoBank.getBalance(acctNr2), 0f);
     }
 
+    /**
+     * Test that a batch of transfers succeeds, except for the transfers that cannot be done
+     * @throws BankingException
+     */
+    @Test
+    public void transferBatchTest() throws BankingException {
+        int acctNr1 = mongoBank.createAccount();
+        mongoBank.deposit(acctNr1, 100f);
+        int acctNr2 = mongoBank.createAccount();
+        List<TransferResult> results = mongoBank.transferBatch(Arrays.asList(
+                new TransferRequest(acctNr1, acctNr2, 6000),
+                new TransferRequest(acctNr1, acctNr2, 6000), // Insufficient after the first transfer
+                new TransferRequest(acctNr2, 13, 1000), // This account does not exist
+                new TransferRequest(acctNr1, acctNr2, 1550)));
+        assertEquals(4, results.size());
+        assertEquals(true, results.get(0).isSuccess());
+        assertEquals(BankingError.INSUFFICIENT_BALANCE, results.get(1).getError());
+        assertEquals(BankingError.NON_EXISTING_ACCOUNT, results.get(2).getError());
+        assertEquals(true, results.get(3).isSuccess());
+        assertEquals(2450, mongoBank.getBalanceInCents(acctNr1));
+        assertEquals(7550, mongoBank.getBalanceInCents(acctNr2));
+    }
+
+    /**
+     * Test that a batch rejects transfers from and to closed accounts without moving any money
+     * @throws BankingException
+     */
+    @Test
+    public void transferBatchClosedAccountTest() throws BankingException {
+        int acctNr1 = mongoBank.createAccount();
+        mongoBank.deposit(acctNr1, 100f);
+        int acctNr2 = mongoBank.createAccount();
+        int closedAcctNr = mongoBank.createAccount();
+        mongoBank.closeAccount(closedAcctNr);
+        List<TransferResult> results = mongoBank.transferBatch(Arrays.asList(
+                new TransferRequest(acctNr1, closedAcctNr, 1000),
+                new TransferRequest(closedAcctNr, acctNr2, 0),
+                new TransferRequest(acctNr1, acctNr2, 2000)));
+        assertEquals(BankingError.CLOSED_ACCOUNT, results.get(0).getError());
+        assertEquals(BankingError.CLOSED_ACCOUNT, results.get(1).getError());
+        assertEquals(true, results.get(2).isSuccess());
+        assertEquals(8000, mongoBank.getBalanceInCents(acctNr1));
+        assertEquals(2000, mongoBank.getBalanceInCents(acctNr2));
+        assertEquals(0, mongoBank.getBalanceInCents(closedAcctNr));
+    }
+
+    /**
+     * Test to ensure that a batch of transfers failing in the pending state can recover
+     * @throws BankingException
+     */
+    @Test
+    public void pendingTransferBatchRecoveryTest() throws BankingException {
+        int acctNr1 = mongoBank.createAccount();
+        mongoBank.deposit(acctNr1, 100f);
+        int acctNr2 = mongoBank.createAccount();
+        int acctNr3 = mongoBank.createAccount();
+        try {
+            mongoBank.transferBatch(Arrays.asList(new TransferRequest(acctNr1, acctNr2, 3000),
+                    new TransferRequest(acctNr1, acctNr3, 2000)), TxnState.PENDING);
+        } catch (BankingException e) { /* Ignore */ }
+        sleep(mongoBank.getAgeOfTransactionsRequiringRecovery() + 5);
+        mongoBank.recoverPendingTransactions();
+        assertEquals(50f, mongoBank.getBalance(acctNr1), 0f);
+        assertEquals(30f, mongoBank.getBalance(acctNr2), 0f);
+        assertEquals(20f, mongoBank.getBalance(acctNr3), 0f);
+    }
+
+    /**
+     * Test that retrying a transfer with an idempotency key moves the money once, both when the first attempt
+     * failed halfway and when it succeeded
+     * @throws BankingException
+     */
+    @Test
+    public void idempotentTransferTest() throws BankingException {
+        int acctNr1 = mongoBank.createAccount();
+        mongoBank.deposit(acctNr1, 100f);
+        int acctNr2 = mongoBank.createAccount();
+        TransferRequest request = new TransferRequest(acctNr1, acctNr2, 3000, "transfer-1");
+        TransferResult failed = mongoBank.transfer(request, TxnState.PENDING);
+        assertEquals(BankingError.DB_ERROR, failed.getError());
+        assertTrue(failed.getTxnID() >= 0);
+        TransferResult retried = mongoBank.transfer(request);
+        assertTrue(retried.isSuccess());
+        assertEquals(failed.getTxnID(), retried.getTxnID());
+        assertEquals(7000, mongoBank.getBalanceInCents(acctNr1));
+        assertEquals(3000, mongoBank.getBalanceInCents(acctNr2));
+
+        long hits = mongoBank.getIdempotencyCache().getHits();
+        List<TransferResult> results = mongoBank.transferBatch(Arrays.asList(request,
+                new TransferRequest(acctNr1, acctNr2, 1000, "transfer-2"),
+                new TransferRequest(acctNr1, acctNr2, 1000, "transfer-2")));
+        assertEquals(retried.getTxnID(), results.get(0).getTxnID());
+        assertEquals(hits + 2, mongoBank.getIdempotencyCache().getHits());
+        assertEquals(results.get(1).getTxnID(), results.get(2).getTxnID());
+        assertEquals(6000, mongoBank.getBalanceInCents(acctNr1));
+        assertEquals(4000, mongoBank.getBalanceInCents(acctNr2));
+
+        // Without the cache the outcome is found in the database
+        mongoBank.getIdempotencyCache().clear();
+        assertTrue(mongoBank.transfer(request).isSuccess());
+        assertEquals(6000, mongoBank.getBalanceInCents(acctNr1));
+    }
+
+    /**
+     * Test that concurrent deposits under admission control either succeed or are rejected as overloaded, and
+     * that only the admitted ones move money
+     * @throws Exception
+     */
+    @Test
+    public void admissionControlTest() throws Exception {
+        final int acctNr = mongoBank.createAccount();
+        final int threads = 16, depositsPerThread = 20;
+        mongoBank.enableAdmissionControl(2, 4, 100, 4, 50);
+        try {
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            List<Future<Integer>> futures = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                futures.add(executor.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws BankingException {
+                        int deposited = 0;
+                        for (int j = 0; j < depositsPerThread; j++) {
+                            try {
+                                mongoBank.depositCents(acctNr, 1);
+                                deposited++;
+                            } catch (BankingException e) {
+                                assertEquals(BankingError.OVERLOADED, e.getError());
+                            }
+                        }
+                        return deposited;
+                    }
+                }));
+            }
+            int deposited = 0;
+            for (Future<Integer> future : futures) deposited += future.get();
+            executor.shutdown();
+            AdmissionController controller = mongoBank.getAdmissionController();
+            assertEquals(deposited, mongoBank.getBalanceInCents(acctNr));
+            assertEquals(deposited, controller.getAdmitted());
+            assertEquals(threads * depositsPerThread, controller.getAdmitted() + controller.getRejected());
+            assertEquals(0, controller.getInFlight());
+            assertEquals(0, controller.getQueueDepth());
+            assertTrue(controller.getLimit() <= 4);
+        } finally {
+            mongoBank.disableAdmissionControl();
+        }
+    }
+
+    /**
+     * Test that the transfer processor turns a stream of requests into a stream of results in request order, while
+     * batching the transfers and honoring the demand of a subscriber that takes one result at a time
+     * @throws Exception
+     */
+    @Test
+    public void transferProcessorTest() throws Exception {
+        final int acctNr1 = mongoBank.createAccount();
+        mongoBank.depositCents(acctNr1, 10000);
+        final int acctNr2 = mongoBank.createAccount();
+        final int transfers = 200;
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        TransferProcessor processor = new TransferProcessor(mongoBank, executor, 32, 8, 1, true);
+        final List<TransferResult> results = Collections.synchronizedList(new ArrayList<TransferResult>());
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+        processor.subscribe(new Flow.Subscriber<TransferResult>() {
+            private Flow.Subscription subscription;
+
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                this.subscription = subscription;
+                subscription.request(1);
+            }
+
+            @Override
+            public void onNext(TransferResult result) {
+                results.add(result);
+                subscription.request(1);
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                done.completeExceptionally(throwable);
+            }
+
+            @Override
+            public void onComplete() {
+                done.complete(null);
+            }
+        });
+        try (SubmissionPublisher<TransferRequest> publisher = new SubmissionPublisher<>(executor, 16)) {
+            publisher.subscribe(processor);
+            for (int i = 0; i < transfers; i++) {
+                // The last transfers find the source account empty
+                publisher.submit(new TransferRequest(acctNr1, acctNr2, i < 100 ? 100 : 1000));
+            }
+        }
+        done.get(60, TimeUnit.SECONDS);
+        executor.shutdown();
+        assertEquals(transfers, results.size());
+        for (int i = 0; i < transfers; i++) {
+            TransferResult result = results.get(i);
+            assertEquals(i < 100 ? 100 : 1000, result.getRequest().getAmountInCents());
+            assertEquals(i < 100, result.isSuccess());
+        }
+        assertEquals(transfers, processor.getTransfers());
+        assertTrue(processor.getBatches() < transfers);
+        assertEquals(0, mongoBank.getBalanceInCents(acctNr1));
+        assertEquals(10000, mongoBank.getBalanceInCents(acctNr2));
+    }
+
+    /**
+     * Test that the async API completes its futures with the results of the blocking API
+     * @throws Exception
+     */
+    @Test
+    public void asyncTransferTest() throws Exception {
+        ExecutorService executor = AsyncMongoBank.newVirtualThreadPerTaskExecutor();
+        AsyncMongoBank asyncBank = new AsyncMongoBank(mongoBank, executor);
+        int acctNr1 = mongoBank.createAccount();
+        int acctNr2 = mongoBank.createAccount();
+        assertEquals(100f, asyncBank.depositAsync(acctNr1, 100f).get(), 0f);
+        asyncBank.transferAsync(acctNr1, acctNr2, 45.34f).get();
+        assertEquals(54.66f, asyncBank.getBalanceAsync(acctNr1).get(), 0f);
+        assertEquals(35.34f, asyncBank.withdrawAsync(acctNr2, 10f).get(), 0f);
+        try {
+            asyncBank.withdrawAsync(acctNr2, 1000f).get();
+            fail("Withdrawing more than the balance should fail");
+        } catch (ExecutionException e) {
+            assertEquals(BankingError.INSUFFICIENT_BALANCE.getCode(), ((BankingException) e.getCause()).getCode());
+        }
+        executor.shutdown();
+    }
+
     /**
      * Test to ensure that a failing transaction in pending state can recover
      * @throws BankingException
@@ -122,6 +480,84 @@ public class BankUnitTest {
         assertEquals(50f, mongoBank.getBalance(acctNr2), 0f);
     }
 
+    /**
+     * Test that failed transactions in the pending state are recovered by parallel workers, exactly once
+     * @throws BankingException
+     */
+    @Test
+    public void parallelPendingTransferTransactionRecoveryTest() throws BankingException {
+        int acctNr1 = mongoBank.createAccount();
+        mongoBank.deposit(acctNr1, 100f);
+        int acctNr2 = mongoBank.createAccount();
+        for (int i = 0; i < 10; i++) {
+            try {
+                mongoBank.transfer(acctNr1, acctNr2, 5f, TxnState.PENDING); // Make it fail in the pending state
+            } catch (BankingException e) { /* Ignore */ }
+        }
+        sleep(mongoBank.getAgeOfTransactionsRequiringRecovery() + 5);
+        assertEquals(10, mongoBank.recoverPendingTransactions(4));
+        assertEquals(0, mongoBank.recoverPendingTransactions(4));
+        assertEquals(50f, mongoBank.getBalance(acctNr1), 0f);
+        assertEquals(50f, mongoBank.getBalance(acctNr2), 0f);
+    }
+
+    /**
+     * Test that the recovery daemon recovers failed transactions without being asked
+     * @throws BankingException
+     */
+    @Test
+    public void recoveryDaemonTest() throws BankingException {
+        int acctNr1 = mongoBank.createAccount();
+        mongoBank.deposit(acctNr1, 100f);
+        int acctNr2 = mongoBank.createAccount();
+        mongoBank.setAgeOfTransactionsRequiringRecovery(1000);
+        RecoveryDaemon daemon = mongoBank.startRecoveryDaemon(100, 200);
+        try {
+            try {
+                mongoBank.transfer(acctNr1, acctNr2, 50f, TxnState.APPLIED); // Make it fail in the applied state
+            } catch (BankingException e) { /* Ignore */ }
+            sleep(mongoBank.getAgeOfTransactionsRequiringRecovery() + 500);
+            assertEquals(1, daemon.getRecovered());
+            assertEquals(50f, mongoBank.getBalance(acctNr1), 0f);
+            assertEquals(50f, mongoBank.getBalance(acctNr2), 0f);
+        } finally {
+            mongoBank.stopRecoveryDaemon();
+        }
+    }
+
+    /**
+     * Test that the recovery daemon finishes the cancellation of a transaction that was left canceling
+     * @throws Exception
+     */
+    @Test
+    public void recoveryDaemonCancelingTest() throws Exception {
+        int acctNr1 = mongoBank.createAccount();
+        mongoBank.deposit(acctNr1, 100f);
+        int acctNr2 = mongoBank.createAccount();
+        mongoBank.setAgeOfTransactionsRequiringRecovery(1000);
+        try {
+            mongoBank.transfer(acctNr1, acctNr2, 50f, TxnState.PENDING); // Make it fail in the pending state
+        } catch (BankingException e) { /* Ignore */ }
+        // The bank failed after marking the transaction canceling, before undoing it
+        MongoClient mongoClient = new MongoClient("localhost");
+        try {
+            mongoClient.getDB(MongoBank.DB).getCollection(MongoBank.TXNS).update(
+                    new BasicDBObject(MongoBank.STATE, TxnState.PENDING),
+                    new BasicDBObject("$set", new BasicDBObject(MongoBank.STATE, TxnState.CANCELING)), false, true);
+        } finally {
+            mongoClient.close();
+        }
+        RecoveryDaemon daemon = mongoBank.startRecoveryDaemon(100, 200);
+        try {
+            sleep(mongoBank.getAgeOfTransactionsRequiringRecovery() + 500);
+            assertEquals(1, daemon.getRecovered());
+            assertEquals(100f, mongoBank.getBalance(acctNr1), 0f);
+            assertEquals(0f, mongoBank.getBalance(acctNr2), 0f);
+        } finally {
+            mongoBank.stopRecoveryDaemon();
+        }
+    }
+
     @Test
     public void appliedTransferTransactionRecoveryTest() throws BankingException {
         int acctNr1 = mongoBank.createAccount();
@@ -179,6 +615,377 @@ public class BankUnitTest {
         assertEquals(0f, mongoBank.getBalance(acctNr2), 0f);
     }
 
+    /**
+     * Test that all stale pending transactions are canceled at once, and only once
+     * @throws BankingException
+     */
+    @Test
+    public void bulkPendingTransferRollbackTest() throws BankingException {
+        int acctNr1 = mongoBank.createAccount();
+        int acctNr2 = mongoBank.createAccount();
+        int acctNr3 = mongoBank.createAccount();
+        mongoBank.deposit(acctNr1, 100f);
+        mongoBank.deposit(acctNr2, 100f);
+        for (int i = 0; i < 5; i++) {
+            try {
+                mongoBank.transfer(i % 2 == 0 ? acctNr1 : acctNr2, acctNr3, 10f, TxnState.PENDING);
+            } catch (BankingException e) {
+                // ignore
+            }
+        }
+        sleep(mongoBank.getAgeOfTransactionsRequiringRecovery() + 5);
+        assertEquals(5, mongoBank.cancelPendingTransactions());
+        assertEquals(0, mongoBank.cancelPendingTransactions());
+        assertEquals(100f, mongoBank.getBalance(acctNr1), 0f);
+        assertEquals(100f, mongoBank.getBalance(acctNr2), 0f);
+        assertEquals(0f, mongoBank.getBalance(acctNr3), 0f);
+    }
+
+    /**
+     * Test that done transactions are archived once, and in-flight transactions are not
+     * @throws BankingException
+     */
+    @Test
+    public void archiveTransactionsTest() throws BankingException {
+        int acctNr1 = mongoBank.createAccount();
+        int acctNr2 = mongoBank.createAccount();
+        mongoBank.deposit(acctNr1, 100f);
+        mongoBank.transfer(acctNr1, acctNr2, 10f);
+        mongoBank.transfer(acctNr1, acctNr2, 10f);
+        try {
+            mongoBank.transfer(acctNr1, acctNr2, 10f, TxnState.APPLIED); // Stays in flight
+        } catch (BankingException e) {
+            // ignore
+        }
+        assertEquals(0, mongoBank.archiveTransactions(60000));
+        assertEquals(2, mongoBank.archiveTransactions(0));
+        assertEquals(0, mongoBank.archiveTransactions(0));
+        sleep(mongoBank.getAgeOfTransactionsRequiringRecovery() + 5);
+        assertEquals(1, mongoBank.recoverAppliedTransactions());
+        assertEquals(1, mongoBank.archiveTransactions(0));
+        assertEquals(70f, mongoBank.getBalance(acctNr1), 0f);
+        assertEquals(30f, mongoBank.getBalance(acctNr2), 0f);
+    }
+
+    /**
+     * Test that cached balances reflect writes through the bank
+     * @throws BankingException
+     */
+    @Test
+    public void accountCacheTest() throws BankingException {
+        mongoBank.enableAccountCache(100, 60000);
+        try {
+            int acctNr1 = mongoBank.createAccount();
+            int acctNr2 = mongoBank.createAccount();
+            assertEquals(0f, mongoBank.getBalance(acctNr1), 0f);
+            mongoBank.deposit(acctNr1, 100f);
+            assertEquals(100f, mongoBank.getBalance(acctNr1), 0f);
+            mongoBank.withdraw(acctNr1, 20f);
+            assertEquals(80f, mongoBank.getBalance(acctNr1), 0f);
+            assertEquals(0f, mongoBank.getBalance(acctNr2), 0f);
+            mongoBank.transfer(acctNr1, acctNr2, 30f);
+            assertEquals(50f, mongoBank.getBalance(acctNr1), 0f);
+            assertEquals(30f, mongoBank.getBalance(acctNr2), 0f);
+            mongoBank.transferBatch(Arrays.asList(new TransferRequest(acctNr2, acctNr1, 1000)));
+            assertEquals(60f, mongoBank.getBalance(acctNr1), 0f);
+            assertEquals(20f, mongoBank.getBalance(acctNr2), 0f);
+            assertEquals(false, mongoBank.isClosed(acctNr2));
+            mongoBank.closeAccount(acctNr2);
+            assertEquals(true, mongoBank.isClosed(acctNr2));
+            assertEquals(60f, mongoBank.getBalance(acctNr1), 0f);
+            assertTrue(mongoBank.getAccountCache().getHits() > 0);
+        } finally {
+            mongoBank.disableAccountCache();
+        }
+    }
+
+    /**
+     * Test reading the balances of many accounts at once, and of a range of accounts
+     * @throws BankingException
+     */
+    @Test
+    public void getBalancesTest() throws BankingException {
+        int acctNr1 = mongoBank.createAccount();
+        int acctNr2 = mongoBank.createAccount();
+        int acctNr3 = mongoBank.createAccount();
+        mongoBank.deposit(acctNr1, 10f);
+        mongoBank.deposit(acctNr3, 30f);
+        Balances balances = mongoBank.getBalances(acctNr1, acctNr2, acctNr3, -1);
+        assertEquals(3, balances.size());
+        assertEquals(1000, balances.getOrDefault(acctNr1, -1));
+        assertEquals(0, balances.getOrDefault(acctNr2, -1));
+        assertEquals(3000, balances.getOrDefault(acctNr3, -1));
+        assertEquals(1, balances.getMissing().length);
+        assertEquals(-1, balances.getMissing()[0]);
+
+        final List<Integer> acctNrs = new ArrayList<>();
+        final long[] total = new long[1];
+        long count = mongoBank.forEachBalance(acctNr1, acctNr3, new BalanceConsumer() {
+            @Override
+            public void accept(int acctNr, long balanceInCents) {
+                acctNrs.add(acctNr);
+                total[0] += balanceInCents;
+            }
+        });
+        assertEquals(3, count);
+        assertEquals(Arrays.asList(acctNr1, acctNr2, acctNr3), acctNrs);
+        assertEquals(4000, total[0]);
+    }
+
+    /**
+     * Test creating many accounts at once, with and without initial balances
+     * @throws BankingException
+     */
+    @Test
+    public void createAccountsTest() throws BankingException {
+        mongoBank.setAccountBatchSize(7);
+        try {
+            int acctNr = mongoBank.createAccount();
+            AccountRange range = mongoBank.createAccounts(50);
+            assertEquals(50, range.size());
+            assertTrue(!range.contains(acctNr));
+            assertEquals(0f, mongoBank.getBalance(range.getFirst()), 0f);
+            assertEquals(0f, mongoBank.getBalance(range.getLast()), 0f);
+            assertTrue(!range.contains(mongoBank.createAccount()));
+
+            List<InitialBalance> initialBalances = new ArrayList<>();
+            for (int i = 0; i < 20; i++) initialBalances.add(new InitialBalance(i * 100, i == 19));
+            List<AccountRange> ranges = mongoBank.createAccounts(initialBalances.iterator());
+            assertEquals(1, ranges.size());
+            assertEquals(20, ranges.get(0).size());
+            int first = ranges.get(0).getFirst();
+            assertEquals(5f, mongoBank.getBalance(first + 5), 0f);
+            assertEquals(false, mongoBank.isClosed(first + 18));
+            assertEquals(true, mongoBank.isClosed(first + 19));
+            assertEquals(0, mongoBank.getBalances(first, first + 19).getMissing().length);
+        } finally {
+            mongoBank.setAccountBatchSize(1000);
+        }
+    }
+
+    /**
+     * Test importing a file of deposits, and that importing it again does not apply it twice
+     * @throws Exception
+     */
+    @Test
+    public void importDepositsTest() throws Exception {
+        int acctNr1 = mongoBank.createAccount();
+        int acctNr2 = mongoBank.createAccount();
+        int acctNr3 = mongoBank.createAccount();
+        mongoBank.closeAccount(acctNr3);
+        StringBuilder content = new StringBuilder("account,amount\n");
+        for (int i = 0; i < 100; i++) content.append(acctNr1).append(",1.50\n");
+        content.append(acctNr2).append(",10\n");
+        content.append(acctNr3).append(",10\n");
+        content.append(-1).append(",10\n");
+        Path file = Files.createTempFile("deposits", ".csv");
+        try {
+            Files.write(file, content.toString().getBytes("US-ASCII"));
+            DepositImporter importer = mongoBank.newDepositImporter(7, 2);
+            ImportResult result = importer.importFile(file, "deposits-1");
+            assertEquals(104, result.getLines());
+            assertEquals(101, result.getDeposited());
+            assertEquals(1, result.getRejected());
+            assertEquals(2, result.getMalformed());
+            assertEquals(16000, result.getAmountInCents());
+            assertEquals(150f, mongoBank.getBalance(acctNr1), 0f);
+            assertEquals(10f, mongoBank.getBalance(acctNr2), 0f);
+            assertEquals(0f, mongoBank.getBalance(acctNr3), 0f);
+
+            result = importer.importFile(file, "deposits-1");
+            assertEquals(101, result.getDeposited());
+            assertEquals(150f, mongoBank.getBalance(acctNr1), 0f);
+
+            mongoBank.newDepositImporter(1000, 1).importFile(file, "deposits-2");
+            assertEquals(300f, mongoBank.getBalance(acctNr1), 0f);
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    /**
+     * Test exporting all balances to a snapshot, loading it back and detecting a corrupted file
+     * @throws Exception
+     */
+    @Test
+    public void exportSnapshotTest() throws Exception {
+        AccountRange range = mongoBank.createAccounts(100);
+        for (int acctNr = range.getFirst(); acctNr <= range.getLast(); acctNr++) {
+            mongoBank.depositCents(acctNr, acctNr - range.getFirst());
+        }
+        mongoBank.closeAccount(range.getLast());
+        Path dir = Files.createTempDirectory("snapshot");
+        try {
+            AccountSnapshot snapshot = mongoBank.exportSnapshot(dir, 3);
+            assertEquals(100, snapshot.getAccounts());
+            assertEquals(4950, snapshot.getTotalBalanceInCents());
+
+            snapshot = AccountSnapshot.load(dir);
+            final List<Integer> acctNrs = new ArrayList<>();
+            final int[] closed = new int[1];
+            snapshot.forEach(new AccountSnapshot.RecordConsumer() {
+                @Override
+                public void accept(int acctNr, long balanceInCents, boolean isClosed, boolean pending) {
+                    acctNrs.add(acctNr);
+                    if (isClosed) closed[0] = acctNr;
+                }
+            });
+            assertEquals(100, acctNrs.size());
+            assertEquals(range.getFirst(), (int) acctNrs.get(0));
+            assertEquals(range.getLast(), (int) acctNrs.get(99));
+            assertEquals(range.getLast(), closed[0]);
+
+            Path file = dir.resolve("accounts-00000.bin");
+            byte[] bytes = Files.readAllBytes(file);
+            bytes[5] ^= 1;
+            Files.write(file, bytes);
+            try {
+                snapshot.verify();
+                fail("A corrupted snapshot was not detected");
+            } catch (IOException e) {
+                // expected
+            }
+        } finally {
+            for (Path file : Files.newDirectoryStream(dir)) Files.delete(file);
+            Files.delete(dir);
+        }
+    }
+
+    /**
+     * Test that the ledger reconciles with transfers done, in flight and canceled
+     * @throws BankingException
+     */
+    @Test
+    public void reconcileTest() throws BankingException {
+        int acctNr1 = mongoBank.createAccount();
+        int acctNr2 = mongoBank.createAccount();
+        mongoBank.deposit(acctNr1, 100f);
+        mongoBank.withdraw(acctNr1, 10f);
+        mongoBank.transfer(acctNr1, acctNr2, 20f);
+        try {
+            mongoBank.transfer(acctNr1, acctNr2, 5f, TxnState.PENDING); // Applied to the source only
+        } catch (BankingException e) {
+            // ignore
+        }
+        ReconciliationReport report = mongoBank.reconcile(2);
+        assertTrue(report.toString(), report.isBalanced());
+        assertEquals(2, report.getAccounts());
+        assertEquals(8500, report.getTotalBalance());
+        assertEquals(500, report.getInFlightAdjustment());
+        assertEquals(1, report.getTransactionsInFlight());
+
+        sleep(mongoBank.getAgeOfTransactionsRequiringRecovery() + 5);
+        mongoBank.cancelPendingTransactions();
+        report = mongoBank.reconcile(1);
+        assertTrue(report.toString(), report.isBalanced());
+        assertEquals(9000, report.getTotalBalance());
+        assertEquals(0, report.getInFlightAdjustment());
+    }
+
+    /**
+     * Test that migrating an account of an earlier version converts its balance to cents and gives it totals, so
+     * the bank reconciles
+     * @throws Exception
+     */
+    @Test
+    public void migrateLegacyAccountTest() throws Exception {
+        int acctNr = mongoBank.createAccount();
+        mongoBank.depositCents(acctNr, 1000);
+        int legacyAcctNr = acctNr + 1000000;
+        MongoClient mongoClient = new MongoClient("localhost");
+        try {
+            mongoClient.getDB(MongoBank.DB).getCollection(MongoBank.ACCOUNTS).insert(
+                    new BasicDBObject(MongoBank.ID, legacyAcctNr).append(MongoBank.BALANCE, 12.34)
+                            .append(MongoBank.PENDING_TXNS, new ArrayList<Long>()).append(MongoBank.CLOSED, false));
+        } finally {
+            mongoClient.close();
+        }
+        assertTrue(mongoBank.migrateToCents() >= 2);
+        assertEquals(1234, mongoBank.getBalanceInCents(legacyAcctNr));
+        ReconciliationReport report = mongoBank.reconcile(1);
+        assertTrue(report.toString(), report.isBalanced());
+        assertEquals(2234, report.getTotalBalance());
+        assertEquals(0, mongoBank.migrateToCents());
+    }
+
+    /**
+     * Test that a striped account spreads credits and debits over its stripes, adds them up for its balance,
+     * collects money from several stripes for a large debit, and is closed with all its stripes
+     * @throws BankingException
+     */
+    @Test
+    public void stripedAccountTest() throws BankingException {
+        int hotAcctNr = mongoBank.createAccount();
+        int acctNr = mongoBank.createAccount();
+        mongoBank.depositCents(hotAcctNr, 1000);
+        int[] stripes = mongoBank.stripeAccount(hotAcctNr, 4);
+        assertEquals(4, stripes.length);
+        assertEquals(hotAcctNr, stripes[0]);
+        assertEquals(1000, mongoBank.getBalanceInCents(hotAcctNr));
+
+        mongoBank.depositCents(acctNr, 10000);
+        for (int i = 0; i < 20; i++) mongoBank.transferCents(acctNr, hotAcctNr, 100);
+        assertEquals(3000, mongoBank.depositCents(hotAcctNr, 0));
+        assertEquals(3000, mongoBank.getBalances(hotAcctNr, acctNr).getOrDefault(hotAcctNr, -1));
+        // The credits are spread over the stripe documents, which together hold the balance
+        Balances stripeBalances = mongoBank.getStripeBalances(stripes);
+        long spread = 0, total = 0, richest = 0;
+        for (int stripe : stripes) {
+            long balance = stripeBalances.getOrDefault(stripe, 0);
+            if (balance > 0) spread++;
+            total += balance;
+            richest = Math.max(richest, balance);
+        }
+        assertTrue(spread > 1);
+        assertEquals(3000, total);
+        assertTrue(richest < 2500);
+
+        // Takes money from more than one stripe, after rebalancing them without creating or losing money
+        mongoBank.transferCents(hotAcctNr, acctNr, 2500);
+        stripeBalances = mongoBank.getStripeBalances(stripes);
+        total = 0;
+        for (int stripe : stripes) total += stripeBalances.getOrDefault(stripe, 0);
+        assertEquals(500, total);
+        assertEquals(400, mongoBank.withdrawCents(hotAcctNr, 100));
+        try {
+            mongoBank.withdrawCents(hotAcctNr, 500);
+            fail("Expected an insufficient balance");
+        } catch (BankingException e) {
+            assertEquals(BankingError.INSUFFICIENT_BALANCE.getCode(), e.getCode());
+        }
+        assertEquals(400, mongoBank.getBalanceInCents(hotAcctNr));
+        assertEquals(10500, mongoBank.getBalanceInCents(acctNr));
+        ReconciliationReport report = mongoBank.reconcile(1);
+        assertTrue(report.toString(), report.isBalanced());
+
+        mongoBank.closeAccount(hotAcctNr);
+        for (int stripe : stripes) assertTrue(mongoBank.isClosed(stripe));
+    }
+
+    /**
+     * Test that the balances of an account striped by another bank instance add up its stripes, as its balance does
+     * @throws Exception
+     */
+    @Test
+    public void getBalancesOfAccountStripedElsewhereTest() throws Exception {
+        int acctNr = mongoBank.createAccount();
+        int stripe1 = mongoBank.createAccount();
+        int stripe2 = mongoBank.createAccount();
+        mongoBank.depositCents(acctNr, 1000);
+        mongoBank.depositCents(stripe1, 200);
+        mongoBank.depositCents(stripe2, 30);
+        MongoClient mongoClient = new MongoClient("localhost");
+        try {
+            mongoClient.getDB(MongoBank.DB).getCollection(MongoBank.ACCOUNTS).update(
+                    new BasicDBObject(MongoBank.ID, acctNr),
+                    new BasicDBObject("$set", new BasicDBObject(MongoBank.STRIPES, Arrays.asList(stripe1, stripe2))));
+        } finally {
+            mongoClient.close();
+        }
+        assertEquals(1230, mongoBank.getBalanceInCents(acctNr));
+        assertEquals(1230, mongoBank.getBalances(acctNr).getOrDefault(acctNr, -1));
+    }
+
     /**
      * Take some sleep
      * @param timeInMs
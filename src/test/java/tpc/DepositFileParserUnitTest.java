@@ -0,0 +1,64 @@
+package tpc;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests for the deposit file parser that do not need a database
+ */
+public class DepositFileParserUnitTest {
+
+    /**
+     * Test parsing amounts, skipping blank lines, reporting malformed lines and resuming at an offset
+     * @throws Exception
+     */
+    @Test
+    public void parseTest() throws Exception {
+        String content = "account,amount\n1,12.34\r\n\n 2 , 5\n3,0.5\n4,1.234\n-5,1\n2147483648,1\n6,7.";
+        Path file = Files.createTempFile("deposits", ".csv");
+        try {
+            Files.write(file, content.getBytes(StandardCharsets.US_ASCII));
+            List<String> lines = parse(file, 0);
+            List<String> expected = new ArrayList<>();
+            expected.add("malformed@15");
+            expected.add("1:1234@24");
+            expected.add("2:500@32");
+            expected.add("3:50@38");
+            expected.add("malformed@46");
+            expected.add("malformed@51");
+            expected.add("malformed@64");
+            expected.add("6:700@68");
+            assertEquals(expected, lines);
+            assertEquals(expected.subList(3, expected.size()), parse(file, 32));
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    private static List<String> parse(Path file, long offset) throws IOException, InterruptedException {
+        final List<String> lines = new ArrayList<>();
+        try (FileChannel channel = FileChannel.open(file)) {
+            new DepositFileParser().parse(channel, offset, new DepositFileParser.Handler() {
+                @Override
+                public void deposit(int acctNr, long amountInCents, long endOffset) {
+                    lines.add(acctNr + ":" + amountInCents + "@" + endOffset);
+                }
+
+                @Override
+                public void malformed(long endOffset) {
+                    lines.add("malformed@" + endOffset);
+                }
+            });
+        }
+        return lines;
+    }
+}
@@ -0,0 +1,40 @@
+package tpc;
+
+import org.junit.Test;
+
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonReadableChannelException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for the deposit importer that do not need a database
+ */
+public class DepositImporterUnitTest {
+
+    /**
+     * Test that a parser that fails with a runtime exception still ends the queue, and passes the failure on
+     * @throws Exception
+     */
+    @Test
+    public void badFileTest() throws Exception {
+        Path file = Files.createTempFile("deposits", ".csv");
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            BlockingQueue<DepositImporter.Batch> queue = new ArrayBlockingQueue<>(4);
+            AtomicReference<Throwable> failure = new AtomicReference<>();
+            DepositImporter.parse(channel, 0, 10, queue, failure);
+            assertSame(DepositImporter.Batch.END, queue.poll(1, TimeUnit.SECONDS));
+            assertTrue(failure.get() instanceof NonReadableChannelException);
+        } finally {
+            Files.delete(file);
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package tpc;
+
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for the ID generators that do not need a database
+ */
+public class IdGeneratorUnitTest {
+
+    /**
+     * Test that time-ordered IDs are increasing and carry the node ID
+     * @throws Exception
+     */
+    @Test
+    public void timeOrderedIdsIncreaseTest() throws Exception {
+        TimeOrderedIdGenerator generator = new TimeOrderedIdGenerator(42);
+        long prev = generator.nextId();
+        for (int i = 0; i < 100000; i++) {
+            long id = generator.nextId();
+            assertTrue(id > prev);
+            assertEquals(42, TimeOrderedIdGenerator.nodeIdOf(id));
+            prev = id;
+        }
+    }
+
+    /**
+     * Test that time-ordered IDs generated concurrently on different nodes are unique
+     * @throws Exception
+     */
+    @Test
+    public void timeOrderedIdsUniqueTest() throws Exception {
+        final int threads = 8, idsPerThread = 20000;
+        final Set<Long> ids = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+        final TimeOrderedIdGenerator node1 = new TimeOrderedIdGenerator(1), node2 = new TimeOrderedIdGenerator(2);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            final TimeOrderedIdGenerator generator = i % 2 == 0 ? node1 : node2;
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws BankingException {
+                    for (int j = 0; j < idsPerThread; j++) ids.add(generator.nextId());
+                    return null;
+                }
+            }));
+        }
+        for (Future<?> future : futures) future.get();
+        executor.shutdown();
+        assertEquals(threads * idsPerThread, ids.size());
+    }
+
+    /**
+     * Test that the lowest node ID without a lease is taken, and that leasing fails once every node ID is leased
+     * @throws Exception
+     */
+    @Test
+    public void nodeIdExhaustionTest() throws Exception {
+        Set<Integer> leased = new HashSet<>();
+        for (int i = 0; i <= TimeOrderedIdGenerator.MAX_NODE_ID; i++) {
+            int nodeId = TimeOrderedIdGenerator.freeNodeId(leased);
+            assertEquals(i, nodeId);
+            leased.add(nodeId);
+        }
+        try {
+            TimeOrderedIdGenerator.freeNodeId(leased);
+            fail("Leased a node ID twice");
+        } catch (BankingException e) {
+            assertEquals(BankingError.NODE_IDS_EXHAUSTED, e.getError());
+        }
+        // A node ID whose lease document is gone is leased again
+        leased.remove(42);
+        assertEquals(42, TimeOrderedIdGenerator.freeNodeId(leased));
+    }
+
+    /**
+     * Test that a lease is no longer used shortly before it expires, and that an unleased node ID never expires
+     */
+    @Test
+    public void leaseExpiryTest() {
+        long expiry = 1000000;
+        assertTrue(TimeOrderedIdGenerator.isUsable(expiry - TimeOrderedIdGenerator.LEASE_MS, expiry));
+        assertTrue(TimeOrderedIdGenerator.isUsable(expiry - TimeOrderedIdGenerator.MARGIN_MS - 1, expiry));
+        assertFalse(TimeOrderedIdGenerator.isUsable(expiry - TimeOrderedIdGenerator.MARGIN_MS, expiry));
+        assertFalse(TimeOrderedIdGenerator.isUsable(expiry, 0));
+        assertTrue(TimeOrderedIdGenerator.isUsable(expiry, Long.MAX_VALUE));
+        // Renewals keep the lease usable with a few of them failing in a row
+        assertTrue(TimeOrderedIdGenerator.RENEW_MS * 3 < TimeOrderedIdGenerator.LEASE_MS - TimeOrderedIdGenerator.MARGIN_MS);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidNodeIdTest() {
+        new TimeOrderedIdGenerator(TimeOrderedIdGenerator.MAX_NODE_ID + 1);
+    }
+}
@@ -0,0 +1,32 @@
+package tpc;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the cache of transfer outcomes by idempotency key that do not need a database
+ */
+public class IdempotencyCacheUnitTest {
+
+    /**
+     * Test that the least recently used key is evicted and that hits and misses are counted
+     */
+    @Test
+    public void evictionTest() {
+        IdempotencyCache cache = new IdempotencyCache(2);
+        TransferRequest request = new TransferRequest(1, 2, 100, "a");
+        cache.put("a", new TransferResult(request, 1, null));
+        cache.put("b", new TransferResult(request, 2, BankingError.DB_ERROR));
+        assertEquals(1, cache.get("a").getTxnID());
+        cache.put("c", new TransferResult(request, 3, null));
+        assertEquals(2, cache.size());
+        assertNull(cache.get("b"));
+        assertEquals(3, cache.get("c").getTxnID());
+        assertEquals(2, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        cache.clear();
+        assertNull(cache.get("a"));
+        assertEquals(0, cache.size());
+    }
+}
@@ -0,0 +1,36 @@
+package tpc;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests for the conversion and formatting of amounts in cents
+ */
+public class MoneyUnitTest {
+
+    @Test
+    public void toCentsTest() {
+        assertEquals(5023, Money.toCents(50.23f));
+        assertEquals(5466, Money.toCents(54.66f));
+        assertEquals(-1, Money.toCents(-0.01f));
+        assertEquals(10, Money.toCents(0.1d));
+        assertEquals(54.66f, Money.toDollars(5466), 0f);
+    }
+
+    @Test
+    public void formatTest() {
+        assertEquals("$0.00", Money.format(0));
+        assertEquals("$12.34", Money.format(1234));
+        assertEquals("$0.05", Money.format(5));
+        assertEquals("-$0.05", Money.format(-5));
+        assertEquals("$1000000.10", Money.format(100000010));
+    }
+
+    @Test
+    public void centsOfTest() {
+        assertEquals(1234, Money.centsOf(1234L));
+        assertEquals(1234, Money.centsOf(1234));
+        assertEquals(1234, Money.centsOf(12.34d)); // A legacy amount in dollars
+    }
+}
@@ -0,0 +1,36 @@
+package tpc;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for the partitioning of the transactions to recover, without a database
+ */
+public class RecoveryUnitTest {
+
+    /**
+     * Test that the ranges cover the IDs from the lowest to the highest exactly once, in ID order
+     */
+    @Test
+    public void splitIdRangeTest() {
+        long[][] cases = {{1, 100, 4}, {10, 10, 4}, {5, 7, 8}, {0, 1000001, 3}, {1L << 40, (1L << 41) + 3, 16},
+                {0, Long.MAX_VALUE, 7}};
+        for (long[] c : cases) {
+            List<long[]> ranges = MongoBank.splitIdRange(c[0], c[1], (int) c[2]);
+            assertTrue(ranges.size() >= 1 && ranges.size() <= c[2]);
+            long next = c[0];
+            for (long[] range : ranges) {
+                assertEquals(next, range[0]);
+                assertTrue(range[1] >= range[0]);
+                next = range[1] + 1;
+            }
+            assertEquals(c[1], ranges.get(ranges.size() - 1)[1]);
+        }
+        assertEquals(4, MongoBank.splitIdRange(1, 100, 4).size());
+        assertEquals(1, MongoBank.splitIdRange(10, 10, 4).size());
+    }
+}
@@ -0,0 +1,94 @@
+package tpc;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for the timer wheel of in-flight transactions
+ */
+public class TimerWheelUnitTest {
+
+    @Test
+    public void expireTest() {
+        TimerWheel wheel = new TimerWheel(10, 8);
+        wheel.expire(1000);
+        wheel.schedule(1, 1015);
+        wheel.schedule(2, 1050);
+        wheel.schedule(3, 1500); // Several rounds of the wheel away
+        assertEquals(3, wheel.size());
+        assertArrayEquals(new long[0], wheel.expire(1010));
+        assertArrayEquals(new long[]{1}, wheel.expire(1020));
+        assertArrayEquals(new long[]{2}, wheel.expire(1400));
+        assertArrayEquals(new long[0], wheel.expire(1499));
+        assertArrayEquals(new long[]{3}, wheel.expire(1500));
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void cancelAndRescheduleTest() {
+        TimerWheel wheel = new TimerWheel(10, 8);
+        wheel.expire(1000);
+        wheel.schedule(1, 1020);
+        wheel.schedule(2, 1020);
+        wheel.schedule(3, 1020);
+        wheel.cancel(2);
+        wheel.schedule(3, 1100);
+        wheel.schedule(1, 1030);
+        assertArrayEquals(new long[0], wheel.expire(1025));
+        assertArrayEquals(new long[]{1}, wheel.expire(1030));
+        assertArrayEquals(new long[]{3}, wheel.expire(1100));
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void pastDeadlineTest() {
+        TimerWheel wheel = new TimerWheel(10, 8);
+        wheel.expire(1000);
+        wheel.schedule(1, 500);
+        wheel.schedule(2, 990);
+        long[] expired = wheel.expire(1010);
+        Arrays.sort(expired);
+        assertArrayEquals(new long[]{1, 2}, expired);
+    }
+
+    /**
+     * Test that randomly scheduled and cancelled IDs expire exactly once, in the first expire at or after
+     * their deadline
+     */
+    @Test
+    public void randomTest() {
+        Random random = new Random(42);
+        TimerWheel wheel = new TimerWheel(10, 16);
+        Map<Long, Long> expected = new HashMap<>();
+        long now = 1000;
+        wheel.expire(now);
+        for (int round = 0; round < 2000; round++) {
+            for (int i = 0; i < 5; i++) {
+                long id = random.nextInt(200);
+                if (random.nextInt(4) == 0) {
+                    wheel.cancel(id);
+                    expected.remove(id);
+                } else {
+                    long deadline = now - 20 + random.nextInt(600);
+                    wheel.schedule(id, deadline);
+                    expected.put(id, deadline);
+                }
+            }
+            now += random.nextInt(15);
+            for (long id : wheel.expire(now)) {
+                Long deadline = expected.remove(id);
+                assertTrue(deadline != null && deadline <= now);
+            }
+            for (long deadline : expected.values()) assertTrue(deadline > now);
+        }
+        assertEquals(expected.size(), wheel.size());
+    }
+}
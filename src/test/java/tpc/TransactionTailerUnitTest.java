@@ -0,0 +1,105 @@
+package tpc;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.Bytes;
+import com.mongodb.DBObject;
+import org.bson.types.BSONTimestamp;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for the parsing of oplog entries by the transaction tailer, without a database
+ */
+public class TransactionTailerUnitTest {
+
+    private static DBObject entry(int time, String op, DBObject o, long txnID) {
+        BasicDBObject entry = new BasicDBObject(TransactionTailer.TS, new BSONTimestamp(time, 1))
+                .append(TransactionTailer.NS, "bank.transactions").append(TransactionTailer.OP, op)
+                .append(TransactionTailer.O, o);
+        if (op.equals("u")) entry.append(TransactionTailer.O2, new BasicDBObject(MongoBank.ID, txnID));
+        return entry;
+    }
+
+    private static DBObject set(String state) {
+        return new BasicDBObject("$set", new BasicDBObject(MongoBank.STATE, state));
+    }
+
+    private static DBObject diff(String state) {
+        return new BasicDBObject("$v", 2).append("diff", new BasicDBObject("u", new BasicDBObject(MongoBank.STATE, state)));
+    }
+
+    @Test
+    public void stateOfTest() {
+        assertEquals(TxnState.PENDING, TransactionTailer.stateOf(set(TxnState.PENDING)));
+        assertEquals(TxnState.APPLIED, TransactionTailer.stateOf(diff(TxnState.APPLIED)));
+        assertEquals(TxnState.DONE, TransactionTailer.stateOf(new BasicDBObject(MongoBank.ID, 1L)
+                .append(MongoBank.STATE, TxnState.DONE)));
+        // Changes to other fields leave the state alone
+        assertNull(TransactionTailer.stateOf(new BasicDBObject("$set", new BasicDBObject(MongoBank.LAST_MOD, 1))));
+        assertNull(TransactionTailer.stateOf(new BasicDBObject("$v", 2)
+                .append("diff", new BasicDBObject("i", new BasicDBObject(MongoBank.LAST_MOD, 1)))));
+    }
+
+    /**
+     * Test that transactions are scheduled while pending or applied, and cancelled once done, canceled or deleted,
+     * whether the updates are logged as a $set or as a diff
+     */
+    @Test
+    public void handleTest() {
+        TimerWheel wheel = new TimerWheel(10, 8);
+        wheel.expire(1000);
+        TransactionTailer.handle(wheel, entry(1, "i", new BasicDBObject(MongoBank.ID, 1L)
+                .append(MongoBank.STATE, TxnState.INITIAL), 0), 1100);
+        assertEquals(0, wheel.size());
+        TransactionTailer.handle(wheel, entry(2, "u", set(TxnState.PENDING), 1), 1100);
+        TransactionTailer.handle(wheel, entry(3, "i", new BasicDBObject(MongoBank.ID, 2L)
+                .append(MongoBank.STATE, TxnState.PENDING), 0), 1100);
+        TransactionTailer.handle(wheel, entry(4, "u", diff(TxnState.PENDING), 3), 1100);
+        TransactionTailer.handle(wheel, entry(5, "u", diff(TxnState.APPLIED), 1), 1200);
+        assertEquals(3, wheel.size());
+        TransactionTailer.handle(wheel, entry(6, "u", diff(TxnState.DONE), 2), 1100);
+        TransactionTailer.handle(wheel, entry(7, "u", set(TxnState.CANCELED), 3), 1100);
+        TransactionTailer.handle(wheel, entry(8, "n", new BasicDBObject("msg", "noop"), 0), 1100);
+        assertArrayEquals(new long[0], wheel.expire(1100));
+        assertArrayEquals(new long[]{1}, wheel.expire(1200));
+        TransactionTailer.handle(wheel, entry(9, "u", set(TxnState.PENDING), 4), 1300);
+        TransactionTailer.handle(wheel, entry(10, "d", new BasicDBObject(MongoBank.ID, 4L), 0), 1300);
+        assertEquals(0, wheel.size());
+    }
+
+    /**
+     * Test that a reopened cursor replays the oplog from the timestamp of the last entry that was seen
+     */
+    @Test
+    public void restartTest() {
+        DBObject last = entry(42, "u", set(TxnState.APPLIED), 1);
+        DBObject query = TransactionTailer.tailQuery((BSONTimestamp) last.get(TransactionTailer.TS),
+                "bank.transactions");
+        assertEquals(TransactionTailer.TS, query.keySet().iterator().next());
+        assertEquals(new BasicDBObject("$gt", new BSONTimestamp(42, 1)), query.get(TransactionTailer.TS));
+        assertEquals("bank.transactions", query.get(TransactionTailer.NS));
+        for (int option : new int[]{Bytes.QUERYOPTION_TAILABLE, Bytes.QUERYOPTION_AWAITDATA,
+                Bytes.QUERYOPTION_OPLOGREPLAY}) {
+            assertTrue((TransactionTailer.TAIL_OPTIONS & option) != 0);
+        }
+    }
+
+    /**
+     * Test that a cursor that keeps dying is reopened after a delay that doubles up to a maximum
+     */
+    @Test
+    public void retryBackoffTest() {
+        assertEquals(200, TransactionTailer.nextRetryMs(100));
+        long retryMs = 100;
+        for (int i = 0; i < 20; i++) {
+            long next = TransactionTailer.nextRetryMs(retryMs);
+            assertTrue(next >= retryMs);
+            retryMs = next;
+        }
+        assertEquals(TransactionTailer.MAX_RETRY_MS, retryMs);
+    }
+}